@@ -0,0 +1,221 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.acertainbookstore.interfaces.AsyncBookStore;
+import com.acertainbookstore.interfaces.AsyncStockManager;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * AsyncCertainBookStore implements the asynchronous APIs over an in-process
+ * bookstore, such as ConcurrentCertainBookStore, by running each operation
+ * on an executor.
+ *
+ * The operations of the in-process bookstore do not wait on anything but
+ * its locks, so a pool with one thread per processor runs them as fast as
+ * one thread per request would.
+ */
+public class AsyncCertainBookStore implements AsyncBookStore,
+		AsyncStockManager {
+	private final BookStore bookStore;
+	private final StockManager stockManager;
+	private final Executor executor;
+
+	/**
+	 * Creates an adapter running the operations on the common fork-join
+	 * pool.
+	 *
+	 * @param store
+	 */
+	public AsyncCertainBookStore(ConcurrentCertainBookStore store) {
+		this(store, store, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates an adapter.
+	 *
+	 * @param bookStore
+	 * @param stockManager
+	 * @param executor
+	 *            the executor running the operations
+	 */
+	public AsyncCertainBookStore(BookStore bookStore,
+			StockManager stockManager, Executor executor) {
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+		this.executor = executor;
+	}
+
+	/**
+	 * An operation of the bookstore.
+	 */
+	private interface Operation<T> {
+		T run() throws BookStoreException;
+	}
+
+	/**
+	 * Runs the operation on the executor.
+	 *
+	 * @return the future of the result of the operation, failing with the
+	 *         exception it threw
+	 */
+	private <T> CompletableFuture<T> submit(final Operation<T> operation) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						future.complete(operation.run());
+					} catch (Throwable ex) {
+						future.completeExceptionally(ex);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			future.completeExceptionally(new BookStoreException(ex));
+		}
+		return future;
+	}
+
+	public CompletableFuture<Void> buyBooksAsync(final Set<BookCopy> booksToBuy) {
+		return submit(new Operation<Void>() {
+			public Void run() throws BookStoreException {
+				bookStore.buyBooks(booksToBuy);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> rateBooksAsync(
+			final Set<BookRating> bookRating) {
+		return submit(new Operation<Void>() {
+			public Void run() throws BookStoreException {
+				bookStore.rateBooks(bookRating);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<List<Book>> getBooksAsync(
+			final Set<Integer> ISBNList) {
+		return submit(new Operation<List<Book>>() {
+			public List<Book> run() throws BookStoreException {
+				return bookStore.getBooks(ISBNList);
+			}
+		});
+	}
+
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(
+			final int numBooks) {
+		return submit(new Operation<List<Book>>() {
+			public List<Book> run() throws BookStoreException {
+				return bookStore.getTopRatedBooks(numBooks);
+			}
+		});
+	}
+
+	public CompletableFuture<List<Book>> getEditorPicksAsync(final int numBooks) {
+		return submit(new Operation<List<Book>>() {
+			public List<Book> run() throws BookStoreException {
+				return bookStore.getEditorPicks(numBooks);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> addBooksAsync(final Set<StockBook> bookSet) {
+		return submit(new Operation<Void>() {
+			public Void run() throws BookStoreException {
+				stockManager.addBooks(bookSet);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> addCopiesAsync(
+			final Set<BookCopy> bookCopiesSet) {
+		return submit(new Operation<Void>() {
+			public Void run() throws BookStoreException {
+				stockManager.addCopies(bookCopiesSet);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<List<StockBook>> getBooksAsync() {
+		return submit(new Operation<List<StockBook>>() {
+			public List<StockBook> run() throws BookStoreException {
+				return stockManager.getBooks();
+			}
+		});
+	}
+
+	public CompletableFuture<BookPage> getBooksAsync(final String cursor,
+			final int pageSize) {
+		return submit(new Operation<BookPage>() {
+			public BookPage run() throws BookStoreException {
+				return stockManager.getBooks(cursor, pageSize);
+			}
+		});
+	}
+
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(
+			final Set<Integer> isbns) {
+		return submit(new Operation<List<StockBook>>() {
+			public List<StockBook> run() throws BookStoreException {
+				return stockManager.getBooksByISBN(isbns);
+			}
+		});
+	}
+
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync() {
+		return submit(new Operation<List<StockBook>>() {
+			public List<StockBook> run() throws BookStoreException {
+				return stockManager.getBooksInDemand();
+			}
+		});
+	}
+
+	public CompletableFuture<List<Long>> getRatingHistogramAsync(
+			final int ISBN) {
+		return submit(new Operation<List<Long>>() {
+			public List<Long> run() throws BookStoreException {
+				return stockManager.getRatingHistogram(ISBN);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> updateEditorPicksAsync(
+			final Set<BookEditorPick> editorPicks) {
+		return submit(new Operation<Void>() {
+			public Void run() throws BookStoreException {
+				stockManager.updateEditorPicks(editorPicks);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> removeAllBooksAsync() {
+		return submit(new Operation<Void>() {
+			public Void run() throws BookStoreException {
+				stockManager.removeAllBooks();
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> removeBooksAsync(final Set<Integer> isbnSet) {
+		return submit(new Operation<Void>() {
+			public Void run() throws BookStoreException {
+				stockManager.removeBooks(isbnSet);
+				return null;
+			}
+		});
+	}
+}
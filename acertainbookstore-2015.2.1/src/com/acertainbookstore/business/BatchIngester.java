@@ -0,0 +1,110 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * BatchIngester adds a stream of books to a StockManager in batches of a
+ * bounded size. Each batch is added with one call to addBooks as soon as it
+ * is complete, so only one batch is held in memory at a time and locks are
+ * only held for one batch, however long the stream is.
+ *
+ * addBooks adds all the books of a call or none of them, so a rejected batch
+ * is split in halves which are added again, until the books that are
+ * rejected on their own are found. A bad book therefore only costs a few
+ * more calls, and the rest of its batch is still added. A book whose ISBN
+ * is already in the batch being collected is rejected at once, since
+ * addBooks would let the later book replace the earlier one.
+ */
+public final class BatchIngester {
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int MAX_BATCH_SIZE = 100000;
+
+	private BatchIngester() {
+	}
+
+	/**
+	 * Adds the books to the stock manager in batches of up to batchSize
+	 * books. Every call to addBooks is recorded in the report, and every
+	 * rejected book is recorded as a rejected batch of its own. If the
+	 * iterator fails, the books read since the last batch are dropped and the
+	 * report records the failure.
+	 * 
+	 * @param stockManager
+	 * @param books
+	 * @param batchSize
+	 * @return the outcome of every batch
+	 * @throws BookStoreException
+	 *             if the input is null or the batch size is out of range
+	 */
+	public static IngestReport ingest(StockManager stockManager,
+			Iterator<StockBook> books, int batchSize)
+			throws BookStoreException {
+		if (books == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+			throw new BookStoreException(BookStoreConstants.BATCH_SIZE
+					+ batchSize + BookStoreConstants.INVALID);
+		}
+
+		IngestReport report = new IngestReport();
+		List<StockBook> batch = new ArrayList<StockBook>();
+		Set<Integer> batchISBNs = new HashSet<Integer>();
+		while (true) {
+			StockBook book;
+			try {
+				if (!books.hasNext()) {
+					break;
+				}
+				book = books.next();
+			} catch (RuntimeException ex) {
+				report.setStreamError(String.valueOf(ex.getMessage()));
+				return report;
+			}
+			if (!batchISBNs.add(book.getISBN())) {
+				report.addBatch(1, BookStoreConstants.ISBN + book.getISBN()
+						+ BookStoreConstants.DUPLICATED);
+				continue;
+			}
+			batch.add(book);
+			if (batch.size() == batchSize) {
+				addBatch(stockManager, batch, report);
+				batch.clear();
+				batchISBNs.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			addBatch(stockManager, batch, report);
+		}
+		return report;
+	}
+
+	/**
+	 * Adds the books with one call to addBooks. If they are rejected, the two
+	 * halves of the batch are added on their own, down to single books.
+	 */
+	private static void addBatch(StockManager stockManager,
+			List<StockBook> batch, IngestReport report) {
+		try {
+			stockManager.addBooks(new HashSet<StockBook>(batch));
+			report.addBatch(batch.size(), null);
+		} catch (BookStoreException ex) {
+			if (batch.size() == 1) {
+				report.addBatch(1, String.valueOf(ex.getMessage()));
+				return;
+			}
+			int middle = batch.size() / 2;
+			addBatch(stockManager, batch.subList(0, middle), report);
+			addBatch(stockManager, batch.subList(middle, batch.size()),
+					report);
+		}
+	}
+}
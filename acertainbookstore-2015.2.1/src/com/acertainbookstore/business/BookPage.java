@@ -0,0 +1,55 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+
+/**
+ * A page of the books of the catalog, in ascending ISBN order, and the
+ * cursor of the page after it.
+ * 
+ */
+public class BookPage {
+	public static final int MAX_PAGE_SIZE = 10000;
+
+	private List<StockBook> books;
+	private String nextCursor;
+
+	/**
+	 * Creates a page.
+	 * 
+	 * @param books
+	 * @param nextCursor
+	 *            the cursor of the next page, or null if this is the last
+	 */
+	public BookPage(List<StockBook> books, String nextCursor) {
+		this.books = books;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Returns the books of the page.
+	 * 
+	 * @return
+	 */
+	public List<StockBook> getBooks() {
+		return books;
+	}
+
+	/**
+	 * Returns the cursor to pass to get the next page, or null if this is the
+	 * last page.
+	 * 
+	 * @return
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * Returns true if there are no pages after this one.
+	 * 
+	 * @return
+	 */
+	public boolean isLastPage() {
+		return nextCursor == null;
+	}
+}
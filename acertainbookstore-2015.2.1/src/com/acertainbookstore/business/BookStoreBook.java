@@ -1,5 +1,10 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -7,13 +12,39 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * in the BookStoreClient and StockManager, cf. the Book interface and the
  * StockBook interface.
  * 
+ * The stock and sale miss counters are atomic, so copies can be bought with a
+ * compare-and-set without holding the lock of the book. The stock may be
+ * split into several slices, see ShardedStock, so that buyers of a
+ * bestseller do not all compete for one counter. The ratings given
+ * in the store are counted per value in LongAdders, which spread concurrent
+ * ratings of one book over separate cells, and the total rating and the
+ * number of ratings are both computed from one read of those counts. Every
+ * rating is one increment of one count, so a read sees each rating either
+ * entirely or not at all, and the total never runs ahead of the number of
+ * ratings or the other way around.
+ * 
+ * Every change of the book increments its state version. The immutable
+ * views returned to clients are cached together with the version they were
+ * built at and rebuilt only once the version moves on, so repeated reads of
+ * an unchanged book return the same instance.
+ * 
  */
 public class BookStoreBook extends ImmutableBook {
-	private int numCopies;
-	private long totalRating;
-	private long timesRated;
-	private long saleMisses;
-	private boolean editorPick;
+	private final ShardedStock numCopies;
+	// Ratings the book came with, of which only the totals are known
+	private long initialTotalRating;
+	private long initialTimesRated;
+	// Number of ratings of each value given in this store, 0 to 5
+	private final LongAdder[] ratingCounts = newAdders(6);
+	private final AtomicLong saleMisses = new AtomicLong();
+	private volatile boolean editorPick;
+	// Set while the book waits to be published, see requestPublication
+	private final AtomicBoolean publicationPending = new AtomicBoolean();
+	private volatile boolean removed;
+	// Incremented after every change of the state above
+	private final AtomicInteger stateVersion = new AtomicInteger();
+	private volatile CachedView cachedStockBook;
+	private volatile ImmutableBook cachedBook;
 
 	/**
 	 * Constructor to create a book object
@@ -21,9 +52,9 @@ public class BookStoreBook extends ImmutableBook {
 	public BookStoreBook(int ISBN, String title, String author, float price,
 			int numCopies) {
 		super(ISBN, title, author, price);
+		this.numCopies = new ShardedStock(1, numCopies);
 		this.setSaleMisses(0);
 		this.setTimesRated(0);
-		this.setNumCopies(numCopies);
 		this.setTotalRating(0);
 		this.setEditorPick(false);
 	}
@@ -34,33 +65,92 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param bookToCopy
 	 */
 	public BookStoreBook(StockBook bookToCopy) {
+		this(bookToCopy, 1);
+	}
+
+	/**
+	 * Constructor to create a book store book object from a stock book
+	 * object, with its stock split into numShards slices
+	 * 
+	 * @param bookToCopy
+	 * @param numShards
+	 *            a power of two
+	 */
+	public BookStoreBook(StockBook bookToCopy, int numShards) {
 		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy
 				.getAuthor(), bookToCopy.getPrice());
+		this.numCopies = new ShardedStock(numShards,
+				bookToCopy.getNumCopies());
 		this.setSaleMisses(bookToCopy.getSaleMisses());
 		this.setTimesRated(bookToCopy.getTimesRated());
-		this.setNumCopies(bookToCopy.getNumCopies());
 		this.setTotalRating(bookToCopy.getTotalRating());
 		this.setEditorPick(bookToCopy.isEditorPick());
 	}
 
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
 	public long getTotalRating() {
-		return totalRating;
+		return totalRating(getRatingHistogram());
 	}
 
 	public long getTimesRated() {
-		return timesRated;
+		return timesRated(getRatingHistogram());
+	}
+
+	/**
+	 * Returns the number of ratings of each value from 0 to 5 given to the
+	 * book in this store. The ratings the book came with when it was added
+	 * are only known by their totals, so they are counted in getTotalRating
+	 * and getTimesRated but not here.
+	 * 
+	 * @return
+	 */
+	public long[] getRatingHistogram() {
+		long[] histogram = new long[ratingCounts.length];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = ratingCounts[i].sum();
+		}
+		return histogram;
+	}
+
+	private long totalRating(long[] histogram) {
+		long total = initialTotalRating;
+		for (int i = 1; i < histogram.length; i++) {
+			total += i * histogram[i];
+		}
+		return total;
+	}
+
+	private long timesRated(long[] histogram) {
+		long times = initialTimesRated;
+		for (long count : histogram) {
+			times += count;
+		}
+		return times;
 	}
 
 	public int getNumCopies() {
-		return numCopies;
+		return numCopies.get();
 	}
 
 	public long getSaleMisses() {
-		return saleMisses;
+		return saleMisses.get();
 	}
 
 	public float getAverageRating() {
-		return (float) (timesRated == 0 ? -1.0 : totalRating / timesRated);
+		return averageRating(getRatingHistogram());
+	}
+
+	private float averageRating(long[] histogram) {
+		long times = timesRated(histogram);
+		return (float) (times == 0 ? -1.0 : totalRating(histogram)
+				/ (double) times);
 	}
 
 	public boolean isEditorPick() {
@@ -73,7 +163,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param totalRating
 	 */
 	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
+		this.initialTotalRating = totalRating;
 	}
 
 	/**
@@ -82,16 +172,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param timesRated
 	 */
 	private void setTimesRated(long timesRated) {
-		this.timesRated = timesRated;
-	}
-
-	/**
-	 * Sets the number of copies of a book, that is in stock.
-	 * 
-	 * @param numCopies
-	 */
-	private void setNumCopies(int numCopies) {
-		this.numCopies = numCopies;
+		this.initialTimesRated = timesRated;
 	}
 
 	/**
@@ -101,7 +182,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param saleMisses
 	 */
 	private void setSaleMisses(long saleMisses) {
-		this.saleMisses = saleMisses;
+		this.saleMisses.set(saleMisses);
 	}
 
 	/**
@@ -112,6 +193,7 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void setEditorPick(boolean editorPick) {
 		this.editorPick = editorPick;
+		stateChanged();
 	}
 
 	/**
@@ -121,31 +203,69 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean areCopiesInStore(int numCopies) {
-		return (this.numCopies >= numCopies);
+		return (this.numCopies.get() >= numCopies);
 	}
 
 	/**
-	 * Reduces the number of copies of the books
+	 * Reduces the number of copies of the books if enough are in stock. The
+	 * check and the reduction are one atomic step. If the stock is split
+	 * into slices, the caller must hold the write lock of the book.
 	 * 
 	 * @param numCopies
 	 * @return
 	 */
 	public boolean buyCopies(int numCopies) {
-		if (!BookStoreUtility.isInvalidNoCopies(numCopies))
-			if (areCopiesInStore(numCopies)) {
-				this.numCopies -= numCopies;
-				return true;
-			}
-		return false;
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			return false;
+		}
+		if (!this.numCopies.take(numCopies)) {
+			return false;
+		}
+		stateChanged();
+		return true;
 	}
 
 	/**
-	 * Adds newCopies to the total number of copies of the book.
+	 * Reduces the number of copies of the books if the stock slice of the
+	 * calling thread has enough of them. It needs no lock. A false result
+	 * is not a sale miss, since other slices may still have the copies.
+	 * 
+	 * @param numCopies
+	 * @return
+	 */
+	public boolean buyLocalCopies(int numCopies) {
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			return false;
+		}
+		if (!this.numCopies.takeLocal(numCopies)) {
+			return false;
+		}
+		stateChanged();
+		return true;
+	}
+
+	/**
+	 * Puts back copies taken by buyCopies for a purchase that was not
+	 * completed. Unlike addCopies it leaves the sale misses alone. If the
+	 * stock is split into slices, the caller must hold the write lock of the
+	 * book.
+	 * 
+	 * @param numCopies
+	 */
+	public void returnCopies(int numCopies) {
+		this.numCopies.add(numCopies);
+		stateChanged();
+	}
+
+	/**
+	 * Adds newCopies to the total number of copies of the book. If the stock
+	 * is split into slices, the caller must hold the write lock of the book.
 	 */
 	public void addCopies(int newCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(newCopies)) {
-			this.numCopies += newCopies;
-			this.saleMisses = 0;
+			this.numCopies.add(newCopies);
+			this.saleMisses.set(0);
+			stateChanged();
 		}
 	}
 
@@ -153,21 +273,64 @@ public class BookStoreBook extends ImmutableBook {
 	 * Increases the amount of missed sales of the book.
 	 */
 	public void addSaleMiss() {
-		this.saleMisses++;
+		this.saleMisses.incrementAndGet();
+		stateChanged();
 	}
 
 	/**
-	 * Adds the rating to the total rating of the book.
+	 * Adds the rating to the total rating of the book. It needs no lock and
+	 * never waits for other ratings of the book.
 	 * 
 	 * @param rating
 	 */
 	public void addRating(int rating) {
 		if (!BookStoreUtility.isInvalidRating(rating)) {
-			this.totalRating += rating;
-			this.timesRated++;
+			this.ratingCounts[rating].increment();
+			stateChanged();
 		}
 	}
 
+	/**
+	 * Moves the state version on, after a change of the book. Views cached
+	 * at an older version are no longer returned.
+	 */
+	private void stateChanged() {
+		stateVersion.incrementAndGet();
+	}
+
+	/**
+	 * Registers that the book changed without its lock and needs to be
+	 * published. The caller then queues the book, even if it is already
+	 * queued, since an earlier caller may not have queued it yet.
+	 */
+	public void requestPublication() {
+		publicationPending.set(true);
+	}
+
+	/**
+	 * Takes the book off the publication queue. Returns true if its state must
+	 * be read for publication, and false if another entry of the book taken
+	 * off the queue already covers the change. It must be called before the
+	 * state of the book is read, so a change made afterwards is published
+	 * again.
+	 * 
+	 * @return
+	 */
+	public boolean startPublication() {
+		return publicationPending.getAndSet(false);
+	}
+
+	/**
+	 * Marks the book as removed from the store.
+	 */
+	public void markRemoved() {
+		this.removed = true;
+	}
+
+	public boolean isRemoved() {
+		return removed;
+	}
+
 	/**
 	 * Returns True if someone tried to buy the book, while the book was not in
 	 * stock.
@@ -175,7 +338,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean hadSaleMiss() {
-		return this.saleMisses > 0;
+		return this.saleMisses.get() > 0;
 	}
 
 	/**
@@ -189,25 +352,48 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a ImmutableBook copy of the book.
+	 * Returns the ImmutableBook view of the book. Its fields never change, so
+	 * it is built once.
 	 * 
 	 * @return
 	 */
 	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()),
-				new String(this.getAuthor()), this.getPrice());
+		ImmutableBook view = cachedBook;
+		if (view == null) {
+			// Racing threads may each build one, which are all equal
+			view = new ImmutableBook(this.getISBN(), this.getTitle(),
+					this.getAuthor(), this.getPrice());
+			cachedBook = view;
+		}
+		return view;
 	}
 
 	/**
-	 * Returns a ImmutableStockBook copy of the book.
+	 * Returns the ImmutableStockBook view of the book. The cached view is
+	 * returned as long as the book has not changed since it was built.
+	 * 
+	 * The version is read before the state, so a view never shows a state
+	 * older than the version it is cached with. A view built while the book
+	 * changes may show part of the change, but the change moves the version
+	 * past it once it is complete. Callers that need a consistent view must
+	 * therefore hold the lock of the book or validate their optimistic read,
+	 * just as before.
 	 * 
 	 * @return
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(
-				this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.saleMisses,
-				this.timesRated, this.totalRating, this.editorPick);
+		int version = stateVersion.get();
+		CachedView cached = cachedStockBook;
+		if (cached != null && cached.version == version) {
+			return cached.view;
+		}
+		long[] histogram = getRatingHistogram();
+		StockBook view = new ImmutableStockBook(this.getISBN(),
+				this.getTitle(), this.getAuthor(), this.getPrice(),
+				this.numCopies.get(), this.saleMisses.get(),
+				timesRated(histogram), totalRating(histogram), this.editorPick);
+		cachedStockBook = new CachedView(version, view);
+		return view;
 	}
 
 	/**
@@ -216,8 +402,21 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public BookStoreBook copy() {
-		return new BookStoreBook(this.getISBN(), new String(this.getTitle()),
-				new String(this.getAuthor()), this.getPrice(), this.numCopies);
+		return new BookStoreBook(this.getISBN(), this.getTitle(),
+				this.getAuthor(), this.getPrice(), this.numCopies.get());
+	}
+
+	/**
+	 * A stock book view and the state version it was built at.
+	 */
+	private static final class CachedView {
+		private final int version;
+		private final StockBook view;
+
+		private CachedView(int version, StockBook view) {
+			this.version = version;
+			this.view = view;
+		}
 	}
 
 }
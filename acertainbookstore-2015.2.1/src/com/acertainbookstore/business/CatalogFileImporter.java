@@ -0,0 +1,432 @@
+package com.acertainbookstore.business;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * CatalogFileImporter loads a delimited catalog file into a StockManager.
+ *
+ * Every line of the file holds one book: ISBN, title, author, price, number
+ * of copies and, optionally, whether the book is an editor pick. The fields
+ * are separated by commas, or by tabs in files ending in .tsv, and may be
+ * quoted with double quotes, doubling the quotes inside them. A quoted field
+ * cannot span lines. A first line that does not start with an ISBN is taken
+ * as a header and skipped.
+ *
+ * The file is memory mapped and cut into chunks at line boundaries, which a
+ * fork-join pool parses in parallel. Each chunk is parsed as its books are
+ * added, in batches through BatchIngester, so only one batch per thread is
+ * held in memory. Malformed lines are skipped and counted, and so are books
+ * rejected by addBooks, without the rest of their batch.
+ */
+public final class CatalogFileImporter {
+	public static final int DEFAULT_CHUNK_BYTES = 1 << 22;
+	// Errors kept in the result, the rest are only counted
+	private static final int MAX_REPORTED_ERRORS = 10;
+
+	private final StockManager stockManager;
+	private final int chunkBytes;
+	private final int batchSize;
+
+	/**
+	 * Creates an importer with the default chunk and batch sizes.
+	 *
+	 * @param stockManager
+	 */
+	public CatalogFileImporter(StockManager stockManager) {
+		this(stockManager, DEFAULT_CHUNK_BYTES,
+				BatchIngester.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates an importer.
+	 *
+	 * @param stockManager
+	 * @param chunkBytes
+	 *            the size of the chunks the file is cut into, before they are
+	 *            extended to the end of their last line
+	 * @param batchSize
+	 *            the number of books added by each call to addBooks
+	 */
+	public CatalogFileImporter(StockManager stockManager, int chunkBytes,
+			int batchSize) {
+		if (chunkBytes < 1) {
+			throw new IllegalArgumentException("chunkBytes = " + chunkBytes);
+		}
+		if (batchSize < 1 || batchSize > BatchIngester.MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("batchSize = " + batchSize);
+		}
+		this.stockManager = stockManager;
+		this.chunkBytes = chunkBytes;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Imports the file with the given number of threads.
+	 *
+	 * @param file
+	 * @param parallelism
+	 * @return the counts of the import
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public Result importFile(File file, int parallelism) throws IOException {
+		char delimiter = file.getName().toLowerCase().endsWith(".tsv") ? '\t'
+				: ',';
+		long start = System.nanoTime();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long[] bounds = chunkBounds(channel);
+			Result result = bounds.length == 1 ? new Result() : pool
+					.invoke(new ImportTask(channel, delimiter, bounds, 0,
+							bounds.length - 1));
+			result.nanos = System.nanoTime() - start;
+			return result;
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			pool.shutdown();
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Returns the offsets where the chunks start, followed by the size of
+	 * the file. Every chunk but the first starts right after a line break.
+	 */
+	private long[] chunkBounds(FileChannel channel) throws IOException {
+		long size = channel.size();
+		List<Long> bounds = new ArrayList<Long>();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long position = 0;
+		while (position < size) {
+			bounds.add(position);
+			// Look for the end of the line that crosses the nominal boundary
+			long scan = position + chunkBytes;
+			position = size;
+			scanning: while (scan < size) {
+				buffer.clear();
+				int n = channel.read(buffer, scan);
+				for (int i = 0; i < n; i++) {
+					if (buffer.get(i) == '\n') {
+						position = scan + i + 1;
+						break scanning;
+					}
+				}
+				scan += n;
+			}
+		}
+		bounds.add(size);
+
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Imports the chunks from..to-1, splitting the range in two until it is
+	 * a single chunk.
+	 */
+	@SuppressWarnings("serial")
+	private final class ImportTask extends RecursiveTask<Result> {
+		private final FileChannel channel;
+		private final char delimiter;
+		private final long[] bounds;
+		private final int from;
+		private final int to;
+
+		ImportTask(FileChannel channel, char delimiter, long[] bounds,
+				int from, int to) {
+			this.channel = channel;
+			this.delimiter = delimiter;
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Result compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				ImportTask left = new ImportTask(channel, delimiter, bounds,
+						from, middle);
+				left.fork();
+				Result right = new ImportTask(channel, delimiter, bounds,
+						middle, to).compute();
+				return left.join().merge(right);
+			}
+
+			try {
+				long start = bounds[from];
+				MappedByteBuffer chunk = channel.map(
+						FileChannel.MapMode.READ_ONLY, start, bounds[to]
+								- start);
+				ChunkParser parser = new ChunkParser(chunk, start, delimiter);
+				IngestReport report = BatchIngester.ingest(stockManager,
+						parser, batchSize);
+				Result result = parser.result;
+				result.booksAdded = report.getBooksAdded();
+				result.booksRejected = report.getBooksRejected();
+				for (IngestBatchResult batch : report.getBatches()) {
+					if (!batch.isAdded()) {
+						result.addError(batch.getError());
+					}
+				}
+				return result;
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			} catch (BookStoreException ex) {
+				// The batch size was checked by the constructor
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Parses the books of a chunk one line at a time, as they are asked for.
+	 */
+	private static final class ChunkParser implements Iterator<StockBook> {
+		private final ByteBuffer chunk;
+		private final long offset;
+		private final char delimiter;
+		private final Result result = new Result();
+		private final List<String> fields = new ArrayList<String>();
+		private byte[] line = new byte[256];
+		private StockBook next;
+
+		ChunkParser(ByteBuffer chunk, long offset, char delimiter) {
+			this.chunk = chunk;
+			this.offset = offset;
+			this.delimiter = delimiter;
+		}
+
+		public boolean hasNext() {
+			while (next == null && chunk.hasRemaining()) {
+				long lineOffset = offset + chunk.position();
+				int length = readLine();
+				if (length == 0) {
+					continue;
+				}
+				splitFields(new String(line, 0, length, StandardCharsets.UTF_8));
+				try {
+					next = parseBook();
+					result.rows++;
+				} catch (IllegalArgumentException ex) {
+					if (lineOffset == 0 && !isNumber(fields.get(0))) {
+						continue; // Header
+					}
+					result.rows++;
+					result.malformedRows++;
+					result.addError("Line at byte " + lineOffset + ": "
+							+ ex.getMessage());
+				}
+			}
+			return next != null;
+		}
+
+		public StockBook next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			StockBook book = next;
+			next = null;
+			return book;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Copies the next line into the line buffer, without the line break
+		 *
+		 * @return the length of the line
+		 */
+		private int readLine() {
+			int length = 0;
+			while (chunk.hasRemaining()) {
+				byte b = chunk.get();
+				if (b == '\n') {
+					break;
+				}
+				if (length == line.length) {
+					byte[] longer = new byte[line.length * 2];
+					System.arraycopy(line, 0, longer, 0, length);
+					line = longer;
+				}
+				line[length++] = b;
+			}
+			if (length > 0 && line[length - 1] == '\r') {
+				length--;
+			}
+			return length;
+		}
+
+		private void splitFields(String text) {
+			fields.clear();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (quoted) {
+					if (c != '"') {
+						field.append(c);
+					} else if (i + 1 < text.length()
+							&& text.charAt(i + 1) == '"') {
+						field.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else if (c == '"') {
+					quoted = true;
+				} else if (c == delimiter) {
+					fields.add(field.toString());
+					field.setLength(0);
+				} else {
+					field.append(c);
+				}
+			}
+			fields.add(field.toString());
+		}
+
+		private StockBook parseBook() {
+			if (fields.size() < 5 || fields.size() > 6) {
+				throw new IllegalArgumentException("expected 5 or 6 fields, got "
+						+ fields.size());
+			}
+			int ISBN = Integer.parseInt(fields.get(0).trim());
+			String title = fields.get(1);
+			String author = fields.get(2);
+			float price = Float.parseFloat(fields.get(3).trim());
+			int numCopies = Integer.parseInt(fields.get(4).trim());
+			boolean editorPick = fields.size() == 6
+					&& parseEditorPick(fields.get(5).trim());
+			return new ImmutableStockBook(ISBN, title, author, price,
+					numCopies, 0, 0, 0, editorPick);
+		}
+
+		private static boolean parseEditorPick(String value) {
+			if (value.isEmpty() || value.equalsIgnoreCase("false")
+					|| value.equals("0")) {
+				return false;
+			}
+			if (value.equalsIgnoreCase("true") || value.equals("1")) {
+				return true;
+			}
+			throw new IllegalArgumentException("editor pick " + value
+					+ " is not true, false, 1 or 0");
+		}
+
+		private static boolean isNumber(String value) {
+			try {
+				Integer.parseInt(value.trim());
+				return true;
+			} catch (NumberFormatException ex) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The counts of an import.
+	 */
+	public static final class Result {
+		private long rows;
+		private long booksAdded;
+		private long booksRejected;
+		private long malformedRows;
+		private final List<String> errors = new ArrayList<String>();
+		private long nanos;
+
+		private void addError(String error) {
+			if (errors.size() < MAX_REPORTED_ERRORS) {
+				errors.add(error);
+			}
+		}
+
+		/**
+		 * Adds the counts of the chunks after this one.
+		 */
+		private Result merge(Result next) {
+			rows += next.rows;
+			booksAdded += next.booksAdded;
+			booksRejected += next.booksRejected;
+			malformedRows += next.malformedRows;
+			for (String error : next.errors) {
+				addError(error);
+			}
+			return this;
+		}
+
+		/**
+		 * Returns the number of rows read, not counting a header.
+		 *
+		 * @return
+		 */
+		public long getRows() {
+			return rows;
+		}
+
+		public long getBooksAdded() {
+			return booksAdded;
+		}
+
+		/**
+		 * Returns the number of well formed rows rejected by addBooks, for
+		 * instance because of a duplicate ISBN. The other rows of their
+		 * batches are still added.
+		 *
+		 * @return
+		 */
+		public long getBooksRejected() {
+			return booksRejected;
+		}
+
+		public long getMalformedRows() {
+			return malformedRows;
+		}
+
+		/**
+		 * Returns the first errors of the import, chunk by chunk in file
+		 * order.
+		 *
+		 * @return
+		 */
+		public List<String> getErrors() {
+			return errors;
+		}
+
+		/**
+		 * Returns the time the import took, in nanoseconds.
+		 *
+		 * @return
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		public double getRowsPerSecond() {
+			return nanos == 0 ? 0 : rows / (nanos / 1e9);
+		}
+	}
+}
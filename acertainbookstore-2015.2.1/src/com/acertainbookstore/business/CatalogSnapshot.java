@@ -0,0 +1,268 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable, versioned view of the whole catalog. Scans read a snapshot
+ * without taking any lock, while writers derive the next version from the
+ * current one.
+ *
+ * The books are kept in a persistent radix trie over the bits of the ISBN,
+ * five bits per level and most significant bits first, so a traversal visits
+ * the books in ascending ISBN order. An update copies only the nodes on the
+ * path to the changed books, at most seven per book, and shares the rest of
+ * the trie with the previous version.
+ *
+ */
+public final class CatalogSnapshot {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	// ISBNs are positive, so 31 bits are split into 7 levels
+	private static final int TOP_SHIFT = 30;
+
+	private final long version;
+	private final int size;
+	private final Node root;
+
+	/**
+	 * Creates the empty snapshot, version 0.
+	 */
+	public CatalogSnapshot() {
+		this(0, 0, null);
+	}
+
+	private CatalogSnapshot(long version, int size, Node root) {
+		this.version = version;
+		this.size = size;
+		this.root = root;
+	}
+
+	/**
+	 * Returns the version of the snapshot, which increases by one for every
+	 * published change.
+	 *
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the number of books in the snapshot.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the book with the ISBN, or null if it is not in the snapshot.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public StockBook get(int ISBN) {
+		return (StockBook) get(root, ISBN);
+	}
+
+	/**
+	 * Returns all books of the snapshot in ascending ISBN order.
+	 *
+	 * @return
+	 */
+	public List<StockBook> getBooks() {
+		List<StockBook> books = new ArrayList<StockBook>(size);
+		collect(root, TOP_SHIFT, books);
+		return books;
+	}
+
+	/**
+	 * Returns up to max books of the snapshot with an ISBN above the given
+	 * one, in ascending ISBN order. Subtrees holding only lower ISBNs are
+	 * skipped, so the cost depends on max and not on the position in the
+	 * catalog.
+	 *
+	 * @param ISBN
+	 * @param max
+	 * @return
+	 */
+	public List<StockBook> getBooksAfter(int ISBN, int max) {
+		List<StockBook> books = new ArrayList<StockBook>(Math.min(max, size));
+		collectAfter(root, TOP_SHIFT, 0, ISBN, max, books);
+		return books;
+	}
+
+	/**
+	 * Returns the next snapshot version, where the books are added or
+	 * replaced and the removed ISBNs are gone.
+	 *
+	 * @param books
+	 * @param removedISBNs
+	 * @return
+	 */
+	CatalogSnapshot update(Collection<StockBook> books,
+			Collection<Integer> removedISBNs) {
+		Node newRoot = root;
+		int newSize = size;
+		for (StockBook book : books) {
+			if (get(newRoot, book.getISBN()) == null) {
+				newSize++;
+			}
+			newRoot = put(newRoot, TOP_SHIFT, book.getISBN(), book);
+		}
+		for (Integer ISBN : removedISBNs) {
+			if (get(newRoot, ISBN) != null) {
+				newSize--;
+				newRoot = remove(newRoot, TOP_SHIFT, ISBN);
+			}
+		}
+		return new CatalogSnapshot(version + 1, newSize, newRoot);
+	}
+
+	/**
+	 * Returns the next snapshot version, which holds no books.
+	 *
+	 * @return
+	 */
+	CatalogSnapshot clear() {
+		return new CatalogSnapshot(version + 1, 0, null);
+	}
+
+	private static Object get(Node root, int ISBN) {
+		Node node = root;
+		for (int shift = TOP_SHIFT; node != null; shift -= BITS) {
+			Object child = node.child((ISBN >>> shift) & MASK);
+			if (shift == 0) {
+				return child;
+			}
+			node = (Node) child;
+		}
+		return null;
+	}
+
+	private static Node put(Node node, int shift, int ISBN, StockBook book) {
+		int index = (ISBN >>> shift) & MASK;
+		if (node == null) {
+			node = Node.EMPTY;
+		}
+		if (shift == 0) {
+			return node.with(index, book);
+		}
+		Node child = (Node) node.child(index);
+		return node.with(index, put(child, shift - BITS, ISBN, book));
+	}
+
+	private static Node remove(Node node, int shift, int ISBN) {
+		int index = (ISBN >>> shift) & MASK;
+		if (shift == 0) {
+			return node.without(index);
+		}
+		Node newChild = remove((Node) node.child(index), shift - BITS, ISBN);
+		return newChild == null ? node.without(index) : node.with(index,
+				newChild);
+	}
+
+	private static void collect(Node node, int shift, List<StockBook> books) {
+		if (node == null) {
+			return;
+		}
+		for (Object child : node.children) {
+			if (shift == 0) {
+				books.add((StockBook) child);
+			} else {
+				collect((Node) child, shift - BITS, books);
+			}
+		}
+	}
+
+	/**
+	 * Adds the books of the node with an ISBN above after, until the list
+	 * holds max books. The ISBNs under the node start with prefix.
+	 */
+	private static void collectAfter(Node node, int shift, long prefix,
+			int after, int max, List<StockBook> books) {
+		if (node == null) {
+			return;
+		}
+		int bits = node.bitmap;
+		for (int position = 0; bits != 0 && books.size() < max; position++) {
+			int index = Integer.numberOfTrailingZeros(bits);
+			bits &= bits - 1;
+			long first = prefix | ((long) index << shift);
+			long last = first + (1L << shift) - 1;
+			if (last <= after) {
+				continue;
+			}
+			Object child = node.children[position];
+			if (shift == 0) {
+				books.add((StockBook) child);
+			} else {
+				collectAfter((Node) child, shift - BITS, first, after, max,
+						books);
+			}
+		}
+	}
+
+	/**
+	 * A trie node holding only its present children, in index order. Bit i of
+	 * the bitmap is set if child i is present.
+	 */
+	private static final class Node {
+		static final Node EMPTY = new Node(0, new Object[0]);
+
+		final int bitmap;
+		final Object[] children;
+
+		Node(int bitmap, Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+
+		Object child(int index) {
+			int bit = 1 << index;
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			return children[Integer.bitCount(bitmap & (bit - 1))];
+		}
+
+		Node with(int index, Object child) {
+			int bit = 1 << index;
+			int position = Integer.bitCount(bitmap & (bit - 1));
+			Object[] newChildren;
+			if ((bitmap & bit) != 0) {
+				newChildren = children.clone();
+				newChildren[position] = child;
+				return new Node(bitmap, newChildren);
+			}
+			newChildren = new Object[children.length + 1];
+			System.arraycopy(children, 0, newChildren, 0, position);
+			newChildren[position] = child;
+			System.arraycopy(children, position, newChildren, position + 1,
+					children.length - position);
+			return new Node(bitmap | bit, newChildren);
+		}
+
+		/**
+		 * Returns the node without the child, or null if it was the last one
+		 */
+		Node without(int index) {
+			int bit = 1 << index;
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			if (children.length == 1) {
+				return null;
+			}
+			int position = Integer.bitCount(bitmap & (bit - 1));
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, position);
+			System.arraycopy(children, position + 1, newChildren, position,
+					newChildren.length - position);
+			return new Node(bitmap & ~bit, newChildren);
+		}
+	}
+}
@@ -5,53 +5,404 @@ package com.acertainbookstore.business;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.ConcurrentIntHashMap;
+import com.acertainbookstore.utils.CursorExpiredException;
 
 /**
  * ConcurrentCertainBookStore implements the bookstore and its functionality which is
  * defined in the BookStore
+ *
+ * The catalog is a concurrent map keyed by ISBN and there is no global lock.
+ * Every operation locks only the ISBNs it touches through an
+ * OrderedMultiLock, so that adding or removing books does not stall buyers
+ * and readers of other books.
+ *
+ * Each book is guarded by the StampedLock stripe its ISBN hashes onto, out
+ * of a fixed number of stripes set when the store is created. Lookups by
+ * ISBN first read the books optimistically and validate the stamps
+ * afterwards, and only take the read locks if a writer got in during the
+ * read.
+ *
+ * Full scans never lock. Every writer publishes the books it changed into a
+ * new version of an immutable CatalogSnapshot while it still holds their
+ * locks, so the changes of one call become visible together and each ISBN
+ * is published in the order it was locked. Editor picks are also kept in an
+ * EditorPickIndex, updated by the same writers, which getEditorPicks samples
+ * without touching the catalog.
+ *
+ * Paged scans read every page from the snapshot their first page was read
+ * from, so an iteration sees one version of the catalog. The snapshots of
+ * iterations in progress are kept in a small bounded set, and a cursor
+ * whose snapshot was dropped has expired.
+ *
+ * A purchase of a single ISBN takes no lock: it takes the copies with a
+ * compare-and-set on the stock counter of the book and queues the book for
+ * publication. One thread at a time publishes the queued books, all of them
+ * in one new version, so lock-free purchases and ratings do not each
+ * rewrite the catalog root. The buyer returns once a version holding its
+ * purchase is published, so its own scans never miss it. Purchases of
+ * several books reserve the copies with the same compare-and-set while
+ * holding the write locks, and put them back if the order cannot be
+ * completed. A lock-free purchase that fails retries under the lock, so a
+ * sale miss is only counted when no reservation is in progress.
  */
 public class ConcurrentCertainBookStore implements BookStore, StockManager {
-	private Map<Integer, BookStoreBook> bookMap;
-	private Map<Integer, ReadWriteLock> lockMap;
-	private ReadWriteLock masterLock;
-	
+	private ConcurrentIntHashMap<BookStoreBook> bookMap;
+	private AtomicReference<CatalogSnapshot> catalog;
+	// Books changed without their lock and waiting to be published
+	private ConcurrentLinkedQueue<BookStoreBook> pendingBooks;
+	// Publication requests not yet handled, see publishWithoutLock
+	private AtomicInteger publicationRequests;
+	// Rounds of publication of the queue started and finished, only written
+	// by the publishing thread
+	private volatile long publicationsStarted;
+	private volatile long publicationsFinished;
+	private OrderedMultiLock multiLock;
+	private EditorPickIndex editorPickIndex;
+	private TopRatedIndex topRatedIndex;
+	// Books with sale misses, changed only under the write lock of the book
+	private ConcurrentIntHashMap<BookStoreBook> inDemandBooks;
+	// Null unless purchases are combined
+	private FlatCombiner<Set<BookCopy>> purchaseCombiner;
+	// Number of slices the stock of each book is split into
+	private int inventoryShards;
+	// Snapshots that paged scans in progress read from
+	private RetainedSnapshots pagedSnapshots;
+
+	public static final int MAX_INVENTORY_SHARDS = 256;
+	// How long a caller waiting for the publication of its book yields
+	// before it parks, and for how long it parks between checks
+	private static final int MAX_PUBLICATION_YIELDS = 64;
+	private static final long PUBLICATION_PARK_NANOS = 20000;
+
+	// Snapshots kept for paged scans, and how long an unused one is kept
+	private static final int MAX_PAGED_SNAPSHOTS = 16;
+	private static final long PAGED_SNAPSHOT_IDLE_MILLIS = 60000;
+
+	private static final Function<BookStoreBook, Book> BOOK_VIEW = new Function<BookStoreBook, Book>() {
+		public Book apply(BookStoreBook book) {
+			return book.immutableBook();
+		}
+	};
+	private static final Function<BookStoreBook, StockBook> STOCK_BOOK_VIEW = new Function<BookStoreBook, StockBook>() {
+		public StockBook apply(BookStoreBook book) {
+			return book.immutableStockBook();
+		}
+	};
+
 	public ConcurrentCertainBookStore() {
-		// Constructors are not synchronized
-		bookMap = new HashMap<Integer, BookStoreBook>();
-		lockMap = new HashMap<Integer, ReadWriteLock>();
-		masterLock = new ReentrantReadWriteLock();
+		this(OrderedMultiLock.DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Creates a store whose books are guarded by numLockStripes locks.
+	 *
+	 * @param numLockStripes
+	 *            the number of lock stripes, rounded up to a power of two
+	 */
+	public ConcurrentCertainBookStore(int numLockStripes) {
+		this(numLockStripes, false);
+	}
+
+	/**
+	 * Creates a store whose books are guarded by numLockStripes locks.
+	 *
+	 * If combinePurchases is true, concurrent calls to buyBooks that need
+	 * the locks are queued and applied in batches by a FlatCombiner, one
+	 * batch per lock acquisition, instead of each caller locking its books
+	 * on its own. Purchases of a single book in stock stay lock-free.
+	 *
+	 * @param numLockStripes
+	 *            the number of lock stripes, rounded up to a power of two
+	 * @param combinePurchases
+	 */
+	public ConcurrentCertainBookStore(int numLockStripes,
+			boolean combinePurchases) {
+		this(numLockStripes, combinePurchases, 1);
+	}
+
+	/**
+	 * Creates a store whose books are guarded by numLockStripes locks.
+	 *
+	 * If inventoryShards is more than one, the stock of every book is split
+	 * into that many slices. A lock-free purchase then only takes copies
+	 * from the slice of its thread, so buyers of a bestseller on different
+	 * cores rarely touch the same counter. A purchase that finds its slice
+	 * dry falls back to the locked path, which gathers the copies of every
+	 * slice, so a sale miss is only counted when the whole stock cannot
+	 * serve the order. Each slice takes a cache line of its own, so this is
+	 * meant for catalogs of hot titles rather than millions of books.
+	 *
+	 * @param numLockStripes
+	 *            the number of lock stripes, rounded up to a power of two
+	 * @param combinePurchases
+	 * @param inventoryShards
+	 *            the number of stock slices per book, rounded up to a power
+	 *            of two
+	 */
+	public ConcurrentCertainBookStore(int numLockStripes,
+			boolean combinePurchases, int inventoryShards) {
+		if (inventoryShards < 1 || inventoryShards > MAX_INVENTORY_SHARDS) {
+			throw new IllegalArgumentException("inventoryShards = "
+					+ inventoryShards + ", but it must be between 1 and "
+					+ MAX_INVENTORY_SHARDS);
+		}
+		this.inventoryShards = Integer.highestOneBit(inventoryShards * 2 - 1);
+		bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		catalog = new AtomicReference<CatalogSnapshot>(new CatalogSnapshot());
+		pendingBooks = new ConcurrentLinkedQueue<BookStoreBook>();
+		publicationRequests = new AtomicInteger();
+		multiLock = new OrderedMultiLock(numLockStripes);
+		editorPickIndex = new EditorPickIndex();
+		topRatedIndex = new TopRatedIndex();
+		inDemandBooks = new ConcurrentIntHashMap<BookStoreBook>();
+		pagedSnapshots = new RetainedSnapshots(MAX_PAGED_SNAPSHOTS,
+				PAGED_SNAPSHOT_IDLE_MILLIS);
+		if (combinePurchases) {
+			purchaseCombiner = new FlatCombiner<Set<BookCopy>>(
+					new FlatCombiner.Handler<Set<BookCopy>>() {
+						public void handle(
+								List<FlatCombiner.Request<Set<BookCopy>>> batch) {
+							buyBatch(batch);
+						}
+					});
+		}
+	}
+
+	/**
+	 * Returns the current catalog snapshot. It can be read without locks and
+	 * its version identifies the state of the catalog it shows.
+	 *
+	 * @return
+	 */
+	public CatalogSnapshot getCatalogSnapshot() {
+		return catalog.get();
+	}
+
+	/**
+	 * Publishes a new catalog version with the current state of the changed
+	 * books and without the removed ISBNs. Callers must hold the locks of all
+	 * of them.
+	 *
+	 * The books are copied after the current version is read, on every
+	 * attempt, because lock-free purchases may change the stock at any time.
+	 * A version installed later was therefore always copied later, and the
+	 * last version shows every completed change.
+	 *
+	 * @param changedBooks
+	 * @param removedISBNs
+	 */
+	private void publish(Collection<BookStoreBook> changedBooks,
+			Collection<Integer> removedISBNs) {
+		if (changedBooks.isEmpty() && removedISBNs.isEmpty()) {
+			return;
+		}
+		CatalogSnapshot current, next;
+		do {
+			current = catalog.get();
+			List<StockBook> views = new ArrayList<StockBook>(
+					changedBooks.size());
+			for (BookStoreBook book : changedBooks) {
+				views.add(book.immutableStockBook());
+			}
+			next = current.update(views, removedISBNs);
+		} while (!catalog.compareAndSet(current, next));
+	}
+
+	/**
+	 * Publishes a book changed without its lock, by a purchase or a rating,
+	 * and returns once it is published. The book is queued, and only one
+	 * thread at a time publishes the queue, in rounds: if another thread is
+	 * publishing, the caller leaves the book to it and waits for the end of
+	 * a round that started after the book was queued. Every round installs
+	 * all the books queued by then in a single new version, so concurrent
+	 * buyers and raters of different books do not each copy a path of the
+	 * catalog and retry the compare-and-set against each other, and a caller
+	 * never returns before the full scans show its change. A book queued
+	 * several times is read once per round.
+	 *
+	 * The round waited for always runs: the publishing thread only stops
+	 * once it has handled every request made before it checked, and a
+	 * request made after that finds no publisher and publishes itself.
+	 *
+	 * @param book
+	 */
+	private void publishWithoutLock(BookStoreBook book) {
+		book.requestPublication();
+		pendingBooks.add(book);
+		// Any round started from now on publishes the book
+		long round = publicationsStarted + 1;
+		if (publicationRequests.getAndIncrement() != 0) {
+			awaitPublication(round);
+			return;
+		}
+		int requests = 1;
+		do {
+			publicationsStarted++;
+			publishPending();
+			publicationsFinished = publicationsStarted;
+			requests = publicationRequests.addAndGet(-requests);
+		} while (requests != 0);
+	}
+
+	/**
+	 * Waits until the publication round has finished. A round takes a few
+	 * microseconds, so the caller yields to the publishing thread for a while
+	 * before parking between checks. The wait is not cut short by an
+	 * interrupt, since the change is already made; the interrupt status is
+	 * kept.
+	 *
+	 * @param round
+	 */
+	private void awaitPublication(long round) {
+		boolean interrupted = false;
+		int yields = 0;
+		while (publicationsFinished < round) {
+			if (yields < MAX_PUBLICATION_YIELDS) {
+				yields++;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(this, PUBLICATION_PARK_NANOS);
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Publishes the books in the publication queue. A book is only installed
+	 * if no writer held it while it was read, so a writer in the middle of a
+	 * multi book call is never published half done. The books a writer holds
+	 * are published under their read locks once the writer is done.
+	 */
+	private void publishPending() {
+		List<BookStoreBook> books = new ArrayList<BookStoreBook>();
+		BookStoreBook book;
+		while ((book = pendingBooks.poll()) != null) {
+			if (book.startPublication()) {
+				books.add(book);
+			}
+		}
+		if (books.isEmpty()) {
+			return;
+		}
+
+		List<BookStoreBook> heldBooks;
+		CatalogSnapshot current, next;
+		do {
+			current = catalog.get();
+			heldBooks = new ArrayList<BookStoreBook>();
+			List<StockBook> views = new ArrayList<StockBook>(books.size());
+			for (BookStoreBook pending : books) {
+				StampedLock lock = getLock(pending.getISBN());
+				long stamp = lock.tryOptimisticRead();
+				if (bookMap.get(pending.getISBN()) != pending) {
+					continue; // Removed, which must not be undone
+				}
+				StockBook view = pending.immutableStockBook();
+				if (stamp == 0 || !lock.validate(stamp)) {
+					heldBooks.add(pending);
+				} else {
+					views.add(view);
+				}
+			}
+			next = current.update(views, Collections.<Integer> emptyList());
+		} while (!catalog.compareAndSet(current, next));
+
+		for (BookStoreBook held : heldBooks) {
+			StampedLock lock = getLock(held.getISBN());
+			long stamp = lock.readLock();
+			try {
+				if (bookMap.get(held.getISBN()) == held) {
+					publish(Collections.singletonList(held),
+							Collections.<Integer> emptyList());
+				}
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	private StampedLock getLock(int ISBN) {
+		return multiLock.getLock(ISBN);
+	}
+
+	/**
+	 * Returns the average number of purchases applied per batch, or 0 if
+	 * purchases are not combined.
+	 *
+	 * @return
+	 */
+	public double getAveragePurchaseBatchSize() {
+		return purchaseCombiner == null ? 0 : purchaseCombiner
+				.getAverageBatchSize();
+	}
+
+	/**
+	 * Returns the number of lock stripes guarding the books.
+	 *
+	 * @return
+	 */
+	public int getLockStripeCount() {
+		return multiLock.getStripeCount();
+	}
+
+	/**
+	 * Returns the totals of the waits for the book locks so far.
+	 *
+	 * @return
+	 */
+	public OrderedMultiLock.Statistics getLockStatistics() {
+		return multiLock.getStatistics();
+	}
+
+	/**
+	 * Checks that the ISBN is valid and present in the store. Callers that
+	 * check before taking the lock must check again once it is held, since
+	 * the book may have been removed in between.
+	 *
+	 * @param ISBN
+	 * @throws BookStoreException
+	 */
+	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) {
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+					+ BookStoreConstants.INVALID);
+		}
+		if (!bookMap.containsKey(ISBN)) {
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+					+ BookStoreConstants.NOT_AVAILABLE);
+		}
 	}
 
 	public void addBooks(Set<StockBook> bookSet)
 			throws BookStoreException {
 
-		Lock myML = masterLock.writeLock();
-		myML.lock();
-		List<Lock> locks = new ArrayList<Lock>();
-
 		if (bookSet == null) {
-			myML.unlock();
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		// Check if all are there
+		List<Integer> isbns = new ArrayList<Integer>(bookSet.size());
 		for (StockBook book : bookSet) {
 			int ISBN = book.getISBN();
 			String bookTitle = book.getTitle();
@@ -64,110 +415,134 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 					|| BookStoreUtility.isEmpty(bookAuthor)
 					|| BookStoreUtility.isInvalidNoCopies(noCopies)
 					|| bookPrice < 0.0) {
-				myML.unlock();
 				throw new BookStoreException(BookStoreConstants.BOOK
 						+ book.toString() + BookStoreConstants.INVALID);
-			} else if (bookMap.containsKey(ISBN)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.DUPLICATED);
 			}
+			isbns.add(ISBN);
 		}
 
+		// Only the ISBNs being added are locked, the rest of the catalog
+		// stays available
+		OrderedMultiLock.Acquisition locks = multiLock.lock(isbns, true);
+		try {
+			for (Integer ISBN : isbns) {
+				if (bookMap.containsKey(ISBN)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.DUPLICATED);
+				}
+			}
 
-		
-		for (StockBook book : bookSet) {
-			int ISBN = book.getISBN();
-			lockMap.put(ISBN, new ReentrantReadWriteLock());
-			ReadWriteLock newLock = lockMap.get(ISBN);
-			Lock l = newLock.writeLock();
-			l.lock();
-			locks.add(l);
-			
-			bookMap.put(ISBN, new BookStoreBook(book));
-		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
+			List<BookStoreBook> newBooks = new ArrayList<BookStoreBook>(
+					bookSet.size());
+			for (StockBook book : bookSet) {
+				BookStoreBook newBook = new BookStoreBook(book,
+						inventoryShards);
+				bookMap.put(book.getISBN(), newBook);
+				if (newBook.isEditorPick()) {
+					editorPickIndex.add(indexView(newBook));
+				}
+				if (newBook.hadSaleMiss()) {
+					inDemandBooks.put(newBook.getISBN(), newBook);
+				}
+				if (newBook.getTimesRated() > 0) {
+					topRatedIndex.update(newBook, indexView(newBook));
+				}
+				newBooks.add(newBook);
+			}
+			publish(newBooks, Collections.<Integer> emptyList());
+		} finally {
+			locks.release();
 		}
-		myML.unlock();
-		
-		return;
+	}
+
+	/**
+	 * Adds the books in batches through addBooks, see BatchIngester.
+	 */
+	public IngestReport addBooksStreaming(Iterator<StockBook> books,
+			int batchSize) throws BookStoreException {
+		return BatchIngester.ingest(this, books, batchSize);
 	}
 
 	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
-		Lock myML = masterLock.readLock();
-		myML.lock();
 		int ISBN, numCopies;
-		List<Lock> locks = new ArrayList<Lock>();
 
 		if (bookCopiesSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		List<Integer> isbns = new ArrayList<Integer>(bookCopiesSet.size());
 		for (BookCopy bookCopy : bookCopiesSet) {
 			ISBN = bookCopy.getISBN();
-			
 			numCopies = bookCopy.getNumCopies();
-			if (BookStoreUtility.isInvalidISBN(ISBN)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);}
-			if (!bookMap.containsKey(ISBN)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);}
-			
+			validateISBNInStock(ISBN);
 			if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
-				myML.unlock();
 				throw new BookStoreException(BookStoreConstants.NUM_COPIES
-						+ numCopies + BookStoreConstants.INVALID);}
-
+						+ numCopies + BookStoreConstants.INVALID);
+			}
+			isbns.add(ISBN);
 		}
 
-		BookStoreBook book;
-		// Update the number of copies
-		for (BookCopy bookCopy : bookCopiesSet) {
-			ISBN = bookCopy.getISBN();
-			ReadWriteLock newLock = lockMap.get(ISBN);
-			Lock l = newLock.writeLock();
-			l.lock();
-			locks.add(l);
-			numCopies = bookCopy.getNumCopies();
-			book = bookMap.get(ISBN);
-			book.addCopies(numCopies);
-		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
+		OrderedMultiLock.Acquisition locks = multiLock.lock(isbns, true);
+		try {
+			for (Integer isbn : isbns) {
+				validateISBNInStock(isbn);
+			}
+
+			// Update the number of copies
+			List<BookStoreBook> changedBooks = new ArrayList<BookStoreBook>(
+					bookCopiesSet.size());
+			for (BookCopy bookCopy : bookCopiesSet) {
+				BookStoreBook book = bookMap.get(bookCopy.getISBN());
+				book.addCopies(bookCopy.getNumCopies());
+				inDemandBooks.remove(book.getISBN());
+				changedBooks.add(book);
+			}
+			publish(changedBooks, Collections.<Integer> emptyList());
+		} finally {
+			locks.release();
 		}
-		myML.unlock();
 	}
 
 	public List<StockBook> getBooks() {
-		Lock myML = masterLock.readLock();
-		myML.lock();
-		Collection<ReadWriteLock> myLocks = lockMap.values();
-		List<Lock> locks = new ArrayList<Lock>();
-		for(ReadWriteLock lock : myLocks) {
-			Lock l =lock.readLock();
-			l.lock();
-			locks.add(l);
-		}
-		
-		List<StockBook> listBooks = new ArrayList<StockBook>();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		for (BookStoreBook book : bookMapValues) {
-			listBooks.add(book.immutableStockBook());
-		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
-		}
-		myML.unlock();
-		
-		return listBooks;
+		return catalog.get().getBooks();
+	}
+
+	/**
+	 * Returns a page of the catalog without locking. The first page is read
+	 * from the current snapshot, and a cursor to a further page keeps that
+	 * snapshot for the rest of the iteration.
+	 */
+	public BookPage getBooks(String cursor, int pageSize)
+			throws BookStoreException {
+		if (pageSize < 1 || pageSize > BookPage.MAX_PAGE_SIZE) {
+			throw new BookStoreException(BookStoreConstants.PAGE_SIZE
+					+ pageSize + BookStoreConstants.INVALID);
+		}
+
+		CatalogSnapshot snapshot;
+		int lastISBN = 0;
+		if (cursor == null) {
+			snapshot = catalog.get();
+		} else {
+			PageCursor position = PageCursor.parse(cursor);
+			snapshot = pagedSnapshots.get(position.getVersion());
+			if (snapshot == null) {
+				throw new CursorExpiredException(BookStoreConstants.CURSOR
+						+ cursor + BookStoreConstants.EXPIRED);
+			}
+			lastISBN = position.getLastISBN();
+		}
+
+		// One book more than the page tells whether a next page exists
+		List<StockBook> books = snapshot.getBooksAfter(lastISBN, pageSize + 1);
+		if (books.size() <= pageSize) {
+			return new BookPage(books, null);
+		}
+		books.remove(pageSize);
+		pagedSnapshots.retain(snapshot);
+		return new BookPage(books, new PageCursor(snapshot.getVersion(),
+				books.get(pageSize - 1).getISBN()).toString());
 	}
 
 	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
@@ -177,44 +552,35 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 		if (editorPicks == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		Lock myML = masterLock.readLock();
-		myML.lock();
-		int ISBNVal;
-		List<Lock> locks = new ArrayList<Lock>();
-
 
+		List<Integer> isbns = new ArrayList<Integer>(editorPicks.size());
 		for (BookEditorPick editorPickArg : editorPicks) {
-			ISBNVal = editorPickArg.getISBN();
-			
-			
-			if (BookStoreUtility.isInvalidISBN(ISBNVal)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
-						+ BookStoreConstants.INVALID);}
-			if (!bookMap.containsKey(ISBNVal)){
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
-						+ BookStoreConstants.NOT_AVAILABLE);}
-			
-
+			validateISBNInStock(editorPickArg.getISBN());
+			isbns.add(editorPickArg.getISBN());
 		}
 
-		for (BookEditorPick editorPickArg : editorPicks) {
-			ReadWriteLock newLock = lockMap.get(editorPickArg.getISBN());
-			Lock l = newLock.writeLock();
-			l.lock();
-			locks.add(l);
-			
-			bookMap.get(editorPickArg.getISBN()).setEditorPick(
-					editorPickArg.isEditorPick());
-		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
+		OrderedMultiLock.Acquisition locks = multiLock.lock(isbns, true);
+		try {
+			for (Integer ISBN : isbns) {
+				validateISBNInStock(ISBN);
+			}
+
+			List<BookStoreBook> changedBooks = new ArrayList<BookStoreBook>(
+					editorPicks.size());
+			for (BookEditorPick editorPickArg : editorPicks) {
+				BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				if (editorPickArg.isEditorPick()) {
+					editorPickIndex.add(indexView(book));
+				} else {
+					editorPickIndex.remove(book.getISBN());
+				}
+				changedBooks.add(book);
+			}
+			publish(changedBooks, Collections.<Integer> emptyList());
+		} finally {
+			locks.release();
 		}
-		myML.unlock();
-		
-		return;
 	}
 
 	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
@@ -222,115 +588,157 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 		if (bookCopiesToBuy == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		Lock myML = masterLock.readLock();
-		myML.lock(); //good lock
-		// Check that all ISBNs that we buy are there first.
-		int ISBN;
-		List<Lock> locks = new ArrayList<Lock>();
 
-		
-		BookStoreBook book;
-		Boolean saleMiss = false;
+		// Check that all ISBNs that we buy are there first.
+		List<Integer> isbns = new ArrayList<Integer>(bookCopiesToBuy.size());
 		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-			ISBN = bookCopyToBuy.getISBN();
 			if (bookCopyToBuy.getNumCopies() < 0) {
-				for(Lock lock : locks) {
-					lock.unlock();
-				}
-				myML.unlock();
 				throw new BookStoreException(BookStoreConstants.NUM_COPIES
 						+ bookCopyToBuy.getNumCopies()
 						+ BookStoreConstants.INVALID);
 			}
-			if (BookStoreUtility.isInvalidISBN(ISBN)) {
-				for(Lock lock : locks) {
-					lock.unlock();
-				}
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);}
-			if (!bookMap.containsKey(ISBN)) {
-				for(Lock lock : locks) {
-					lock.unlock();
-				}
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);}
-			
-			Lock l = lockMap.get(ISBN).writeLock();
-			l.lock();
-			locks.add(l);
-			
-			book = bookMap.get(ISBN);
-			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-				book.addSaleMiss(); // If we cannot sell the copies of the book
-									// its a miss
-				saleMiss = true;
-			}
+			validateISBNInStock(bookCopyToBuy.getISBN());
+			isbns.add(bookCopyToBuy.getISBN());
 		}
 
-		// We throw exception now since we want to see how many books in the
-		// order incurred misses which is used by books in demand
-		if (saleMiss) {
-			for(Lock lock : locks) {
-				lock.unlock();
-			}
-			myML.unlock();
-			throw new BookStoreException(BookStoreConstants.BOOK
-					+ BookStoreConstants.NOT_AVAILABLE);}
+		if (isbns.size() == 1
+				&& buyWithoutLock(bookCopiesToBuy.iterator().next())) {
+			return;
+		}
 
-		// Then make purchase
-		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-			book = bookMap.get(bookCopyToBuy.getISBN());
-			book.buyCopies(bookCopyToBuy.getNumCopies());
+		if (purchaseCombiner != null) {
+			purchaseCombiner.submit(bookCopiesToBuy);
+			return;
 		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
+
+		List<BookStoreBook> changedBooks = new ArrayList<BookStoreBook>(
+				bookCopiesToBuy.size());
+		OrderedMultiLock.Acquisition locks = multiLock.lock(isbns, true);
+		try {
+			buyWithLock(bookCopiesToBuy, changedBooks);
+		} finally {
+			publish(changedBooks, Collections.<Integer> emptyList());
+			locks.release();
 		}
-		myML.unlock();
-		return;
 	}
 
-
-	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
-			throws BookStoreException {
-		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+	/**
+	 * Buys all the copies or none of them. Callers must hold the write locks
+	 * of the books, and publish the changed books before releasing them.
+	 *
+	 * @param bookCopiesToBuy
+	 * @param changedBooks
+	 *            receives the books bought, or the books that missed a sale
+	 *            if the purchase failed
+	 * @throws BookStoreException
+	 */
+	private void buyWithLock(Set<BookCopy> bookCopiesToBuy,
+			List<BookStoreBook> changedBooks) throws BookStoreException {
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			validateISBNInStock(bookCopyToBuy.getISBN());
 		}
-		Lock myML = masterLock.readLock();
-		myML.lock();
 
-		List<Lock> locks = new ArrayList<Lock>();
+		// Reserve the copies of every book. Lock-free purchases may
+		// still take copies, but none can be reserved and then lost.
+		BookStoreBook book;
+		List<BookCopy> reserved = new ArrayList<BookCopy>(
+				bookCopiesToBuy.size());
+		List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			book = bookMap.get(bookCopyToBuy.getISBN());
+			if (bookCopyToBuy.getNumCopies() == 0) {
+				continue;
+			}
+			if (book.buyCopies(bookCopyToBuy.getNumCopies())) {
+				reserved.add(bookCopyToBuy);
+			} else {
+				book.addSaleMiss(); // If we cannot sell the copies of the
+									// book its a miss
+				inDemandBooks.put(book.getISBN(), book);
+				missedBooks.add(book);
+			}
+		}
 
-		
-		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN)){
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);}
-			if (!bookMap.containsKey(ISBN)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);}
+		// We throw exception now since we want to see how many books in
+		// the order incurred misses which is used by books in demand
+		if (!missedBooks.isEmpty()) {
+			for (BookCopy bookCopy : reserved) {
+				bookMap.get(bookCopy.getISBN()).returnCopies(
+						bookCopy.getNumCopies());
+			}
+			changedBooks.addAll(missedBooks);
+			throw new BookStoreException(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE);
+		}
 
+		// The reserved copies are the purchase
+		for (BookCopy bookCopy : reserved) {
+			changedBooks.add(bookMap.get(bookCopy.getISBN()));
 		}
+	}
 
-		List<StockBook> listBooks = new ArrayList<StockBook>();
+	/**
+	 * Applies a batch of purchases collected by the purchase combiner. The
+	 * books of the whole batch are locked once and published once, and each
+	 * purchase still succeeds or fails on its own.
+	 *
+	 * @param batch
+	 */
+	private void buyBatch(List<FlatCombiner.Request<Set<BookCopy>>> batch) {
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (FlatCombiner.Request<Set<BookCopy>> request : batch) {
+			for (BookCopy bookCopy : request.getInput()) {
+				isbns.add(bookCopy.getISBN());
+			}
+		}
 
-		for (Integer ISBN : isbnSet) {
-			Lock l = lockMap.get(ISBN).readLock();
-			l.lock();
-			locks.add(l);
-			listBooks.add(bookMap.get(ISBN).immutableStockBook());
+		List<BookStoreBook> changedBooks = new ArrayList<BookStoreBook>(
+				isbns.size());
+		OrderedMultiLock.Acquisition locks = multiLock.lock(isbns, true);
+		try {
+			for (FlatCombiner.Request<Set<BookCopy>> request : batch) {
+				try {
+					buyWithLock(request.getInput(), changedBooks);
+				} catch (BookStoreException ex) {
+					request.fail(ex);
+				}
+			}
+		} finally {
+			publish(changedBooks, Collections.<Integer> emptyList());
+			locks.release();
 		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
+	}
+
+	/**
+	 * Buys the copies of a single book with a compare-and-set on its stock,
+	 * without locking. Returns false if the purchase has to go through the
+	 * locked path instead, in particular when the stock looks too low, which
+	 * may be caused by the reservation of a multi book purchase or by the
+	 * stock slice of the thread running dry.
+	 *
+	 * @param bookCopyToBuy
+	 * @return
+	 */
+	private boolean buyWithoutLock(BookCopy bookCopyToBuy) {
+		if (bookCopyToBuy.getNumCopies() == 0) {
+			return false;
+		}
+		BookStoreBook book = bookMap.get(bookCopyToBuy.getISBN());
+		if (book == null
+				|| !book.buyLocalCopies(bookCopyToBuy.getNumCopies())) {
+			return false;
+		}
+		publishWithoutLock(book);
+		return true;
+	}
+
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
+			throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		myML.unlock();
 
-		return listBooks;
+		return readBooks(isbnSet, STOCK_BOOK_VIEW);
 	}
 
 	public List<Book> getBooks(Set<Integer> isbnSet)
@@ -338,184 +746,255 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		Lock myML = masterLock.readLock();
-		myML.lock();
 
-		List<Lock> locks = new ArrayList<Lock>();
+		return readBooks(isbnSet, BOOK_VIEW);
+	}
 
-		
-		// Check that all ISBNs that we rate are there first.
+	/**
+	 * Returns a view of every book in isbnSet. The books are first read
+	 * without locking, which succeeds if no writer locked any of them in the
+	 * meantime. Otherwise the read locks are taken and the books are read
+	 * again.
+	 *
+	 * @param isbnSet
+	 * @param view
+	 *            creates the returned copy of a book
+	 * @return
+	 * @throws BookStoreException
+	 */
+	private <T> List<T> readBooks(Set<Integer> isbnSet,
+			Function<BookStoreBook, T> view) throws BookStoreException {
 		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);}
-			if (!bookMap.containsKey(ISBN)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);}
-			
+			validateISBNInStock(ISBN);
+		}
 
+		List<T> listBooks = tryOptimisticReadBooks(isbnSet, view);
+		if (listBooks != null) {
+			return listBooks;
 		}
 
-		List<Book> listBooks = new ArrayList<Book>();
+		listBooks = new ArrayList<T>(isbnSet.size());
+		OrderedMultiLock.Acquisition locks = multiLock.lock(isbnSet, false);
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+				listBooks.add(view.apply(bookMap.get(ISBN)));
+			}
+		} finally {
+			locks.release();
+		}
+		return listBooks;
+	}
 
-		// Get the books
+	/**
+	 * Reads the books under optimistic stamps and validates all of them once
+	 * every book has been read, so the result is a state that held at a
+	 * single point in time.
+	 *
+	 * @return the books, or null if a writer interfered or a book is missing
+	 */
+	private <T> List<T> tryOptimisticReadBooks(Set<Integer> isbnSet,
+			Function<BookStoreBook, T> view) {
+		StampedLock[] locks = new StampedLock[isbnSet.size()];
+		long[] stamps = new long[locks.length];
+		List<T> listBooks = new ArrayList<T>(locks.length);
+		int i = 0;
 		for (Integer ISBN : isbnSet) {
-			Lock l = lockMap.get(ISBN).readLock();
-			l.lock();
-			locks.add(l);
-			listBooks.add(bookMap.get(ISBN).immutableBook());
-		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
+			StampedLock lock = getLock(ISBN);
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				return null;
+			}
+			BookStoreBook book = bookMap.get(ISBN);
+			if (book == null) {
+				return null;
+			}
+			listBooks.add(view.apply(book));
+			locks[i] = lock;
+			stamps[i] = stamp;
+			i++;
+		}
+		for (i = 0; i < locks.length; i++) {
+			if (!locks[i].validate(stamps[i])) {
+				return null;
+			}
 		}
-		myML.unlock();
 		return listBooks;
 	}
 
+	/**
+	 * Returns numBooks random editor picks, sampled from the editor pick
+	 * index without scanning the catalog or locking any book.
+	 */
 	public List<Book> getEditorPicks(int numBooks)
 			throws BookStoreException {
 		if (numBooks < 0) {
 			throw new BookStoreException("numBooks = " + numBooks
 					+ ", but it must be positive");
 		}
-		Lock myML = masterLock.readLock();
-		myML.lock();
-
-		List<Lock> locks = new ArrayList<Lock>();
-		Collection<ReadWriteLock> allLocks = lockMap.values();
-		
-		for(ReadWriteLock lock : allLocks) {
-			Lock l = lock.readLock();
-			l.lock();
-			locks.add(l);
-		}
-
-
-		List<BookStoreBook> listAllEditorPicks = new ArrayList<BookStoreBook>();
-		List<Book> listEditorPicks = new ArrayList<Book>();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet()
-				.iterator();
-		BookStoreBook book;
-
-		// Get all books that are editor picks
-		while (it.hasNext()) {
-			Entry<Integer, BookStoreBook> pair = (Entry<Integer, BookStoreBook>) it
-					.next();
-			book = (BookStoreBook) pair.getValue();
-			if (book.isEditorPick()) {
-				listAllEditorPicks.add(book);
-			}
-		}
-
-		// Find numBooks random indices of books that will be picked
-		Random rand = new Random();
-		Set<Integer> tobePicked = new HashSet<Integer>();
-		int rangePicks = listAllEditorPicks.size();
-		if (rangePicks <= numBooks) {
-			// We need to add all the books
-			for (int i = 0; i < listAllEditorPicks.size(); i++) {
-				tobePicked.add(i);
-			}
-		} else {
-			// We need to pick randomly the books that need to be returned
-			int randNum;
-			while (tobePicked.size() < numBooks) {
-				randNum = rand.nextInt(rangePicks);
-				tobePicked.add(randNum);
-			}
-		}
-
-		// Get the numBooks random books
-		for (Integer index : tobePicked) {
-			book = listAllEditorPicks.get(index);
-			listEditorPicks.add(book.immutableBook());
-		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
-		}
-		myML.unlock();
-		return listEditorPicks;
+		return editorPickIndex.sample(numBooks);
+	}
 
+	/**
+	 * Returns the view of a book kept in the editor pick and top rated
+	 * indexes, made of the fields of the book that never change
+	 */
+	private static Book indexView(BookStoreBook book) {
+		return book.immutableBook();
 	}
 
+	/**
+	 * Returns the numBooks books with the highest average rating, read from
+	 * the top rated index in time proportional to numBooks. Books that were
+	 * never rated are not included, and books with the same average are
+	 * listed by ascending ISBN.
+	 */
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks)
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+		return topRatedIndex.getTopRated(numBooks);
 	}
 
+	/**
+	 * Returns the books that had a sale miss since their copies were last
+	 * replenished, as published in the current catalog snapshot. Only the
+	 * in-demand books are visited, not the catalog.
+	 */
 	@Override
 	public List<StockBook> getBooksInDemand()
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		CatalogSnapshot snapshot = catalog.get();
+		List<StockBook> booksInDemand = new ArrayList<StockBook>();
+		for (int ISBN : inDemandBooks.keys()) {
+			StockBook book = snapshot.get(ISBN);
+			if (book != null && book.getSaleMisses() > 0) {
+				booksInDemand.add(book);
+			}
+		}
+		return booksInDemand;
 	}
 
+	/**
+	 * Reads the counts of the book without locking it, since they are only
+	 * ever incremented.
+	 */
+	@Override
+	public List<Long> getRatingHistogram(int ISBN) throws BookStoreException {
+		validateISBNInStock(ISBN);
+		BookStoreBook book = bookMap.get(ISBN);
+		if (book == null) {
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+					+ BookStoreConstants.NOT_AVAILABLE);
+		}
+		return toList(book.getRatingHistogram());
+	}
+
+	private static List<Long> toList(long[] counts) {
+		List<Long> list = new ArrayList<Long>(counts.length);
+		for (long count : counts) {
+			list.add(count);
+		}
+		return list;
+	}
+
+	/**
+	 * Applies all the ratings or none of them. The ratings are validated
+	 * first and then added to the books without locking them, so a burst of
+	 * ratings never holds up purchases or lookups of the same books. Each
+	 * rater then updates the top rated index, which indexes the latest totals
+	 * of the book whatever the order of the updates, and publishes the books
+	 * to the catalog snapshot the same way as after a lock-free purchase, so
+	 * the ratings are in both once the call returns.
+	 *
+	 * A book removed while it is rated loses the ratings.
+	 */
 	@Override
 	public void rateBooks(Set<BookRating> bookRating)
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
-	}
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
 
-	public void removeAllBooks() throws BookStoreException {
-		Lock myML = masterLock.writeLock();
-		myML.lock();
+		List<BookStoreBook> books = new ArrayList<BookStoreBook>(
+				bookRating.size());
+		for (BookRating rating : bookRating) {
+			validateISBNInStock(rating.getISBN());
+			if (BookStoreUtility.isInvalidRating(rating.getRating())) {
+				throw new BookStoreException(BookStoreConstants.RATING
+						+ rating.getRating() + BookStoreConstants.INVALID);
+			}
+			BookStoreBook book = bookMap.get(rating.getISBN());
+			if (book == null) {
+				throw new BookStoreException(BookStoreConstants.ISBN
+						+ rating.getISBN() + BookStoreConstants.NOT_AVAILABLE);
+			}
+			books.add(book);
+		}
 
-		List<Lock> locks = new ArrayList<Lock>();
-		Collection<ReadWriteLock> allLocks = lockMap.values();
-		for(ReadWriteLock lock : allLocks) {
-			Lock l = lock.writeLock();
-			l.lock();
-			locks.add(l);
+		Iterator<BookRating> ratings = bookRating.iterator();
+		for (BookStoreBook book : books) {
+			book.addRating(ratings.next().getRating());
 		}
-		
-		bookMap.clear();
-		lockMap.clear();
-		
-		for(Lock lock : locks) {
-			lock.unlock();
+		for (BookStoreBook book : books) {
+			topRatedIndex.update(book, indexView(book));
+			publishWithoutLock(book);
+		}
+	}
+
+	/**
+	 * Removes every book. All lock stripes are held for the call, so it
+	 * replaces the catalog with an empty one in a single step.
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		OrderedMultiLock.Acquisition locks = multiLock.lockAll(true);
+		try {
+			for (int ISBN : bookMap.keys()) {
+				bookMap.remove(ISBN).markRemoved();
+				inDemandBooks.remove(ISBN);
+			}
+			editorPickIndex.clear();
+			topRatedIndex.clear();
+			pagedSnapshots.clear();
+			CatalogSnapshot current;
+			do {
+				current = catalog.get();
+			} while (!catalog.compareAndSet(current, current.clear()));
+		} finally {
+			locks.release();
 		}
-		myML.unlock();
-		
 	}
 
 	public void removeBooks(Set<Integer> isbnSet)
 			throws BookStoreException {
 
-
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		Lock myML = masterLock.writeLock();
-		myML.lock();
-		List<Lock> locks = new ArrayList<Lock>();
 
-		
 		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN)) {
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);}
-			if (!bookMap.containsKey(ISBN)){
-				myML.unlock();
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);}
-		}
-
-		for (int isbn : isbnSet) {
-			Lock l = lockMap.get(isbn).writeLock();
-			l.lock();
-			locks.add(l);
-			bookMap.remove(isbn);
-			lockMap.remove(isbn);
-		}
-		
-		for(Lock lock : locks) {
-			lock.unlock();
-		}
-		myML.unlock();
+			validateISBNInStock(ISBN);
+		}
+
+		OrderedMultiLock.Acquisition locks = multiLock.lock(isbnSet, true);
+		try {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			for (Integer ISBN : isbnSet) {
+				BookStoreBook book = bookMap.remove(ISBN);
+				book.markRemoved();
+				editorPickIndex.remove(ISBN);
+				topRatedIndex.remove(book);
+				inDemandBooks.remove(ISBN);
+			}
+			publish(Collections.<BookStoreBook> emptyList(), isbnSet);
+		} finally {
+			locks.release();
+		}
 	}
 }
@@ -0,0 +1,129 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * EditorPickIndex keeps the books that are editor picks, so picks can be
+ * sampled without scanning the catalog.
+ *
+ * The picks are held in a dense array together with a map from ISBN to
+ * position in the array. A pick is added at the end and removed by moving
+ * the last pick into its place, so both take constant time. Callers must
+ * serialize the changes of an ISBN, the index only guards its own arrays.
+ */
+public final class EditorPickIndex {
+	private final StampedLock lock = new StampedLock();
+	private final Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+	private Book[] picks = new Book[16];
+	private int size;
+
+	/**
+	 * Adds the book to the picks, or replaces it if it is one already.
+	 *
+	 * @param book
+	 */
+	public void add(Book book) {
+		long stamp = lock.writeLock();
+		try {
+			Integer position = positions.get(book.getISBN());
+			if (position != null) {
+				picks[position] = book;
+				return;
+			}
+			if (size == picks.length) {
+				picks = Arrays.copyOf(picks, size * 2);
+			}
+			positions.put(book.getISBN(), size);
+			picks[size++] = book;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the book with the ISBN from the picks if it is one.
+	 *
+	 * @param ISBN
+	 */
+	public void remove(int ISBN) {
+		long stamp = lock.writeLock();
+		try {
+			Integer position = positions.remove(ISBN);
+			if (position == null) {
+				return;
+			}
+			Book last = picks[--size];
+			picks[size] = null;
+			if (position != size) {
+				picks[position] = last;
+				positions.put(last.getISBN(), position);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes all picks.
+	 */
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			positions.clear();
+			picks = new Book[16];
+			size = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns numBooks distinct picks chosen uniformly at random, or all
+	 * picks if there are not that many.
+	 *
+	 * The positions are drawn with Floyd's algorithm, which takes one random
+	 * number per pick returned whatever the number of picks.
+	 *
+	 * @param numBooks
+	 * @return
+	 */
+	public List<Book> sample(int numBooks) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long stamp = lock.readLock();
+		try {
+			if (numBooks >= size) {
+				return new ArrayList<Book>(Arrays.asList(picks).subList(0, size));
+			}
+			List<Book> sample = new ArrayList<Book>(numBooks);
+			Set<Integer> chosen = new HashSet<Integer>();
+			for (int j = size - numBooks; j < size; j++) {
+				int position = random.nextInt(j + 1);
+				if (!chosen.add(position)) {
+					chosen.add(j);
+					position = j;
+				}
+				sample.add(picks[position]);
+			}
+			return sample;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+}
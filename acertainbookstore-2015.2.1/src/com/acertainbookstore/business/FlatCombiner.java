@@ -0,0 +1,193 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * FlatCombiner runs the requests of many threads in batches on a single
+ * thread at a time.
+ *
+ * A caller queues its request and then tries to become the combiner. The
+ * combiner drains the queue and hands the requests to the handler as one
+ * batch, so the handler can apply all of them inside one critical section,
+ * and then wakes every caller with its own outcome. A caller that is not
+ * the combiner parks until its request is done, or until the combiner
+ * steps down with requests still queued and wakes the caller of the first
+ * one to take over.
+ *
+ * The wait is not cut short by an interrupt, since the request may already
+ * be in a batch; the interrupt status is cleared while waiting, so the
+ * caller does not spin on a park that returns at once, and restored when
+ * the request is done.
+ *
+ * @param <T>
+ *            the type of the requests
+ */
+public final class FlatCombiner<T> {
+	public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+	// Rounds a combiner runs before leaving the queue to another thread
+	private static final int MAX_ROUNDS = 8;
+
+	private final Handler<T> handler;
+	private final int maxBatchSize;
+	private final ConcurrentLinkedQueue<Request<T>> queue = new ConcurrentLinkedQueue<Request<T>>();
+	private final ReentrantLock combinerLock = new ReentrantLock();
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+
+	/**
+	 * Applies a batch of requests.
+	 *
+	 * @param <T>
+	 */
+	public interface Handler<T> {
+		/**
+		 * Applies every request of the batch, failing the ones that cannot
+		 * be applied with Request.fail.
+		 *
+		 * @param batch
+		 */
+		public void handle(List<Request<T>> batch);
+	}
+
+	/**
+	 * Creates a combiner with the default batch size.
+	 *
+	 * @param handler
+	 */
+	public FlatCombiner(Handler<T> handler) {
+		this(handler, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates a combiner.
+	 *
+	 * @param handler
+	 * @param maxBatchSize
+	 *            the largest number of requests handed to the handler at once
+	 */
+	public FlatCombiner(Handler<T> handler, int maxBatchSize) {
+		this.handler = handler;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Runs the request and waits until it is done, keeping the interrupt
+	 * status of the caller.
+	 *
+	 * @param input
+	 * @throws BookStoreException
+	 *             if the handler failed the request
+	 */
+	public void submit(T input) throws BookStoreException {
+		Request<T> request = new Request<T>(input, Thread.currentThread());
+		queue.add(request);
+		boolean interrupted = false;
+		while (!request.done) {
+			if (combinerLock.tryLock()) {
+				try {
+					combine();
+				} finally {
+					combinerLock.unlock();
+				}
+				// A request queued while this thread was combining may have
+				// a caller that found the lock taken and parked
+				Request<T> next = queue.peek();
+				if (next != null) {
+					LockSupport.unpark(next.waiter);
+				}
+			} else {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (request.error != null) {
+			throw request.error;
+		}
+		if (request.runtimeError != null) {
+			throw request.runtimeError;
+		}
+	}
+
+	private void combine() {
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			List<Request<T>> batch = new ArrayList<Request<T>>();
+			Request<T> request;
+			while (batch.size() < maxBatchSize
+					&& (request = queue.poll()) != null) {
+				batch.add(request);
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+
+			try {
+				handler.handle(batch);
+			} catch (RuntimeException ex) {
+				for (Request<T> failed : batch) {
+					failed.runtimeError = ex;
+				}
+			}
+			batches.increment();
+			requests.add(batch.size());
+			for (Request<T> done : batch) {
+				done.done = true;
+				LockSupport.unpark(done.waiter);
+			}
+		}
+	}
+
+	/**
+	 * Returns the average number of requests handled per batch so far.
+	 *
+	 * @return
+	 */
+	public double getAverageBatchSize() {
+		long numBatches = batches.sum();
+		return numBatches == 0 ? 0 : requests.sum() / (double) numBatches;
+	}
+
+	/**
+	 * A queued request and its outcome.
+	 *
+	 * @param <T>
+	 */
+	public static final class Request<T> {
+		private final T input;
+		private final Thread waiter;
+		private BookStoreException error;
+		private RuntimeException runtimeError;
+		// Written after the outcome, which it publishes to the waiter
+		private volatile boolean done;
+
+		private Request(T input, Thread waiter) {
+			this.input = input;
+			this.waiter = waiter;
+		}
+
+		public T getInput() {
+			return input;
+		}
+
+		/**
+		 * Completes the request with the exception, which its caller throws.
+		 *
+		 * @param error
+		 */
+		public void fail(BookStoreException error) {
+			this.error = error;
+		}
+	}
+}
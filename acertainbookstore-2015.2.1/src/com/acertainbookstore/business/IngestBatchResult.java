@@ -0,0 +1,63 @@
+package com.acertainbookstore.business;
+
+/**
+ * The outcome of one batch of a streaming ingest.
+ * 
+ */
+public class IngestBatchResult {
+	private int batch;
+	private int numBooks;
+	private String error;
+
+	/**
+	 * Creates the result of a batch.
+	 * 
+	 * @param batch
+	 *            the number of the batch, counting from 0
+	 * @param numBooks
+	 *            the number of books in the batch
+	 * @param error
+	 *            why the batch was rejected, or null if its books were added
+	 */
+	public IngestBatchResult(int batch, int numBooks, String error) {
+		this.batch = batch;
+		this.numBooks = numBooks;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the number of the batch, counting from 0.
+	 * 
+	 * @return
+	 */
+	public int getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Returns the number of books in the batch.
+	 * 
+	 * @return
+	 */
+	public int getNumBooks() {
+		return numBooks;
+	}
+
+	/**
+	 * Returns why the batch was rejected, or null if its books were added.
+	 * 
+	 * @return
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Returns true if the books of the batch were added.
+	 * 
+	 * @return
+	 */
+	public boolean isAdded() {
+		return error == null;
+	}
+}
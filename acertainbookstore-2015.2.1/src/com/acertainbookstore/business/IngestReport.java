@@ -0,0 +1,97 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of a streaming ingest: the result of every batch, and whether
+ * the whole stream of books could be read. A batch is one call to addBooks,
+ * or a single book rejected on its own.
+ * 
+ */
+public class IngestReport {
+	private List<IngestBatchResult> batches;
+	private long booksAdded;
+	private long booksRejected;
+	private String streamError;
+
+	/**
+	 * Creates an empty report.
+	 */
+	public IngestReport() {
+		this.batches = new ArrayList<IngestBatchResult>();
+	}
+
+	/**
+	 * Records the outcome of the next batch.
+	 * 
+	 * @param numBooks
+	 * @param error
+	 *            why the batch was rejected, or null if its books were added
+	 */
+	public void addBatch(int numBooks, String error) {
+		batches.add(new IngestBatchResult(batches.size(), numBooks, error));
+		if (error == null) {
+			booksAdded += numBooks;
+		} else {
+			booksRejected += numBooks;
+		}
+	}
+
+	/**
+	 * Records that the stream of books broke off, so that books after the
+	 * last batch were never read.
+	 * 
+	 * @param streamError
+	 */
+	public void setStreamError(String streamError) {
+		this.streamError = streamError;
+	}
+
+	/**
+	 * Returns the results of the batches in the order they were applied.
+	 * 
+	 * @return
+	 */
+	public List<IngestBatchResult> getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Returns the number of books in the batches that were added.
+	 * 
+	 * @return
+	 */
+	public long getBooksAdded() {
+		return booksAdded;
+	}
+
+	/**
+	 * Returns the number of books in the batches that were rejected, which is
+	 * the number of books rejected.
+	 * 
+	 * @return
+	 */
+	public long getBooksRejected() {
+		return booksRejected;
+	}
+
+	/**
+	 * Returns why the stream of books broke off, or null if it was read to
+	 * the end.
+	 * 
+	 * @return
+	 */
+	public String getStreamError() {
+		return streamError;
+	}
+
+	/**
+	 * Returns true if the whole stream was read and every batch was added.
+	 * 
+	 * @return
+	 */
+	public boolean isComplete() {
+		return streamError == null && booksRejected == 0;
+	}
+}
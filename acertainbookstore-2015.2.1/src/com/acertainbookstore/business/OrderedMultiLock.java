@@ -0,0 +1,344 @@
+package com.acertainbookstore.business;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * OrderedMultiLock guards the ISBNs with a fixed table of lock stripes and
+ * acquires the stripes of a set of ISBNs for one operation.
+ *
+ * Every ISBN hashes onto one of a power of two number of StampedLocks, so
+ * the memory taken by the locks does not grow with the catalog. ISBNs that
+ * share a stripe share its lock, and a stripe is only acquired once however
+ * many of the ISBNs of an operation land on it. More stripes mean fewer
+ * unrelated books waiting on each other at the cost of more locks.
+ *
+ * The stripes are sorted and locked in ascending order, so two operations
+ * can never wait on each other in a cycle. The first lock is waited for
+ * normally. Every later lock is only waited for up to a bounded time, since
+ * the caller already holds locks that others may need. If that time runs
+ * out, all held locks are released and the caller backs off for a random,
+ * exponentially growing delay before starting over. A large basket therefore
+ * never sits on half of its locks behind one busy title.
+ *
+ * Locking the whole table is the exception: it waits for every stripe in
+ * turn and never backs off, since an operation that needs all the stripes
+ * would otherwise keep losing the ones it held to the operations it waits
+ * for, and could starve. The ascending order still rules out a deadlock.
+ *
+ * Every acquisition records how long it waited and how many times it started
+ * over, and the totals are kept for the lock as a whole.
+ */
+public final class OrderedMultiLock {
+	public static final long DEFAULT_TRY_LOCK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+	public static final long DEFAULT_MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(10);
+	public static final long DEFAULT_MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	public static final int DEFAULT_STRIPES = 1024;
+	public static final int MAX_STRIPES = 1 << 16;
+
+	private final StampedLock[] stripes;
+	private final int mask;
+	private final long tryLockNanos;
+	private final long minBackoffNanos;
+	private final long maxBackoffNanos;
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder contendedAcquisitions = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+
+	/**
+	 * Creates a multi lock with the default number of stripes and timeouts.
+	 */
+	public OrderedMultiLock() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Creates a multi lock using the default timeouts.
+	 *
+	 * @param numStripes
+	 *            the number of stripes, rounded up to a power of two
+	 */
+	public OrderedMultiLock(int numStripes) {
+		this(numStripes, DEFAULT_TRY_LOCK_NANOS, DEFAULT_MIN_BACKOFF_NANOS,
+				DEFAULT_MAX_BACKOFF_NANOS);
+	}
+
+	/**
+	 * Creates a multi lock.
+	 *
+	 * @param numStripes
+	 *            the number of stripes, rounded up to a power of two
+	 * @param tryLockNanos
+	 *            how long to wait for a lock while holding others
+	 * @param minBackoffNanos
+	 *            the first back off delay
+	 * @param maxBackoffNanos
+	 *            the upper bound of the back off delay
+	 */
+	public OrderedMultiLock(int numStripes, long tryLockNanos,
+			long minBackoffNanos, long maxBackoffNanos) {
+		if (numStripes < 1 || numStripes > MAX_STRIPES) {
+			throw new IllegalArgumentException("numStripes = " + numStripes
+					+ ", but it must be between 1 and " + MAX_STRIPES);
+		}
+		int size = Integer.highestOneBit(numStripes * 2 - 1);
+		stripes = new StampedLock[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new StampedLock();
+		}
+		mask = size - 1;
+		this.tryLockNanos = tryLockNanos;
+		this.minBackoffNanos = minBackoffNanos;
+		this.maxBackoffNanos = maxBackoffNanos;
+	}
+
+	/**
+	 * Returns the number of stripes.
+	 *
+	 * @return
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Returns the stripe guarding the ISBN.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public StampedLock getLock(int ISBN) {
+		return stripes[stripeOf(ISBN)];
+	}
+
+	private int stripeOf(int ISBN) {
+		// Spread consecutive ISBNs over the whole table
+		int h = ISBN * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * Locks the stripes of all the ISBNs, blocking until every one is held.
+	 *
+	 * @param isbns
+	 * @param write
+	 *            true to take the write locks, false for the read locks
+	 * @return the held locks, which must be released by the caller
+	 */
+	public Acquisition lock(Collection<Integer> isbns, boolean write) {
+		int[] sortedStripes = new int[isbns.size()];
+		int n = 0;
+		for (Integer ISBN : isbns) {
+			sortedStripes[n++] = stripeOf(ISBN);
+		}
+		Arrays.sort(sortedStripes);
+
+		// Resolve each distinct stripe once, in stripe order. Locks are not
+		// reentrant, so a stripe shared by two ISBNs must only be locked once.
+		StampedLock[] locks = new StampedLock[n];
+		int numLocks = 0;
+		for (int i = 0; i < n; i++) {
+			if (i > 0 && sortedStripes[i] == sortedStripes[i - 1]) {
+				continue;
+			}
+			locks[numLocks++] = stripes[sortedStripes[i]];
+		}
+		return lock(Arrays.copyOf(locks, numLocks), write);
+	}
+
+	/**
+	 * Locks every stripe, which excludes all other lockers of the table. The
+	 * stripes are taken in ascending order, each one blocking until it is
+	 * held, without backing off.
+	 *
+	 * @param write
+	 * @return the held locks, which must be released by the caller
+	 */
+	public Acquisition lockAll(boolean write) {
+		StampedLock[] locks = stripes.clone();
+		long start = System.nanoTime();
+		long[] stamps = new long[locks.length];
+		for (int i = 0; i < locks.length; i++) {
+			stamps[i] = write ? locks[i].writeLock() : locks[i].readLock();
+		}
+		return acquired(locks, stamps, System.nanoTime() - start, 1);
+	}
+
+	private Acquisition lock(StampedLock[] locks, boolean write) {
+		int numLocks = locks.length;
+		long start = System.nanoTime();
+		long[] stamps = new long[numLocks];
+		int attempts = 1;
+		boolean interrupted = false;
+		long backoff = minBackoffNanos;
+		while (true) {
+			int held = 0;
+			while (held < numLocks) {
+				StampedLock lock = locks[held];
+				long stamp;
+				if (held == 0) {
+					stamp = write ? lock.writeLock() : lock.readLock();
+				} else {
+					try {
+						stamp = write ? lock.tryWriteLock(tryLockNanos,
+								TimeUnit.NANOSECONDS) : lock.tryReadLock(
+								tryLockNanos, TimeUnit.NANOSECONDS);
+					} catch (InterruptedException ex) {
+						interrupted = true;
+						stamp = 0;
+					}
+				}
+				if (stamp == 0) {
+					break;
+				}
+				stamps[held++] = stamp;
+			}
+			if (held == numLocks) {
+				break;
+			}
+
+			// Give up everything held and let the other operation through
+			unlock(locks, stamps, held);
+			attempts++;
+			LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(
+					backoff) + 1);
+			backoff = Math.min(backoff * 2, maxBackoffNanos);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return acquired(locks, stamps, System.nanoTime() - start, attempts);
+	}
+
+	/**
+	 * Records an acquisition in the statistics and returns it
+	 */
+	private Acquisition acquired(StampedLock[] locks, long[] stamps,
+			long waited, int attempts) {
+		acquisitions.increment();
+		waitNanos.add(waited);
+		if (attempts > 1) {
+			contendedAcquisitions.increment();
+			retries.add(attempts - 1);
+		}
+		return new Acquisition(locks, stamps, waited, attempts);
+	}
+
+	private static void unlock(StampedLock[] locks, long[] stamps, int held) {
+		for (int i = held - 1; i >= 0; i--) {
+			locks[i].unlock(stamps[i]);
+		}
+	}
+
+	/**
+	 * Returns the totals over all acquisitions so far.
+	 *
+	 * @return
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(acquisitions.sum(), contendedAcquisitions.sum(),
+				retries.sum(), waitNanos.sum());
+	}
+
+	/**
+	 * The locks held by one operation and what it took to get them.
+	 */
+	public static final class Acquisition {
+		private final StampedLock[] locks;
+		private final long[] stamps;
+		private final long waitNanos;
+		private final int attempts;
+
+		private Acquisition(StampedLock[] locks, long[] stamps,
+				long waitNanos, int attempts) {
+			this.locks = locks;
+			this.stamps = stamps;
+			this.waitNanos = waitNanos;
+			this.attempts = attempts;
+		}
+
+		/**
+		 * Releases all the locks.
+		 */
+		public void release() {
+			unlock(locks, stamps, stamps.length);
+		}
+
+		/**
+		 * Returns how long it took to acquire all the locks.
+		 *
+		 * @return
+		 */
+		public long getWaitNanos() {
+			return waitNanos;
+		}
+
+		/**
+		 * Returns how many times the acquisition started over, plus one.
+		 *
+		 * @return
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+	}
+
+	/**
+	 * Totals of the acquisitions of a multi lock.
+	 */
+	public static final class Statistics {
+		private final long acquisitions;
+		private final long contendedAcquisitions;
+		private final long retries;
+		private final long waitNanos;
+
+		private Statistics(long acquisitions, long contendedAcquisitions,
+				long retries, long waitNanos) {
+			this.acquisitions = acquisitions;
+			this.contendedAcquisitions = contendedAcquisitions;
+			this.retries = retries;
+			this.waitNanos = waitNanos;
+		}
+
+		public long getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * Returns the number of acquisitions that had to back off at least
+		 * once.
+		 *
+		 * @return
+		 */
+		public long getContendedAcquisitions() {
+			return contendedAcquisitions;
+		}
+
+		public long getRetries() {
+			return retries;
+		}
+
+		public long getWaitNanos() {
+			return waitNanos;
+		}
+
+		public String toString() {
+			return "acquisitions = " + acquisitions + ", contended = "
+					+ contendedAcquisitions + ", retries = " + retries
+					+ ", average wait = "
+					+ (acquisitions == 0 ? 0 : waitNanos / acquisitions)
+					+ " ns";
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.acertainbookstore.business;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * The position of a paged iteration over the catalog: the catalog version it
+ * reads and the last ISBN returned so far. Clients see it as an opaque
+ * string, the version and the ISBN separated by a colon.
+ */
+final class PageCursor {
+	private final long version;
+	private final int lastISBN;
+
+	PageCursor(long version, int lastISBN) {
+		this.version = version;
+		this.lastISBN = lastISBN;
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	int getLastISBN() {
+		return lastISBN;
+	}
+
+	/**
+	 * Parses a cursor made by toString.
+	 * 
+	 * @param cursor
+	 * @return
+	 * @throws BookStoreException
+	 *             if the cursor is malformed
+	 */
+	static PageCursor parse(String cursor) throws BookStoreException {
+		int colon = cursor.indexOf(':');
+		try {
+			if (colon > 0) {
+				return new PageCursor(Long.parseLong(cursor.substring(0, colon)),
+						Integer.parseInt(cursor.substring(colon + 1)));
+			}
+		} catch (NumberFormatException ex) {
+			;
+		}
+		throw new BookStoreException(BookStoreConstants.CURSOR + cursor
+				+ BookStoreConstants.INVALID);
+	}
+
+	@Override
+	public String toString() {
+		return version + ":" + lastISBN;
+	}
+}
@@ -0,0 +1,100 @@
+package com.acertainbookstore.business;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The catalog snapshots kept for paged iterations, by version. At most a
+ * fixed number are kept, the least recently used going first, and a
+ * snapshot no page was read from for a while is dropped. Snapshots share
+ * most of their trie, so each one retained costs little more than the books
+ * changed since.
+ */
+final class RetainedSnapshots {
+	private final int capacity;
+	private final long idleNanos;
+	// In access order, least recently used first
+	private final LinkedHashMap<Long, Entry> snapshots = new LinkedHashMap<Long, Entry>(
+			16, 0.75f, true);
+
+	private static final class Entry {
+		final CatalogSnapshot snapshot;
+		long lastUsed;
+
+		Entry(CatalogSnapshot snapshot, long lastUsed) {
+			this.snapshot = snapshot;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/**
+	 * Creates an empty set of snapshots.
+	 * 
+	 * @param capacity
+	 *            the number of snapshots kept at most
+	 * @param idleMillis
+	 *            the time after which a snapshot that was not used is dropped
+	 */
+	RetainedSnapshots(int capacity, long idleMillis) {
+		this.capacity = capacity;
+		this.idleNanos = idleMillis * 1000000L;
+	}
+
+	/**
+	 * Keeps the snapshot, or marks it as used if it is kept already.
+	 * 
+	 * @param snapshot
+	 */
+	synchronized void retain(CatalogSnapshot snapshot) {
+		long now = System.nanoTime();
+		expire(now);
+		Entry entry = snapshots.get(snapshot.getVersion());
+		if (entry != null) {
+			entry.lastUsed = now;
+			return;
+		}
+		snapshots.put(snapshot.getVersion(), new Entry(snapshot, now));
+		if (snapshots.size() > capacity) {
+			Iterator<Long> eldest = snapshots.keySet().iterator();
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Returns the snapshot of the version, or null if it is not kept.
+	 * 
+	 * @param version
+	 * @return
+	 */
+	synchronized CatalogSnapshot get(long version) {
+		long now = System.nanoTime();
+		expire(now);
+		Entry entry = snapshots.get(version);
+		if (entry == null) {
+			return null;
+		}
+		entry.lastUsed = now;
+		return entry.snapshot;
+	}
+
+	/**
+	 * Drops every snapshot.
+	 */
+	synchronized void clear() {
+		snapshots.clear();
+	}
+
+	private void expire(long now) {
+		Iterator<Map.Entry<Long, Entry>> entries = snapshots.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			// Least recently used first, so the rest were used later
+			if (now - entries.next().getValue().lastUsed <= idleNanos) {
+				return;
+			}
+			entries.remove();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * ShardedStock holds the number of copies of a book, split into slices so
+ * that concurrent buyers of a bestseller do not all update one counter.
+ *
+ * Every thread takes copies from its own slice with a compare-and-set. Only
+ * when its slice runs dry does a purchase need the whole stock: take and
+ * the other changes then gather the copies of every slice, and spread what
+ * is left evenly again. Those must run under the write lock of the book, so
+ * copies are never moved between slices while a locked or validated
+ * optimistic reader adds them up, and the total it reads is exact. Only
+ * copies taken by takeLocal may change without the lock.
+ *
+ * With a single slice the stock is one plain counter and every operation
+ * may be used without the lock.
+ */
+final class ShardedStock {
+	// Ints per slice, so that every slice has a cache line of its own
+	private static final int PADDING = 16;
+
+	private final AtomicIntegerArray slices;
+	private final int numShards;
+	private final int stride;
+
+	/**
+	 * Creates the stock.
+	 *
+	 * @param numShards
+	 *            the number of slices, a power of two
+	 * @param copies
+	 */
+	ShardedStock(int numShards, int copies) {
+		this.numShards = numShards;
+		this.stride = numShards == 1 ? 1 : PADDING;
+		this.slices = new AtomicIntegerArray(numShards * stride);
+		spread(copies);
+	}
+
+	private int localSlice() {
+		if (numShards == 1) {
+			return 0;
+		}
+		int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+		return ((h ^ (h >>> 16)) & (numShards - 1)) * stride;
+	}
+
+	/**
+	 * Returns the total number of copies. Without the lock only takeLocal
+	 * can run meanwhile, which only takes copies, so the total read lies
+	 * between the stock at the start of the call and at its end.
+	 *
+	 * @return
+	 */
+	int get() {
+		long copies = 0;
+		for (int i = 0; i < slices.length(); i += stride) {
+			copies += slices.get(i);
+		}
+		return (int) copies;
+	}
+
+	/**
+	 * Takes the copies from the slice of the calling thread, if it has that
+	 * many. Needs no lock.
+	 *
+	 * @param numCopies
+	 * @return false if the slice does not have enough copies, even though
+	 *         the whole stock may
+	 */
+	boolean takeLocal(int numCopies) {
+		int slice = localSlice();
+		int copies;
+		do {
+			copies = slices.get(slice);
+			if (copies < numCopies) {
+				return false;
+			}
+		} while (!slices.compareAndSet(slice, copies, copies - numCopies));
+		return true;
+	}
+
+	/**
+	 * Takes the copies from the whole stock, if it has that many.
+	 *
+	 * @param numCopies
+	 * @return false only if the whole stock does not have enough copies
+	 */
+	boolean take(int numCopies) {
+		if (numShards == 1) {
+			return takeLocal(numCopies);
+		}
+		int copies = drain();
+		if (copies < numCopies) {
+			spread(copies);
+			return false;
+		}
+		spread(copies - numCopies);
+		return true;
+	}
+
+	/**
+	 * Adds the copies to the stock.
+	 *
+	 * @param numCopies
+	 */
+	void add(int numCopies) {
+		if (numShards == 1) {
+			slices.addAndGet(0, numCopies);
+		} else {
+			spread(drain() + numCopies);
+		}
+	}
+
+	/**
+	 * Empties every slice, atomically for each one, and returns the copies
+	 * they held.
+	 */
+	private int drain() {
+		long copies = 0;
+		for (int i = 0; i < slices.length(); i += stride) {
+			copies += slices.getAndSet(i, 0);
+		}
+		return (int) copies;
+	}
+
+	/**
+	 * Adds the copies to the slices, as evenly as possible.
+	 */
+	private void spread(int copies) {
+		int share = copies / numShards;
+		int rest = copies % numShards;
+		for (int i = 0; i < numShards; i++) {
+			int slice = share + (i < rest ? 1 : 0);
+			if (slice != 0) {
+				slices.addAndGet(i * stride, slice);
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.ConcurrentIntHashMap;
+
+/**
+ * TopRatedIndex keeps the rated books ordered by average rating, so the top
+ * rated books can be listed without sorting the catalog.
+ *
+ * The books are held in a concurrent skip list ordered by average rating,
+ * highest first, and by ascending ISBN among books with the same average.
+ * Averages are compared exactly as fractions, on 128-bit cross products, so
+ * two books with the same average always tie whatever their rating totals.
+ * Listing the top N books walks the first N entries of the list and takes no
+ * lock.
+ *
+ * Ratings are added to books without locking them, so the index serializes
+ * the changes of an ISBN itself, on a small table of monitors. An update
+ * reads the current totals of the book, so updates may come in any order
+ * and the last one always leaves the latest totals. An update of a book
+ * that was removed from the store is ignored, so it can never bring back
+ * the book or replace a new book with the same ISBN.
+ *
+ * A change inserts the new entry of a book before removing the old one, so
+ * a concurrent reader may meet a book twice but never misses it. If the
+ * average did not change the old entry stays, since it ranks the same.
+ */
+public final class TopRatedIndex {
+	private static final Comparator<Entry> RANKING_ORDER = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			// a before b if a.total / a.times > b.total / b.times
+			int order = BookStoreUtility.compareProducts(b.totalRating,
+					a.timesRated, a.totalRating, b.timesRated);
+			return order != 0 ? order : Integer.compare(a.book.getISBN(),
+					b.book.getISBN());
+		}
+	};
+
+	private final ConcurrentSkipListSet<Entry> ranking = new ConcurrentSkipListSet<Entry>(
+			RANKING_ORDER);
+	private final ConcurrentIntHashMap<Entry> entries = new ConcurrentIntHashMap<Entry>();
+	private final Object[] monitors = new Object[64];
+
+	public TopRatedIndex() {
+		for (int i = 0; i < monitors.length; i++) {
+			monitors[i] = new Object();
+		}
+	}
+
+	private Object monitorOf(int ISBN) {
+		return monitors[ISBN & (monitors.length - 1)];
+	}
+
+	/**
+	 * Indexes the current rating totals of the book, adding it to the index
+	 * if it has been rated.
+	 *
+	 * @param book
+	 * @param view
+	 *            the view of the book returned by getTopRated
+	 */
+	public void update(BookStoreBook book, Book view) {
+		int ISBN = book.getISBN();
+		synchronized (monitorOf(ISBN)) {
+			if (book.isRemoved()) {
+				return;
+			}
+			long totalRating = book.getTotalRating();
+			long timesRated = book.getTimesRated();
+			if (timesRated <= 0) {
+				removeEntry(ISBN);
+				return;
+			}
+			Entry entry = new Entry(view, totalRating, timesRated);
+			ranking.add(entry);
+			Entry old = entries.put(ISBN, entry);
+			if (old != null && RANKING_ORDER.compare(old, entry) != 0) {
+				ranking.remove(old);
+			}
+		}
+	}
+
+	/**
+	 * Removes the book from the index. The book must be marked as removed
+	 * first, so that no later update adds it again.
+	 *
+	 * @param book
+	 */
+	public void remove(BookStoreBook book) {
+		synchronized (monitorOf(book.getISBN())) {
+			removeEntry(book.getISBN());
+		}
+	}
+
+	private void removeEntry(int ISBN) {
+		Entry old = entries.remove(ISBN);
+		if (old != null) {
+			ranking.remove(old);
+		}
+	}
+
+	/**
+	 * Removes all books from the index. The books must be marked as removed
+	 * first.
+	 */
+	public void clear() {
+		for (int ISBN : entries.keys()) {
+			synchronized (monitorOf(ISBN)) {
+				removeEntry(ISBN);
+			}
+		}
+	}
+
+	/**
+	 * Returns the numBooks books with the highest average rating, or all
+	 * rated books if there are not that many.
+	 *
+	 * @param numBooks
+	 * @return
+	 */
+	public List<Book> getTopRated(int numBooks) {
+		List<Book> topRated = new ArrayList<Book>(Math.min(numBooks, 64));
+		Set<Integer> seen = new HashSet<Integer>();
+		Iterator<Entry> it = ranking.iterator();
+		while (topRated.size() < numBooks && it.hasNext()) {
+			Entry entry = it.next();
+			// Skip the other entry of a book being updated
+			if (seen.add(entry.book.getISBN())) {
+				topRated.add(entry.book);
+			}
+		}
+		return topRated;
+	}
+
+	/**
+	 * A book and its rating totals at the time they were indexed.
+	 */
+	private static final class Entry {
+		final Book book;
+		final long totalRating;
+		final long timesRated;
+
+		Entry(Book book, long totalRating, long timesRated) {
+			this.book = book;
+			this.totalRating = totalRating;
+			this.timesRated = timesRated;
+		}
+	}
+}
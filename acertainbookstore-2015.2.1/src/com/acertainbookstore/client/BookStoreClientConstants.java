@@ -15,6 +15,8 @@ public final class BookStoreClientConstants {
 	public static final int CLIENT_MAX_CONNECTION_ADDRESS = 200;
 	public static final int CLIENT_MAX_THREADSPOOL_THREADS = 250;
 	public static final int CLIENT_MAX_TIMEOUT_MILLISECS = 30000;
+	// Timeout of streaming uploads, which may run for a long time
+	public static final int CLIENT_MAX_STREAMING_TIMEOUT_MILLISECS = 3600000;
 
 	public static final String strERR_CLIENT_REQUEST_SENDING = "ERR_CLIENT_REQUEST_SENDING";
 	public static final String strERR_CLIENT_REQUEST_EXCEPTION = "ERR_CLIENT_REQUEST_EXCEPTION";
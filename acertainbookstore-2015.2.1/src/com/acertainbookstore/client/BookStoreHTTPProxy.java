@@ -3,34 +3,43 @@
  */
 package com.acertainbookstore.client;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
-import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.interfaces.AsyncBookStore;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.utils.BookStoreCodec;
+import com.acertainbookstore.utils.BookStoreCodecs;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreExchange;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * BookStoreHTTPProxy implements the client level synchronous ConcurrentCertainBookStore
- * API declared in the BookStore class
+ * API declared in the BookStore class, and the asynchronous API declared in
+ * the AsyncBookStore class
+ * 
+ * Requests are sent with the callbacks of the HTTP client, so an
+ * asynchronous call holds no thread while it waits for its response. The
+ * synchronous methods wait for the futures of the asynchronous ones.
  * 
  */
-public class BookStoreHTTPProxy implements BookStore {
+public class BookStoreHTTPProxy implements BookStore, AsyncBookStore {
 	protected HttpClient client;
 	protected String serverAddress;
+	protected BookStoreCodec codec = BookStoreCodecs.XML;
 
 	/**
 	 * Initialize the client object
@@ -68,55 +77,44 @@ public class BookStoreHTTPProxy implements BookStore {
 		this.serverAddress = serverAddress;
 	}
 
-	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
+	public BookStoreCodec getCodec() {
+		return codec;
+	}
 
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
-		exchange.setRequestContent(requestContent);
+	/**
+	 * Sets the codec the requests are sent and the responses asked for in.
+	 * XML is the default, since every server reads it; the binary codec is
+	 * only read by servers that have it
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(BookStoreCodec codec) {
+		this.codec = codec;
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		BookStoreUtility.await(buyBooksAsync(isbnSet));
+	}
 
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> isbnSet) {
+		return ResponseFutures.done(post(BookStoreMessageTag.BUYBOOKS, isbnSet));
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
-
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
-		exchange.setRequestContent(requestContent);
+		return BookStoreUtility.await(getBooksAsync(isbnSet));
+	}
 
-		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> isbnSet) {
+		return ResponseFutures.list(post(BookStoreMessageTag.GETBOOKS, isbnSet));
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlEncodedNumBooks = null;
-
-		try {
-			urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks),
-					"UTF-8");
-		} catch (UnsupportedEncodingException ex) {
-			throw new BookStoreException("unsupported encoding of numbooks", ex);
-		}
-
-		String urlString = serverAddress + "/"
-				+ BookStoreMessageTag.EDITORPICKS + "?"
-				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
-
-		exchange.setURL(urlString);
+		return BookStoreUtility.await(getEditorPicksAsync(numBooks));
+	}
 
-		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks) {
+		return ResponseFutures.list(getNumBooks(
+				BookStoreMessageTag.EDITORPICKS, numBooks));
 	}
 
 	public void stop() {
@@ -130,15 +128,71 @@ public class BookStoreHTTPProxy implements BookStore {
 
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException("Not implemented");
-		
+		BookStoreUtility.await(rateBooksAsync(bookRating));
+	}
+
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating) {
+		return ResponseFutures.done(post(BookStoreMessageTag.RATEBOOKS,
+				bookRating));
 	}
 
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException("Not implemented");
+		return BookStoreUtility.await(getTopRatedBooksAsync(numBooks));
+	}
+
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks) {
+		return ResponseFutures.list(getNumBooks(
+				BookStoreMessageTag.TOPRATEDBOOKS, numBooks));
+	}
+
+	/**
+	 * Sends the object encoded with the codec in a POST request for the
+	 * message tag
+	 */
+	private CompletableFuture<List<?>> post(BookStoreMessageTag messageTag,
+			Object content) {
+		BookStoreExchange exchange = new BookStoreExchange(codec);
+		String urlString = serverAddress + "/" + messageTag;
+
+		exchange.setMethod("POST");
+		exchange.setURL(urlString);
+		try {
+			exchange.setRequestObject(content);
+		} catch (IOException ex) {
+			CompletableFuture<List<?>> failed = new CompletableFuture<List<?>>();
+			failed.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_ENCODING, ex));
+			return failed;
+		}
+
+		return BookStoreUtility.sendAsync(this.client, exchange);
+	}
+
+	/**
+	 * Sends a GET request for the message tag with numBooks as parameter
+	 */
+	private CompletableFuture<List<?>> getNumBooks(
+			BookStoreMessageTag messageTag, int numBooks) {
+		BookStoreExchange exchange = new BookStoreExchange(codec);
+		String urlEncodedNumBooks = null;
+
+		try {
+			urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks),
+					"UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			CompletableFuture<List<?>> failed = new CompletableFuture<List<?>>();
+			failed.completeExceptionally(new BookStoreException(
+					"unsupported encoding of numbooks", ex));
+			return failed;
+		}
+
+		String urlString = serverAddress + "/" + messageTag + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+
+		exchange.setURL(urlString);
+
+		return BookStoreUtility.sendAsync(this.client, exchange);
 	}
 
 }
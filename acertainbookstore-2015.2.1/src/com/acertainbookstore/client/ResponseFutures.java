@@ -0,0 +1,48 @@
+package com.acertainbookstore.client;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Converts the futures of response lists into the results of the proxy
+ * methods.
+ */
+final class ResponseFutures {
+	private static final Function<List<?>, Void> TO_VOID = new Function<List<?>, Void>() {
+		public Void apply(List<?> list) {
+			return null;
+		}
+	};
+	private static final Function<List<?>, Object> FIRST_ELEMENT = new Function<List<?>, Object>() {
+		public Object apply(List<?> list) {
+			return list.get(0);
+		}
+	};
+
+	private ResponseFutures() {
+	}
+
+	/**
+	 * The response list as a list of T, which the caller knows it holds.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> CompletableFuture<List<T>> list(CompletableFuture<List<?>> response) {
+		return (CompletableFuture<List<T>>) (CompletableFuture<?>) response;
+	}
+
+	/**
+	 * Completes once the response did, without a value.
+	 */
+	static CompletableFuture<Void> done(CompletableFuture<List<?>> response) {
+		return response.thenApply(TO_VOID);
+	}
+
+	/**
+	 * The only element of the response list, which the caller knows is a T.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> CompletableFuture<T> single(CompletableFuture<List<?>> response) {
+		return (CompletableFuture<T>) response.thenApply(FIRST_ELEMENT);
+	}
+}
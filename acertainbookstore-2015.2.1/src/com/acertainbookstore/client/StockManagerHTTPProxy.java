@@ -3,34 +3,48 @@
  */
 package com.acertainbookstore.client;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
-import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.IngestReport;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.AsyncStockManager;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCodec;
+import com.acertainbookstore.utils.BookStoreCodecs;
+import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreExchange;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * StockManagerHTTPProxy implements the client level synchronous
- * ConcurrentCertainBookStore API declared in the BookStore class
+ * ConcurrentCertainBookStore API declared in the StockManager class, and the
+ * asynchronous API declared in the AsyncStockManager class
  * 
- * Uses the HTTP protocol for communication with the server
+ * Uses the HTTP protocol for communication with the server. Requests are
+ * sent with the callbacks of the HTTP client, so an asynchronous call holds
+ * no thread while it waits for its response. The synchronous methods wait
+ * for the futures of the asynchronous ones.
  * 
  */
-public class StockManagerHTTPProxy implements StockManager {
+public class StockManagerHTTPProxy implements StockManager, AsyncStockManager {
 
 	protected HttpClient client;
 	protected String serverAddress;
+	protected BookStoreCodec codec = BookStoreCodecs.XML;
 
 	/**
 	 * Initialize the client object
@@ -68,101 +82,156 @@ public class StockManagerHTTPProxy implements StockManager {
 		this.serverAddress = serverAddress;
 	}
 
+	public BookStoreCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec the requests are sent and the responses asked for in.
+	 * XML is the default, since every server reads it; the binary codec is
+	 * only read by servers that have it
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(BookStoreCodec codec) {
+		this.codec = codec;
+	}
+
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+		BookStoreUtility.await(addBooksAsync(bookSet));
+	}
+
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet) {
+		return ResponseFutures.done(post(BookStoreMessageTag.ADDBOOKS, bookSet));
+	}
+
+	/**
+	 * Streams the books to the server, which adds them in batches as they
+	 * arrive. The books are serialized while the request is sent, so neither
+	 * side holds the whole upload in memory. The request has a timeout of its
+	 * own, since a large upload may take much longer than other requests.
+	 */
+	public IngestReport addBooksStreaming(Iterator<StockBook> books,
+			int batchSize) throws BookStoreException {
+		if (books == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		BookStoreExchange exchange = new BookStoreExchange();
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.ADDBOOKSSTREAMING + "?"
+				+ BookStoreConstants.BATCH_SIZE_PARAM + "=" + batchSize;
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookSet);
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
-		exchange.setRequestContent(requestContent);
+		exchange.setTimeout(BookStoreClientConstants.CLIENT_MAX_STREAMING_TIMEOUT_MILLISECS);
+		exchange.setRequestContentType("text/xml;charset=UTF-8");
+		try {
+			exchange.setRequestContentSource(BookStoreUtility
+					.serializeObjectsToXMLStream(books));
+		} catch (IOException ex) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_ENCODING, ex);
+		}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+		// The report is the only element of the response list
+		return BookStoreUtility.await(ResponseFutures
+				.<IngestReport> single(BookStoreUtility.sendAsync(this.client,
+						exchange)),
+				BookStoreClientConstants.CLIENT_MAX_STREAMING_TIMEOUT_MILLISECS);
 	}
 
 	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
-
-		String listBookCopiesxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookCopiesSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBookCopiesxmlString);
-		exchange.setRequestContent(requestContent);
+		BookStoreUtility.await(addCopiesAsync(bookCopiesSet));
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet) {
+		return ResponseFutures.done(post(BookStoreMessageTag.ADDCOPIES,
+				bookCopiesSet));
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooks() throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
-
-		exchange.setURL(urlString);
+		return BookStoreUtility.await(getBooksAsync());
+	}
 
-		return (List<StockBook>) BookStoreUtility.SendAndRecv(this.client,
-				exchange);
+	public CompletableFuture<List<StockBook>> getBooksAsync() {
+		return ResponseFutures.list(get(serverAddress + "/"
+				+ BookStoreMessageTag.LISTBOOKS));
 	}
 
-	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues)
+	public BookPage getBooks(String cursor, int pageSize)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/"
-				+ BookStoreMessageTag.UPDATEEDITORPICKS + "?";
-
-		String xmlStringEditorPicksValues = BookStoreUtility
-				.serializeObjectToXMLString(editorPicksValues);
+		return BookStoreUtility.await(getBooksAsync(cursor, pageSize));
+	}
 
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(xmlStringEditorPicksValues);
+	public CompletableFuture<BookPage> getBooksAsync(String cursor,
+			int pageSize) {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.LISTBOOKSPAGE + "?"
+				+ BookStoreConstants.PAGE_SIZE_PARAM + "=" + pageSize;
+		if (cursor != null) {
+			try {
+				urlString += "&" + BookStoreConstants.CURSOR_PARAM + "="
+						+ URLEncoder.encode(cursor, "UTF-8");
+			} catch (UnsupportedEncodingException ex) {
+				CompletableFuture<BookPage> failed = new CompletableFuture<BookPage>();
+				failed.completeExceptionally(new BookStoreException(
+						BookStoreClientConstants.strERR_CLIENT_ENCODING, ex));
+				return failed;
+			}
+		}
 
-		exchange.setRequestContent(requestContent);
+		// The page is the only element of the response list
+		return ResponseFutures.single(get(urlString));
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues)
+			throws BookStoreException {
+		BookStoreUtility.await(updateEditorPicksAsync(editorPicksValues));
+	}
 
+	public CompletableFuture<Void> updateEditorPicksAsync(
+			Set<BookEditorPick> editorPicksValues) {
+		return ResponseFutures.done(post(
+				BookStoreMessageTag.UPDATEEDITORPICKS, editorPicksValues));
 	}
 
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		return BookStoreUtility.await(getBooksInDemandAsync());
 	}
 
-	public void removeAllBooks() throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEALLBOOKS;
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync() {
+		return ResponseFutures.list(get(serverAddress + "/"
+				+ BookStoreMessageTag.BOOKSINDEMAND));
+	}
 
-		String test = "test";
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(test);
-		exchange.setRequestContent(requestContent);
+	public List<Long> getRatingHistogram(int ISBN) throws BookStoreException {
+		return BookStoreUtility.await(getRatingHistogramAsync(ISBN));
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	public CompletableFuture<List<Long>> getRatingHistogramAsync(int ISBN) {
+		return ResponseFutures.list(get(serverAddress + "/"
+				+ BookStoreMessageTag.RATINGHISTOGRAM + "?"
+				+ BookStoreConstants.BOOKISBN_PARAM + "=" + ISBN));
 	}
 
-	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
+	public void removeAllBooks() throws BookStoreException {
+		BookStoreUtility.await(removeAllBooksAsync());
+	}
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
-		exchange.setRequestContent(requestContent);
+	public CompletableFuture<Void> removeAllBooksAsync() {
+		return ResponseFutures.done(post(BookStoreMessageTag.REMOVEALLBOOKS,
+				"test"));
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		BookStoreUtility.await(removeBooksAsync(isbnSet));
+	}
 
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet) {
+		return ResponseFutures.done(post(BookStoreMessageTag.REMOVEBOOKS,
+				isbnSet));
 	}
 
 	public void stop() {
@@ -174,21 +243,46 @@ public class StockManagerHTTPProxy implements StockManager {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooksByISBN(Set<Integer> isbns)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
+		return BookStoreUtility.await(getBooksByISBNAsync(isbns));
+	}
+
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(
+			Set<Integer> isbns) {
+		return ResponseFutures.list(post(
+				BookStoreMessageTag.GETSTOCKBOOKSBYISBN, isbns));
+	}
+
+	/**
+	 * Sends the object encoded with the codec in a POST request for the
+	 * message tag
+	 */
+	private CompletableFuture<List<?>> post(BookStoreMessageTag messageTag,
+			Object content) {
+		BookStoreExchange exchange = new BookStoreExchange(codec);
+		String urlString = serverAddress + "/" + messageTag;
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbns);
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
-		exchange.setRequestContent(requestContent);
+		try {
+			exchange.setRequestObject(content);
+		} catch (IOException ex) {
+			CompletableFuture<List<?>> failed = new CompletableFuture<List<?>>();
+			failed.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_ENCODING, ex));
+			return failed;
+		}
+
+		return BookStoreUtility.sendAsync(this.client, exchange);
+	}
 
-		return (List<StockBook>) BookStoreUtility.SendAndRecv(this.client,
-				exchange);
+	/**
+	 * Sends a GET request for the URL
+	 */
+	private CompletableFuture<List<?>> get(String urlString) {
+		BookStoreExchange exchange = new BookStoreExchange(codec);
+		exchange.setURL(urlString);
+		return BookStoreUtility.sendAsync(this.client, exchange);
 	}
 }
@@ -0,0 +1,340 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.IngestBatchResult;
+import com.acertainbookstore.business.IngestReport;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BinaryCodec;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.CursorExpiredException;
+import com.acertainbookstore.utils.ServerOverloadedException;
+
+/**
+ * Test class to test that the BinaryCodec reads back every message it writes
+ * and refuses malformed messages
+ *
+ */
+public class BinaryCodecTest {
+
+	private static final BinaryCodec codec = new BinaryCodec();
+
+	/**
+	 * Returns the requests the clients send and the responses the server
+	 * sends
+	 */
+	private static List<Object> getMessages() throws BookStoreException {
+		List<Object> messages = new ArrayList<Object>();
+
+		// addBooks
+		Set<StockBook> stockBooks = new HashSet<StockBook>();
+		stockBooks.add(new ImmutableStockBook(3044560, "Harry Potter and JUnit",
+				"JK Unit", 10.5f, 5, 0, 0, 0, false));
+		stockBooks.add(new ImmutableStockBook(3044561, "T\u00eftle \u2603 \t",
+				"A", 0.5f, Integer.MAX_VALUE, Long.MAX_VALUE, 3, 12, true));
+		messages.add(stockBooks);
+		Set<StockBook> invalidBooks = new HashSet<StockBook>();
+		invalidBooks.add(new ImmutableStockBook(-1, null, null, Float.NaN,
+				Integer.MIN_VALUE, Long.MIN_VALUE, -1, -1, false));
+		messages.add(invalidBooks);
+
+		// addCopies and buyBooks
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(3044560, 2));
+		bookCopies.add(new BookCopy(-1, -3));
+		messages.add(bookCopies);
+		// getBooks, getBooksByISBN and removeBooks
+		messages.add(new HashSet<Integer>(Arrays.asList(3044560, 3044561, -5,
+				0, Integer.MAX_VALUE, Integer.MIN_VALUE)));
+		messages.add(new HashSet<Integer>());
+		// rateBooks
+		messages.add(Collections.singleton(new BookRating(3044560, 4)));
+		// updateEditorPicks
+		messages.add(new HashSet<BookEditorPick>(Arrays.asList(
+				new BookEditorPick(3044560, true), new BookEditorPick(3044561,
+						false))));
+		messages.add(Collections.singleton(new ImmutableBook(1, "Book",
+				"Author", 2)));
+		messages.add("test");
+		messages.add(Long.MIN_VALUE);
+
+		// The responses of a bookstore holding the books
+		ConcurrentCertainBookStore store = new ConcurrentCertainBookStore();
+		store.addBooks(stockBooks);
+		messages.add(response(store.getBooks()));
+		messages.add(response(store.getBooks(new HashSet<Integer>(Arrays
+				.asList(3044560, 3044561)))));
+		messages.add(response(store.getEditorPicks(1)));
+		messages.add(response(store.getTopRatedBooks(2)));
+		messages.add(response(Collections.singletonList(store.getBooks(null,
+				1))));
+		messages.add(response(Collections.singletonList(new BookPage(
+				new ArrayList<StockBook>(), null))));
+		messages.add(response(new ArrayList<Book>()));
+		messages.add(response(Arrays.asList(1, null, "two", 3L)));
+		messages.add(new BookStoreResponse());
+
+		// addBooksStreaming
+		IngestReport report = new IngestReport();
+		report.addBatch(100, null);
+		report.addBatch(7, "Invalid ISBN");
+		report.addBatch(0, null);
+		report.setStreamError("Truncated stream");
+		messages.add(response(Collections.singletonList(report)));
+		messages.add(response(Collections.singletonList(new IngestReport())));
+
+		try {
+			store.getBooks(Collections.singleton(-1));
+			fail();
+		} catch (BookStoreException ex) {
+			messages.add(exceptionResponse(ex));
+		}
+		messages.add(exceptionResponse(new CursorExpiredException("expired")));
+		messages.add(exceptionResponse(new ServerOverloadedException(
+				"overloaded")));
+		messages.add(exceptionResponse(new BookStoreException("outer",
+				new CursorExpiredException("inner"))));
+		messages.add(exceptionResponse(new BookStoreException((String) null)));
+		BookStoreException suppressing = new BookStoreException("suppressing");
+		suppressing.addSuppressed(new ServerOverloadedException("suppressed"));
+		suppressing.addSuppressed(new BookStoreException("second",
+				new BookStoreException("cause")));
+		messages.add(exceptionResponse(suppressing));
+		return messages;
+	}
+
+	/**
+	 * Returns a response of the list, as an ArrayList since lists are read
+	 * back as ArrayLists
+	 */
+	private static BookStoreResponse response(List<?> list) {
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(new ArrayList<Object>(list));
+		return response;
+	}
+
+	private static BookStoreResponse exceptionResponse(BookStoreException ex) {
+		BookStoreResponse response = new BookStoreResponse();
+		response.setException(ex);
+		return response;
+	}
+
+	private static byte[] encode(Object message) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.encode(message, out);
+		return out.toByteArray();
+	}
+
+	private static Object decode(byte[] bytes) throws IOException {
+		return codec.decode(new ByteArrayInputStream(bytes), null);
+	}
+
+	/**
+	 * Returns the frames of the stack trace of the throwable, without the
+	 * modules Java 9 adds to them
+	 */
+	private static List<String> frames(Throwable throwable) {
+		List<String> frames = new ArrayList<String>();
+		for (StackTraceElement element : throwable.getStackTrace()) {
+			frames.add(element.getClassName() + "." + element.getMethodName()
+					+ "(" + element.getFileName() + ":"
+					+ element.getLineNumber() + ")");
+		}
+		return frames;
+	}
+
+	/**
+	 * Returns the XML of the message, with the elements of sets sorted, since
+	 * the order of a set depends on its capacity, and without the modules of
+	 * the frames of stack traces
+	 */
+	private static String toXML(Object message) {
+		if (!(message instanceof Set)) {
+			return BookStoreUtility.serializeObjectToXMLString(message)
+					.replaceAll("<trace>[^<(]*/", "<trace>");
+		}
+		List<String> elements = new ArrayList<String>();
+		for (Object element : (Collection<?>) message) {
+			elements.add(toXML(element));
+		}
+		Collections.sort(elements);
+		return elements.toString();
+	}
+
+	/**
+	 * Tests that every message comes back with the classes and fields it
+	 * was written with
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		for (Object message : getMessages()) {
+			byte[] bytes = encode(message);
+			Object decoded = decode(bytes);
+			assertEquals(toXML(message), toXML(decoded));
+			if (!(message instanceof Set)) {
+				assertEquals(message.getClass(), decoded.getClass());
+			}
+			// Writing the decoded message again gives the same bytes, except
+			// for the order of sets
+			assertEquals(bytes.length, encode(decoded).length);
+		}
+	}
+
+	/**
+	 * Tests the fields of a decoded ingest report
+	 */
+	@Test
+	public void testIngestReport() throws Exception {
+		IngestReport report = new IngestReport();
+		report.addBatch(100, null);
+		report.addBatch(7, "Invalid ISBN");
+		report.setStreamError("Truncated stream");
+		IngestReport decoded = (IngestReport) ((BookStoreResponse) decode(encode(response(Collections
+				.singletonList(report))))).getList().get(0);
+		assertEquals(100, decoded.getBooksAdded());
+		assertEquals(7, decoded.getBooksRejected());
+		assertEquals("Truncated stream", decoded.getStreamError());
+		assertFalse(decoded.isComplete());
+		List<IngestBatchResult> batches = decoded.getBatches();
+		assertEquals(2, batches.size());
+		assertEquals(1, batches.get(1).getBatch());
+		assertEquals(7, batches.get(1).getNumBooks());
+		assertEquals("Invalid ISBN", batches.get(1).getError());
+		assertTrue(batches.get(0).isAdded());
+	}
+
+	/**
+	 * Tests that exceptions keep their stack traces, causes and suppressed
+	 * exceptions, and that throwables other than those of the bookstore come
+	 * back as BookStoreExceptions naming their class
+	 */
+	@Test
+	public void testExceptionRoundTrip() throws Exception {
+		BookStoreException chained = null;
+		try {
+			BookStoreUtility.convertStringToInt("x");
+			fail();
+		} catch (BookStoreException ex) {
+			chained = new BookStoreException(ex);
+		}
+		chained.addSuppressed(new CursorExpiredException("first"));
+		chained.addSuppressed(new BookStoreException("second",
+				new IllegalStateException()));
+
+		BookStoreException ex = ((BookStoreResponse) decode(encode(exceptionResponse(chained))))
+				.getException();
+		assertEquals(BookStoreException.class, ex.getClass());
+		assertEquals(chained.getMessage(), ex.getMessage());
+		assertEquals(frames(chained), frames(ex));
+
+		Throwable cause = ex.getCause();
+		assertEquals(BookStoreException.class, cause.getClass());
+		assertEquals(chained.getCause().getMessage(), cause.getMessage());
+		Throwable numberFormat = chained.getCause().getCause();
+		assertEquals(NumberFormatException.class.getName() + ": "
+				+ numberFormat.getMessage(), cause.getCause().getMessage());
+		assertEquals(frames(numberFormat), frames(cause.getCause()));
+		assertNull(cause.getCause().getCause());
+
+		Throwable[] suppressed = ex.getSuppressed();
+		assertEquals(2, suppressed.length);
+		assertEquals(CursorExpiredException.class, suppressed[0].getClass());
+		assertEquals("first", suppressed[0].getMessage());
+		assertEquals("second", suppressed[1].getMessage());
+		assertEquals(IllegalStateException.class.getName(), suppressed[1]
+				.getCause().getMessage());
+	}
+
+	/**
+	 * Tests that a cycle among the causes and suppressed exceptions is written
+	 * once and cut where it closes
+	 */
+	@Test
+	public void testExceptionCycle() throws Exception {
+		BookStoreException outer = new BookStoreException("outer");
+		BookStoreException inner = new BookStoreException("inner", outer);
+		outer.addSuppressed(inner);
+
+		BookStoreException ex = ((BookStoreResponse) decode(encode(exceptionResponse(outer))))
+				.getException();
+		assertEquals("outer", ex.getMessage());
+		assertEquals(1, ex.getSuppressed().length);
+		assertEquals("inner", ex.getSuppressed()[0].getMessage());
+		assertNull(ex.getSuppressed()[0].getCause());
+	}
+
+	/**
+	 * Tests that malformed messages fail with an IOException
+	 */
+	@Test
+	public void testDecodeMalformed() throws Exception {
+		byte[] bytes = encode(Collections.singleton(new BookCopy(3044560, 2)));
+		List<byte[]> malformed = new ArrayList<byte[]>();
+		malformed.add(new byte[0]);
+		// Trailing bytes, of another message or of nothing
+		byte[] trailing = Arrays.copyOf(bytes, bytes.length * 2);
+		System.arraycopy(bytes, 0, trailing, bytes.length, bytes.length);
+		malformed.add(trailing);
+		malformed.add(Arrays.copyOf(bytes, bytes.length + 1));
+		// Truncated
+		for (int length = 1; length < bytes.length; length++) {
+			malformed.add(Arrays.copyOf(bytes, length));
+		}
+		// Unknown version
+		malformed.add(new byte[] { 1, 0 });
+		malformed.add(new byte[] { 3, 0 });
+		// Unknown type tag
+		malformed.add(new byte[] { bytes[0], 100 });
+		// Negative collection size
+		malformed.add(new byte[] { bytes[0], bytes[1], 1 });
+		// Unterminated varint
+		malformed.add(new byte[] { bytes[0], bytes[1], (byte) 0x80,
+				(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0 });
+
+		for (byte[] message : malformed) {
+			try {
+				decode(message);
+				fail(Arrays.toString(message));
+			} catch (IOException ex) {
+				;
+			}
+		}
+		assertEquals(1, ((Set<?>) decode(bytes)).size());
+	}
+
+	/**
+	 * Tests that values of other types are refused when they are written
+	 */
+	@Test
+	public void testEncodeUnsupported() throws Exception {
+		try {
+			encode(Collections.singleton(new Object()));
+			fail();
+		} catch (IllegalArgumentException ex) {
+			;
+		}
+	}
+}
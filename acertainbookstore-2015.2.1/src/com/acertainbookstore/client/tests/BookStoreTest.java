@@ -3,9 +3,13 @@ package com.acertainbookstore.client.tests;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -13,13 +17,17 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.acertainbookstore.business.AsyncCertainBookStore;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.ConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.OrderedMultiLock;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.interfaces.AsyncBookStore;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
@@ -38,6 +46,7 @@ public class BookStoreTest {
 	private static boolean localTest = true;
 	private static StockManager storeManager;
 	private static BookStore client;
+	private static AsyncBookStore asyncClient;
 	private static boolean hasFailed = false; // used for test 2
 
 	@BeforeClass
@@ -51,10 +60,14 @@ public class BookStoreTest {
                 ConcurrentCertainBookStore store = new ConcurrentCertainBookStore();
 				storeManager = store;
 				client = store;
+				asyncClient = new AsyncCertainBookStore(store);
 			} else {
 				storeManager = new StockManagerHTTPProxy(
 						"http://localhost:8081/stock");
-				client = new BookStoreHTTPProxy("http://localhost:8081");
+				BookStoreHTTPProxy proxy = new BookStoreHTTPProxy(
+						"http://localhost:8081");
+				client = proxy;
+				asyncClient = proxy;
 			}
 			storeManager.removeAllBooks();
 		} catch (Exception e) {
@@ -505,6 +518,261 @@ public class BookStoreTest {
 
 	}
 
+	/**
+	 * Tests that purchases in flight at the same time through the
+	 * asynchronous API sell every copy, and that the futures of the purchases
+	 * that find no copies left fail with a BookStoreException
+	 */
+	@Test
+	public void testBuyBooksAsync() throws BookStoreException,
+			InterruptedException {
+		Set<BookCopy> oneCopy = new HashSet<BookCopy>();
+		oneCopy.add(new BookCopy(TEST_ISBN, 1));
+		List<CompletableFuture<Void>> purchases = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < NUM_COPIES + 2; i++) {
+			purchases.add(asyncClient.buyBooksAsync(oneCopy));
+		}
+
+		int bought = 0;
+		for (CompletableFuture<Void> purchase : purchases) {
+			try {
+				purchase.get();
+				bought++;
+			} catch (ExecutionException ex) {
+				assertTrue(ex.getCause() instanceof BookStoreException);
+			}
+		}
+		assertEquals(NUM_COPIES, bought);
+
+		List<Book> books = asyncClient.getBooksAsync(
+				Collections.singleton(TEST_ISBN)).join();
+		assertEquals(1, books.size());
+		List<StockBook> stockBooks = storeManager.getBooks();
+		assertEquals(0, stockBooks.get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that purchases of several books applied in combined batches sell
+	 * every copy once, and that a purchase that fails in a batch changes no
+	 * stock
+	 */
+	@Test
+	public void testCombinedPurchases() throws BookStoreException,
+			InterruptedException {
+		if (!localTest) {
+			return; // Combining is a server option
+		}
+		final ConcurrentCertainBookStore store = new ConcurrentCertainBookStore(
+				OrderedMultiLock.DEFAULT_STRIPES, true);
+		final int numThreads = 8;
+		final int rounds = 200;
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(getDefaultBook2(numThreads * rounds));
+		booksToAdd.add(getDefaultBook3(numThreads * rounds));
+		store.addBooks(booksToAdd);
+
+		final Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(TEST_ISBN + 1, 1));
+		copies.add(new BookCopy(TEST_ISBN + 2, 1));
+		final List<String> failures = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numThreads; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int round = 0; round < rounds; round++) {
+							store.buyBooks(copies);
+						}
+					} catch (BookStoreException ex) {
+						failures.add(ex.toString());
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+
+		Set<BookCopy> tooMany = new HashSet<BookCopy>();
+		tooMany.add(new BookCopy(TEST_ISBN + 1, 1));
+		tooMany.add(new BookCopy(TEST_ISBN + 2, 1));
+		try {
+			store.buyBooks(tooMany);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		for (StockBook book : store.getBooks()) {
+			assertEquals(0, book.getNumCopies());
+		}
+		assertTrue(store.getAveragePurchaseBatchSize() >= 1);
+	}
+
+	/**
+	 * Tests that a store with the stock of its books split into slices sells
+	 * every copy of a book once, and counts no sale miss before it is sold
+	 * out, whichever slices the copies were left in
+	 */
+	@Test
+	public void testShardedStockSellOut() throws BookStoreException,
+			InterruptedException {
+		if (!localTest) {
+			return; // Stock slices are a server option
+		}
+		final ConcurrentCertainBookStore store = new ConcurrentCertainBookStore(
+				OrderedMultiLock.DEFAULT_STRIPES, false, 16);
+		final int numThreads = 8;
+		final int copies = 1001;
+		store.addBooks(Collections.singleton(getDefaultBook2(copies)));
+
+		final Set<BookCopy> oneCopy = Collections.singleton(new BookCopy(
+				TEST_ISBN + 1, 1));
+		final AtomicInteger sold = new AtomicInteger();
+		final List<String> failures = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numThreads; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							store.buyBooks(oneCopy);
+							sold.incrementAndGet();
+						}
+					} catch (BookStoreException ex) {
+						// The stock only shrinks, so copies left now were
+						// there at the miss
+						try {
+							int left = store.getBooksByISBN(
+									Collections.singleton(TEST_ISBN + 1))
+									.get(0).getNumCopies();
+							if (left != 0) {
+								failures.add("Sale miss with " + left
+										+ " copies left");
+							}
+						} catch (BookStoreException e) {
+							failures.add(e.toString());
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(copies, sold.get());
+		StockBook book = store.getBooks().get(0);
+		assertEquals(0, book.getNumCopies());
+		assertEquals(numThreads, book.getSaleMisses());
+
+		Set<BookCopy> restock = Collections.singleton(new BookCopy(
+				TEST_ISBN + 1, 3));
+		store.addCopies(restock);
+		store.buyBooks(Collections.singleton(new BookCopy(TEST_ISBN + 1, 2)));
+		assertEquals(1, store.getBooks().get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that a purchase or a rating is in the catalog scanned right after
+	 * it by the same thread, while other threads buy and rate other books and
+	 * a book they all share
+	 */
+	@Test
+	public void testScanAfterPurchase() throws BookStoreException,
+			InterruptedException {
+		final int numThreads = 8;
+		final int rounds = localTest ? 500 : 20;
+		final int sharedISBN = TEST_ISBN + numThreads + 1;
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		for (int i = 1; i <= numThreads + 1; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Volume " + i,
+					"Donald Knuth", (float) 100, rounds * numThreads, 0, 0, 0,
+					false));
+		}
+		storeManager.addBooks(booksToAdd);
+
+		final List<String> failures = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 1; i <= numThreads; i++) {
+			final int ISBN = TEST_ISBN + i;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					Set<BookCopy> copies = new HashSet<BookCopy>();
+					copies.add(new BookCopy(ISBN, 1));
+					Set<BookCopy> sharedCopy = Collections
+							.singleton(new BookCopy(sharedISBN, 1));
+					Set<BookRating> ratings = new HashSet<BookRating>();
+					ratings.add(new BookRating(ISBN, 4));
+					ratings.add(new BookRating(sharedISBN, 4));
+					try {
+						for (int round = 1; round <= rounds; round++) {
+							client.buyBooks(copies);
+							client.buyBooks(sharedCopy);
+							List<StockBook> books = storeManager.getBooks();
+							if (find(books, ISBN).getNumCopies() != rounds
+									* numThreads - round
+									|| find(books, sharedISBN).getNumCopies() > rounds
+											* numThreads - round) {
+								failures.add("Purchase " + round + " of "
+										+ ISBN + " not in the scan");
+							}
+
+							client.rateBooks(ratings);
+							books = storeManager.getBooks();
+							if (find(books, ISBN).getTimesRated() != round
+									|| find(books, sharedISBN).getTimesRated() < round) {
+								failures.add("Rating " + round + " of " + ISBN
+										+ " not in the scan");
+							}
+							if (!containsISBN(client
+									.getTopRatedBooks(numThreads + 1), ISBN)) {
+								failures.add("Rating " + round + " of " + ISBN
+										+ " not in the top rated books");
+							}
+						}
+					} catch (BookStoreException ex) {
+						failures.add(ex.toString());
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	private static boolean containsISBN(List<Book> books, int ISBN) {
+		for (Book book : books) {
+			if (book.getISBN() == ISBN) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static StockBook find(List<StockBook> books, int ISBN) {
+		for (StockBook book : books) {
+			if (book.getISBN() == ISBN) {
+				return book;
+			}
+		}
+		throw new AssertionError("No book " + ISBN);
+	}
+
     /**
 	 * Tests that all books can be retrieved
 	 */
@@ -592,6 +860,89 @@ public class BookStoreTest {
 
 	}
 
+	/**
+	 * Tests that getTopRatedBooks orders the rated books by average rating,
+	 * breaks ties by ISBN and leaves out books that were never rated
+	 */
+	@Test
+	public void testGetTopRatedBooks() throws BookStoreException {
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		addBooks(TEST_ISBN + 2, NUM_COPIES);
+		addBooks(TEST_ISBN + 3, NUM_COPIES);
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN + 2, 3));
+		ratings.add(new BookRating(TEST_ISBN + 1, 5));
+		ratings.add(new BookRating(TEST_ISBN, 3));
+		client.rateBooks(ratings);
+
+		// A second rating keeps TEST_ISBN + 1 at 4, above the tie at 3
+		ratings.clear();
+		ratings.add(new BookRating(TEST_ISBN + 1, 3));
+		client.rateBooks(ratings);
+
+		List<Book> topRated = client.getTopRatedBooks(10);
+		assertEquals(3, topRated.size());
+		assertEquals(TEST_ISBN + 1, topRated.get(0).getISBN());
+		assertEquals(TEST_ISBN, topRated.get(1).getISBN());
+		assertEquals(TEST_ISBN + 2, topRated.get(2).getISBN());
+
+		topRated = client.getTopRatedBooks(1);
+		assertEquals(1, topRated.size());
+		assertEquals(TEST_ISBN + 1, topRated.get(0).getISBN());
+	}
+
+	/**
+	 * Tests that getTopRatedBooks orders books whose rating totals overflow
+	 * a long when multiplied
+	 */
+	@Test
+	public void testGetTopRatedBooksLargeTotals() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		// Averages 5, 3 and 3
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "Volume 1",
+				"Donald Knuth", (float) 100, NUM_COPIES, 0,
+				1000000000000000000L, 5000000000000000000L, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "Volume 2",
+				"Donald Knuth", (float) 100, NUM_COPIES, 0,
+				3000000000000000000L, 9000000000000000000L, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 3, "Volume 3",
+				"Donald Knuth", (float) 100, NUM_COPIES, 0,
+				1000000000000000000L, 3000000000000000000L, false));
+		storeManager.addBooks(booksToAdd);
+
+		List<Book> topRated = client.getTopRatedBooks(10);
+		assertEquals(3, topRated.size());
+		assertEquals(TEST_ISBN + 1, topRated.get(0).getISBN());
+		assertEquals(TEST_ISBN + 2, topRated.get(1).getISBN());
+		assertEquals(TEST_ISBN + 3, topRated.get(2).getISBN());
+	}
+
+	/**
+	 * Tests that no rating is applied if one of them is invalid
+	 */
+	@Test
+	public void testRateBooksInvalidRating() throws BookStoreException {
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		List<StockBook> booksInStorePreTest = storeManager.getBooks();
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 4)); // valid
+		ratings.add(new BookRating(TEST_ISBN + 1, 6)); // invalid
+
+		try {
+			client.rateBooks(ratings);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInStorePostTest = storeManager.getBooks();
+		assertTrue(booksInStorePreTest.containsAll(booksInStorePostTest)
+				&& booksInStorePreTest.size() == booksInStorePostTest.size());
+		assertTrue(client.getTopRatedBooks(10).isEmpty());
+	}
+
 	@AfterClass
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
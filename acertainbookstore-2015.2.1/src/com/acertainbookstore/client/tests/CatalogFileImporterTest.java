@@ -0,0 +1,179 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.CatalogFileImporter;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test that the CatalogFileImporter adds every well formed
+ * row of a catalog file once, whatever the chunks and batches it is cut
+ * into
+ *
+ */
+public class CatalogFileImporterTest {
+
+	private static final int TEST_ISBN = 3044560;
+	private static final String HEADER = "ISBN,Title,Author,Price,Copies\n";
+
+	private ConcurrentCertainBookStore store;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new ConcurrentCertainBookStore();
+		file = File.createTempFile("catalog", ".csv");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private void writeFile(String content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String row(int ISBN) {
+		return ISBN + ",Volume " + ISBN + ",Donald Knuth,100,5\n";
+	}
+
+	private static StockBook find(List<StockBook> books, int ISBN) {
+		for (StockBook book : books) {
+			if (book.getISBN() == ISBN) {
+				return book;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tests that a malformed row is skipped and counted, and that the other
+	 * rows of its batch are added
+	 */
+	@Test
+	public void testMalformedRow() throws IOException, BookStoreException {
+		StringBuilder content = new StringBuilder(HEADER);
+		for (int i = 1; i <= 10; i++) {
+			content.append(i == 4 ? TEST_ISBN + i
+					+ ",Volume,Donald Knuth,cheap,5\n" : row(TEST_ISBN + i));
+		}
+		writeFile(content.toString());
+
+		CatalogFileImporter.Result result = new CatalogFileImporter(store,
+				CatalogFileImporter.DEFAULT_CHUNK_BYTES, 100).importFile(file,
+				1);
+		assertEquals(10, result.getRows());
+		assertEquals(1, result.getMalformedRows());
+		assertEquals(9, result.getBooksAdded());
+		assertEquals(0, result.getBooksRejected());
+		assertEquals(1, result.getErrors().size());
+		assertEquals(9, store.getBooks().size());
+		assertNull(find(store.getBooks(), TEST_ISBN + 4));
+	}
+
+	/**
+	 * Tests that a row repeating an ISBN, of the same batch, of another batch
+	 * or of a book already in the store, is rejected on its own and that the
+	 * first book with the ISBN is kept
+	 */
+	@Test
+	public void testDuplicateISBN() throws IOException, BookStoreException {
+		store.addBooks(Collections.<StockBook> singleton(new ImmutableStockBook(
+				TEST_ISBN, "In stock", "Donald Knuth", 10, 1, 0, 0, 0, false)));
+		StringBuilder content = new StringBuilder();
+		for (int i = 1; i <= 20; i++) {
+			content.append(row(TEST_ISBN + i));
+			if (i == 2) {
+				// Same batch
+				content.append(TEST_ISBN + 1 + ",Second,Donald Knuth,1,1\n");
+			} else if (i == 12) {
+				// Another batch
+				content.append(TEST_ISBN + 3 + ",Third,Donald Knuth,1,1\n");
+			} else if (i == 15) {
+				// Already in the store
+				content.append(row(TEST_ISBN));
+			}
+		}
+		writeFile(content.toString());
+
+		CatalogFileImporter.Result result = new CatalogFileImporter(store,
+				CatalogFileImporter.DEFAULT_CHUNK_BYTES, 8).importFile(file, 1);
+		assertEquals(23, result.getRows());
+		assertEquals(0, result.getMalformedRows());
+		assertEquals(20, result.getBooksAdded());
+		assertEquals(3, result.getBooksRejected());
+		assertEquals(3, result.getErrors().size());
+
+		List<StockBook> books = store.getBooks();
+		assertEquals(21, books.size());
+		assertEquals("In stock", find(books, TEST_ISBN).getTitle());
+		assertEquals("Volume " + (TEST_ISBN + 1), find(books, TEST_ISBN + 1)
+				.getTitle());
+		assertEquals("Volume " + (TEST_ISBN + 3), find(books, TEST_ISBN + 3)
+				.getTitle());
+	}
+
+	/**
+	 * Tests that chunks whose nominal boundaries fall in the middle of lines,
+	 * of quoted fields and of line breaks, import every row once
+	 */
+	@Test
+	public void testChunkBoundariesMidLine() throws IOException,
+			BookStoreException {
+		int numRows = 200;
+		StringBuilder content = new StringBuilder(HEADER);
+		for (int i = 1; i <= numRows; i++) {
+			if (i % 3 == 0) {
+				content.append(TEST_ISBN + i + ",\"Volume " + i
+						+ ", \"\"quoted\"\"\",Donald Knuth,100," + i + "\r\n");
+			} else {
+				content.append(TEST_ISBN + i + ",Volume " + i
+						+ ",Donald Knuth,100," + i + "\n");
+			}
+		}
+		// No line break after the last line
+		content.setLength(content.length() - 1);
+		writeFile(content.toString());
+
+		for (int chunkBytes : new int[] { 1, 7, 33, 1000 }) {
+			store.removeAllBooks();
+			CatalogFileImporter.Result result = new CatalogFileImporter(store,
+					chunkBytes, 16).importFile(file, 4);
+			assertEquals(numRows, result.getRows());
+			assertEquals(0, result.getMalformedRows());
+			assertEquals(numRows, result.getBooksAdded());
+			assertEquals(0, result.getBooksRejected());
+
+			List<StockBook> books = store.getBooks();
+			assertEquals(numRows, books.size());
+			for (int i = 1; i <= numRows; i++) {
+				StockBook book = books.get(i - 1);
+				assertEquals(TEST_ISBN + i, book.getISBN());
+				assertEquals(i, book.getNumCopies());
+				assertEquals(i % 3 == 0 ? "Volume " + i + ", \"quoted\""
+						: "Volume " + i, book.getTitle());
+			}
+		}
+	}
+}
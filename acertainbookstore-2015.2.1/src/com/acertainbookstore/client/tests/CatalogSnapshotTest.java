@@ -0,0 +1,214 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CatalogSnapshot;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test the CatalogSnapshot versions published by the
+ * ConcurrentCertainBookStore, around the node boundaries of the trie
+ *
+ */
+public class CatalogSnapshotTest {
+
+	// ISBNs on both sides of the boundaries of the nodes of every level, five
+	// bits per level
+	private static final int[] BOUNDARY_ISBNS = { 1, 2, 30, 31, 32, 33, 63,
+			64, 1023, 1024, 1025, 32767, 32768, 32769, (1 << 20) - 1, 1 << 20,
+			(1 << 25) - 1, 1 << 25, (1 << 30) - 1, 1 << 30, (1 << 30) + 1,
+			Integer.MAX_VALUE - 1, Integer.MAX_VALUE };
+
+	private ConcurrentCertainBookStore store;
+
+	@Before
+	public void setUp() {
+		store = new ConcurrentCertainBookStore();
+	}
+
+	private static StockBook book(int ISBN) {
+		return new ImmutableStockBook(ISBN, "Volume " + ISBN, "Donald Knuth",
+				(float) 100, 1, 0, 0, 0, false);
+	}
+
+	private void addBooks(int... isbns) throws BookStoreException {
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN : isbns) {
+			books.add(book(ISBN));
+		}
+		store.addBooks(books);
+	}
+
+	private void removeBooks(int... isbns) throws BookStoreException {
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		for (int ISBN : isbns) {
+			isbnSet.add(ISBN);
+		}
+		store.removeBooks(isbnSet);
+	}
+
+	private static List<Integer> isbns(List<StockBook> books) {
+		List<Integer> isbns = new ArrayList<Integer>(books.size());
+		for (StockBook book : books) {
+			isbns.add(book.getISBN());
+		}
+		return isbns;
+	}
+
+	/**
+	 * Tests that the books of a snapshot are returned in ascending ISBN
+	 * order, whatever order they were added in
+	 */
+	@Test
+	public void testOrdering() throws BookStoreException {
+		List<Integer> shuffled = new ArrayList<Integer>();
+		for (int ISBN : BOUNDARY_ISBNS) {
+			shuffled.add(ISBN);
+		}
+		Collections.shuffle(shuffled, new Random(7));
+		long version = store.getCatalogSnapshot().getVersion();
+		for (int ISBN : shuffled) {
+			addBooks(ISBN);
+			assertEquals(++version, store.getCatalogSnapshot().getVersion());
+		}
+
+		CatalogSnapshot snapshot = store.getCatalogSnapshot();
+		assertEquals(BOUNDARY_ISBNS.length, snapshot.size());
+		assertEquals(new ArrayList<Integer>(new TreeSet<Integer>(shuffled)),
+				isbns(snapshot.getBooks()));
+		for (int ISBN : BOUNDARY_ISBNS) {
+			assertEquals(ISBN, snapshot.get(ISBN).getISBN());
+		}
+		assertNull(snapshot.get(3));
+		assertNull(snapshot.get(1 << 29));
+	}
+
+	/**
+	 * Tests that removing the last book of a node drops the node and leaves
+	 * its neighbours in place, down to an empty catalog
+	 */
+	@Test
+	public void testRemoveEmptiesSubtree() throws BookStoreException {
+		// 32 is alone in its leaf, Integer.MAX_VALUE alone in the upper half
+		// of the root
+		addBooks(1, 31, 32, 64, 1 << 20, Integer.MAX_VALUE);
+
+		removeBooks(32);
+		CatalogSnapshot snapshot = store.getCatalogSnapshot();
+		assertEquals(5, snapshot.size());
+		assertNull(snapshot.get(32));
+		assertEquals(Arrays.asList(1, 31, 64, 1 << 20, Integer.MAX_VALUE),
+				isbns(snapshot.getBooks()));
+		assertEquals(Arrays.asList(64, 1 << 20),
+				isbns(snapshot.getBooksAfter(31, 2)));
+
+		removeBooks(Integer.MAX_VALUE);
+		snapshot = store.getCatalogSnapshot();
+		assertEquals(4, snapshot.size());
+		assertTrue(snapshot.getBooksAfter(1 << 20, 10).isEmpty());
+
+		// Emptying a leaf that shares the path of the root with others
+		removeBooks(1, 31);
+		snapshot = store.getCatalogSnapshot();
+		assertEquals(Arrays.asList(64, 1 << 20),
+				isbns(snapshot.getBooks()));
+
+		removeBooks(64, 1 << 20);
+		snapshot = store.getCatalogSnapshot();
+		assertEquals(0, snapshot.size());
+		assertTrue(snapshot.getBooks().isEmpty());
+		assertTrue(snapshot.getBooksAfter(0, 10).isEmpty());
+
+		// The empty trie takes new books again
+		addBooks(32);
+		assertEquals(Collections.singletonList(32), isbns(store
+				.getCatalogSnapshot().getBooks()));
+	}
+
+	/**
+	 * Tests getBooksAfter from just below, at and just above every node
+	 * boundary, with page sizes that end inside and across nodes
+	 */
+	@Test
+	public void testGetBooksAfterNodeBoundaries() throws BookStoreException {
+		addBooks(BOUNDARY_ISBNS);
+		CatalogSnapshot snapshot = store.getCatalogSnapshot();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int ISBN : BOUNDARY_ISBNS) {
+			expected.add(ISBN);
+		}
+
+		List<Integer> afters = new ArrayList<Integer>();
+		afters.add(0);
+		for (int ISBN : BOUNDARY_ISBNS) {
+			afters.add(ISBN - 1);
+			afters.add(ISBN);
+		}
+		for (int after : afters) {
+			for (int max : new int[] { 1, 2, 5, 100 }) {
+				List<Integer> page = new ArrayList<Integer>();
+				for (int ISBN : expected.tailSet(after, false)) {
+					if (page.size() == max) {
+						break;
+					}
+					page.add(ISBN);
+				}
+				assertEquals("after " + after + ", max " + max, page,
+						isbns(snapshot.getBooksAfter(after, max)));
+			}
+		}
+		assertTrue(snapshot.getBooksAfter(Integer.MAX_VALUE, 10).isEmpty());
+		assertTrue(snapshot.getBooksAfter(0, 0).isEmpty());
+	}
+
+	/**
+	 * Tests the size of snapshots after books are replaced and removed, and
+	 * that older snapshots keep their books
+	 */
+	@Test
+	public void testSizeAfterReplaceAndRemove() throws BookStoreException {
+		addBooks(1, 2, 3, 32, 33, 1024);
+		CatalogSnapshot added = store.getCatalogSnapshot();
+		assertEquals(6, added.size());
+
+		// A replaced book is not counted twice
+		store.addCopies(Collections.singleton(new BookCopy(32, 4)));
+		CatalogSnapshot replaced = store.getCatalogSnapshot();
+		assertEquals(6, replaced.size());
+		assertEquals(6, replaced.getBooks().size());
+		assertEquals(5, replaced.get(32).getNumCopies());
+
+		removeBooks(2, 33);
+		CatalogSnapshot removed = store.getCatalogSnapshot();
+		assertEquals(4, removed.size());
+		assertEquals(4, removed.getBooks().size());
+		assertEquals(removed.getVersion(), replaced.getVersion() + 1);
+
+		store.removeAllBooks();
+		assertEquals(0, store.getCatalogSnapshot().size());
+
+		// Earlier versions are unchanged
+		assertEquals(6, added.size());
+		assertEquals(1, added.get(32).getNumCopies());
+		assertEquals(6, replaced.getBooks().size());
+		assertEquals(Arrays.asList(1, 3, 32, 1024),
+				isbns(removed.getBooks()));
+		assertEquals(0, new CatalogSnapshot().size());
+	}
+}
@@ -0,0 +1,261 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.acertainbookstore.utils.ConcurrentIntHashMap;
+
+/**
+ * Test class to test the ConcurrentIntHashMap, alone and with readers running
+ * alongside writers
+ *
+ */
+public class ConcurrentIntHashMapTest {
+
+	/**
+	 * Tests that put adds a key and replaces its value, and that putIfAbsent
+	 * never replaces one
+	 */
+	@Test
+	public void testPutAndReplace() {
+		ConcurrentIntHashMap<String> map = new ConcurrentIntHashMap<String>();
+		assertNull(map.put(7, "a"));
+		assertEquals("a", map.get(7));
+		assertEquals("a", map.put(7, "b"));
+		assertEquals("b", map.get(7));
+		assertEquals(1, map.size());
+
+		assertEquals("b", map.putIfAbsent(7, "c"));
+		assertEquals("b", map.get(7));
+		assertNull(map.putIfAbsent(8, "d"));
+		assertEquals("d", map.get(8));
+		assertEquals(2, map.size());
+		assertNull(map.get(9));
+		assertFalse(map.containsKey(9));
+
+		try {
+			map.put(10, null);
+			fail();
+		} catch (NullPointerException ex) {
+			;
+		}
+		assertFalse(map.containsKey(10));
+	}
+
+	/**
+	 * Tests that a removed key is gone, that it can be added again in the
+	 * slot it left behind, and that removed keys are not listed
+	 */
+	@Test
+	public void testRemoveAndReinsert() {
+		ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<Integer>(
+				0, 1);
+		for (int key = 1; key <= 10; key++) {
+			map.put(key, key);
+		}
+		assertEquals(Integer.valueOf(3), map.remove(3));
+		assertNull(map.remove(3));
+		assertNull(map.get(3));
+		assertFalse(map.containsKey(3));
+		assertEquals(9, map.size());
+		// Keys after the removed one in its probe sequence are still found
+		for (int key = 1; key <= 10; key++) {
+			assertEquals(key == 3 ? null : Integer.valueOf(key), map.get(key));
+		}
+
+		assertNull(map.putIfAbsent(3, 30));
+		assertEquals(Integer.valueOf(30), map.get(3));
+		assertEquals(10, map.size());
+
+		map.remove(5);
+		map.remove(6);
+		int[] keys = map.keys();
+		Arrays.sort(keys);
+		assertArrayEquals(new int[] { 1, 2, 3, 4, 7, 8, 9, 10 }, keys);
+		assertEquals(8, map.values().size());
+		assertFalse(map.values().contains(5));
+
+		// Removed entries fill the table until a rehash drops them
+		for (int key = 100; key < 100000; key++) {
+			map.put(key, key);
+			assertEquals(Integer.valueOf(key), map.remove(key));
+		}
+		assertEquals(8, map.size());
+		assertNull(map.get(99999));
+		assertEquals(Integer.valueOf(30), map.get(3));
+	}
+
+	/**
+	 * Tests that every entry survives the rehashes of a map that grows from
+	 * its smallest table
+	 */
+	@Test
+	public void testRehash() {
+		ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<Integer>(
+				0, 1);
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			int key = random.nextInt();
+			map.put(key, i);
+			expected.put(key, i);
+		}
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+		int[] keys = map.keys();
+		assertEquals(expected.size(), keys.length);
+		for (int key : keys) {
+			assertTrue(expected.containsKey(key));
+		}
+
+		// Keys that share their low bits all collide in one probe sequence
+		ConcurrentIntHashMap<Integer> colliding = new ConcurrentIntHashMap<Integer>(
+				0, 1);
+		for (int i = 0; i < 1000; i++) {
+			colliding.put(i << 16, i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Integer.valueOf(i), colliding.get(i << 16));
+		}
+	}
+
+	/**
+	 * Tests key 0, which marks the free slots of the tables, and negative keys
+	 */
+	@Test
+	public void testZeroAndNegativeKeys() {
+		ConcurrentIntHashMap<String> map = new ConcurrentIntHashMap<String>();
+		int[] specialKeys = { 0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE,
+				-42 };
+		assertNull(map.get(0));
+		for (int key : specialKeys) {
+			assertNull(map.put(key, "v" + key));
+		}
+		assertEquals(specialKeys.length, map.size());
+		for (int key : specialKeys) {
+			assertEquals("v" + key, map.get(key));
+		}
+		assertEquals("v0", map.putIfAbsent(0, "other"));
+		assertEquals("v0", map.put(0, "w0"));
+		assertEquals("w0", map.get(0));
+
+		int[] keys = map.keys();
+		Arrays.sort(keys);
+		int[] sorted = specialKeys.clone();
+		Arrays.sort(sorted);
+		assertArrayEquals(sorted, keys);
+		assertTrue(map.values().contains("w0"));
+
+		assertEquals("w0", map.remove(0));
+		assertNull(map.get(0));
+		assertNull(map.remove(0));
+		assertEquals("v-1", map.remove(-1));
+		assertEquals(specialKeys.length - 2, map.size());
+		assertNull(map.put(0, "x0"));
+		assertEquals("x0", map.get(0));
+	}
+
+	/**
+	 * Tests that readers running alongside writers that add, replace and
+	 * remove keys and rehash the table always find the keys that are never
+	 * removed, and never see a value of another key
+	 */
+	@Test
+	public void testConcurrentReadersAndWriters() throws InterruptedException {
+		final ConcurrentIntHashMap<Long> map = new ConcurrentIntHashMap<Long>(
+				0, 2);
+		final int stableKeys = 1000;
+		for (int key = 0; key < stableKeys; key++) {
+			map.put(-key, value(-key, 0));
+		}
+
+		final int numWriters = 4;
+		final int rounds = 20;
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final List<String> failures = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int w = 0; w < numWriters; w++) {
+			final int offset = w;
+			final int first = 1 + w * 10000;
+			writers.add(new Thread(new Runnable() {
+				public void run() {
+					for (int round = 1; round <= rounds; round++) {
+						for (int key = first; key < first + 5000; key++) {
+							map.put(key, value(key, round));
+						}
+						// Replace the values of the stable keys as well
+						for (int key = offset; key < stableKeys;
+								key += numWriters) {
+							map.put(-key, value(-key, round));
+						}
+						for (int key = first; key < first + 5000; key++) {
+							if (map.remove(key) == null) {
+								failures.add("Key " + key + " lost");
+							}
+						}
+					}
+				}
+			}));
+		}
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int r = 0; r < 2; r++) {
+			readers.add(new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random();
+					while (writing.get()) {
+						int key = -random.nextInt(stableKeys);
+						Long value = map.get(key);
+						if (value == null || keyOf(value) != key) {
+							failures.add("Key " + key + " read " + value);
+						}
+						key = 1 + random.nextInt(numWriters * 10000);
+						value = map.get(key);
+						if (value != null && keyOf(value) != key) {
+							failures.add("Key " + key + " read " + value);
+						}
+					}
+				}
+			}));
+		}
+		for (Thread reader : readers) {
+			reader.start();
+		}
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		writing.set(false);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(stableKeys, map.size());
+		for (int key = 0; key < stableKeys; key++) {
+			assertEquals(value(-key, rounds), map.get(-key).longValue());
+		}
+	}
+
+	private static long value(int key, int round) {
+		return ((long) key << 32) | round;
+	}
+
+	private static int keyOf(long value) {
+		return (int) (value >> 32);
+	}
+}
@@ -0,0 +1,365 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.OrderedMultiLock;
+
+/**
+ * Test class to test that the OrderedMultiLock takes each stripe of an
+ * operation once, backs off instead of deadlocking, counts its acquisitions
+ * and survives interrupts
+ *
+ */
+public class OrderedMultiLockTest {
+
+	private static final long TRY_LOCK_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(100);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(200);
+	// Long enough for a waiting thread to be seen holding its lower stripe
+	private static final long WAITER_TRY_LOCK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	private static OrderedMultiLock newLock(int numStripes) {
+		return new OrderedMultiLock(numStripes, TRY_LOCK_NANOS,
+				TRY_LOCK_NANOS / 10, MAX_BACKOFF_NANOS);
+	}
+
+	/**
+	 * Returns an ISBN above the given one whose stripe is (or is not) the
+	 * stripe of that ISBN
+	 */
+	private static int findISBN(OrderedMultiLock lock, int ISBN, boolean same) {
+		for (int other = ISBN + 1;; other++) {
+			if ((lock.getLock(other) == lock.getLock(ISBN)) == same) {
+				return other;
+			}
+		}
+	}
+
+	/**
+	 * Starts a thread that runs the given code and keeps what it throws
+	 */
+	private static Thread start(final Runnable runnable,
+			final AtomicReference<Throwable> failure) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					runnable.run();
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Tests that the number of stripes is rounded up to a power of two and
+	 * checked
+	 */
+	@Test
+	public void testStripeCount() {
+		assertEquals(1, newLock(1).getStripeCount());
+		assertEquals(1024, newLock(1000).getStripeCount());
+		assertEquals(1024, newLock(1024).getStripeCount());
+		assertEquals(OrderedMultiLock.MAX_STRIPES,
+				newLock(OrderedMultiLock.MAX_STRIPES).getStripeCount());
+		for (int numStripes : new int[] { 0, -1,
+				OrderedMultiLock.MAX_STRIPES + 1 }) {
+			try {
+				newLock(numStripes);
+				fail();
+			} catch (IllegalArgumentException ex) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * Tests that ISBNs sharing a stripe lock it once, since a second write
+	 * lock on the same stripe would wait on the caller itself, and that
+	 * releasing leaves the stripe free
+	 */
+	@Test(timeout = 10000)
+	public void testSharedStripeLockedOnce() throws InterruptedException {
+		// Every ISBN shares the only stripe
+		OrderedMultiLock single = newLock(1);
+		OrderedMultiLock.Acquisition acquisition = single.lock(
+				Arrays.asList(1, 2, 3, 1), true);
+		assertEquals(1, acquisition.getAttempts());
+		StampedLock stripe = single.getLock(1);
+		assertTrue(stripe.isWriteLocked());
+		acquisition.release();
+		assertFalse(stripe.isWriteLocked());
+		assertFalse(stripe.isReadLocked());
+
+		// Two ISBNs on one stripe next to one on another stripe
+		OrderedMultiLock lock = newLock(16);
+		int first = 1;
+		int sharing = findISBN(lock, first, true);
+		int other = findISBN(lock, first, false);
+		acquisition = lock.lock(Arrays.asList(sharing, other, first), true);
+		assertEquals(1, acquisition.getAttempts());
+		assertTrue(lock.getLock(first).isWriteLocked());
+		assertTrue(lock.getLock(other).isWriteLocked());
+		acquisition.release();
+		assertFalse(lock.getLock(first).isWriteLocked());
+		assertFalse(lock.getLock(other).isWriteLocked());
+
+		// Read locks are counted once per stripe as well
+		acquisition = lock.lock(Arrays.asList(first, sharing), false);
+		assertEquals(1, lock.getLock(first).getReadLockCount());
+		acquisition.release();
+		assertEquals(0, lock.getLock(first).getReadLockCount());
+
+		// Nothing to lock
+		lock.lock(Collections.<Integer> emptyList(), true).release();
+	}
+
+	/**
+	 * A thread locking two stripes while the test holds the upper one, so
+	 * that it keeps taking the lower one, timing out on the upper one and
+	 * backing off
+	 */
+	private static final class Waiter {
+		final AtomicReference<OrderedMultiLock.Acquisition> result = new AtomicReference<OrderedMultiLock.Acquisition>();
+		final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread thread;
+		StampedLock lower;
+		StampedLock upper;
+		long upperStamp;
+
+		Waiter(final OrderedMultiLock lock, int a, int b)
+				throws InterruptedException {
+			final List<Integer> basket = Arrays.asList(a, b);
+			StampedLock lockA = lock.getLock(a);
+			StampedLock lockB = lock.getLock(b);
+			long stampA = lockA.writeLock();
+			long stampB = lockB.writeLock();
+			thread = start(new Runnable() {
+				public void run() {
+					result.set(lock.lock(basket, true));
+					interrupted.set(Thread.currentThread().isInterrupted());
+				}
+			}, failure);
+			// The thread waits on its lower stripe. If that is a, it takes
+			// it as soon as it is free and holds it while it waits on b.
+			Thread.sleep(20);
+			lockA.unlockWrite(stampA);
+			Thread.sleep(20);
+			if (lockA.isWriteLocked()) {
+				lower = lockA;
+				upper = lockB;
+				upperStamp = stampB;
+			} else {
+				// The thread waits on b: hold a and let it take b
+				lower = lockB;
+				upper = lockA;
+				upperStamp = lockA.writeLock();
+				lockB.unlockWrite(stampB);
+				for (int i = 0; i < 1000 && !lockB.isWriteLocked(); i++) {
+					Thread.sleep(1);
+				}
+				assertTrue(lockB.isWriteLocked());
+			}
+		}
+
+		/**
+		 * Releases the upper stripe and returns the acquisition of the
+		 * thread
+		 */
+		OrderedMultiLock.Acquisition finish() throws InterruptedException {
+			upper.unlockWrite(upperStamp);
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+			assertNull(failure.get());
+			assertNotNull(result.get());
+			return result.get();
+		}
+	}
+
+	/**
+	 * Tests that an operation holding its first stripe while another holds
+	 * its second gives the first one up, backs off and retries until it gets
+	 * both, and that the statistics count the retries
+	 */
+	@Test
+	public void testBackOff() throws InterruptedException {
+		OrderedMultiLock lock = new OrderedMultiLock(16, WAITER_TRY_LOCK_NANOS,
+				1000, MAX_BACKOFF_NANOS);
+		int a = 1;
+		int b = findISBN(lock, a, false);
+		OrderedMultiLock.Statistics before = lock.getStatistics();
+		Waiter waiter = new Waiter(lock, a, b);
+
+		// The lower stripe is given back when the wait on the upper one
+		// times out
+		long lowerStamp = waiter.lower.tryWriteLock(10, TimeUnit.SECONDS);
+		assertTrue("the lower stripe was never given back", lowerStamp != 0);
+		waiter.lower.unlockWrite(lowerStamp);
+		assertNull(waiter.result.get());
+
+		OrderedMultiLock.Acquisition acquisition = waiter.finish();
+		assertTrue(acquisition.getAttempts() > 1);
+		assertEquals(Boolean.FALSE, waiter.interrupted.get());
+		assertTrue(waiter.lower.isWriteLocked());
+		assertTrue(waiter.upper.isWriteLocked());
+		acquisition.release();
+		assertFalse(waiter.lower.isWriteLocked());
+		assertFalse(waiter.upper.isWriteLocked());
+
+		OrderedMultiLock.Statistics after = lock.getStatistics();
+		assertEquals(1, after.getAcquisitions() - before.getAcquisitions());
+		assertEquals(1, after.getContendedAcquisitions()
+				- before.getContendedAcquisitions());
+		assertEquals(acquisition.getAttempts() - 1, after.getRetries()
+				- before.getRetries());
+		assertTrue(after.getWaitNanos() - before.getWaitNanos() >= acquisition
+				.getWaitNanos());
+	}
+
+	/**
+	 * Tests that baskets listing the same ISBNs in opposite orders, next to
+	 * baskets that hold one of them, never deadlock and never overlap
+	 */
+	@Test
+	public void testOppositeOrders() throws InterruptedException {
+		final OrderedMultiLock lock = newLock(64);
+		final int a = 1;
+		final int b = findISBN(lock, a, false);
+		final int c = findISBN(lock, b, false);
+		final List<List<Integer>> baskets = new ArrayList<List<Integer>>();
+		baskets.add(Arrays.asList(a, b, c));
+		baskets.add(Arrays.asList(c, b, a));
+		baskets.add(Arrays.asList(b, a));
+		baskets.add(Arrays.asList(c));
+
+		final int rounds = 2000;
+		// How many baskets hold each of a, b and c
+		final AtomicInteger[] holders = { new AtomicInteger(),
+				new AtomicInteger(), new AtomicInteger() };
+		final List<Integer> isbns = Arrays.asList(a, b, c);
+		final AtomicInteger overlaps = new AtomicInteger();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final List<Integer> basket : baskets) {
+			threads.add(start(new Runnable() {
+				public void run() {
+					for (int round = 0; round < rounds; round++) {
+						OrderedMultiLock.Acquisition acquisition = lock.lock(
+								basket, true);
+						try {
+							for (int ISBN : basket) {
+								if (holders[isbns.indexOf(ISBN)]
+										.incrementAndGet() != 1) {
+									overlaps.incrementAndGet();
+								}
+							}
+							if (round % 100 == 0) {
+								Thread.yield();
+							}
+							for (int ISBN : basket) {
+								holders[isbns.indexOf(ISBN)].decrementAndGet();
+							}
+						} finally {
+							acquisition.release();
+						}
+					}
+				}
+			}, failure));
+		}
+		for (Thread thread : threads) {
+			thread.join(60000);
+			assertFalse("deadlock", thread.isAlive());
+		}
+		assertNull(failure.get());
+		assertEquals(0, overlaps.get());
+		assertEquals(baskets.size() * rounds, lock.getStatistics()
+				.getAcquisitions());
+		for (int ISBN : new int[] { a, b, c }) {
+			assertFalse(lock.getLock(ISBN).isWriteLocked());
+		}
+	}
+
+	/**
+	 * Tests the statistics of uncontended acquisitions and of lockAll
+	 */
+	@Test
+	public void testStatistics() {
+		OrderedMultiLock lock = newLock(8);
+		OrderedMultiLock.Statistics statistics = lock.getStatistics();
+		assertEquals(0, statistics.getAcquisitions());
+		assertEquals(0, statistics.getContendedAcquisitions());
+		assertEquals(0, statistics.getRetries());
+		assertEquals(0, statistics.getWaitNanos());
+
+		for (int i = 0; i < 3; i++) {
+			OrderedMultiLock.Acquisition acquisition = lock.lock(
+					Arrays.asList(i, i + 1), i % 2 == 0);
+			assertEquals(1, acquisition.getAttempts());
+			assertTrue(acquisition.getWaitNanos() >= 0);
+			acquisition.release();
+		}
+		OrderedMultiLock.Acquisition all = lock.lockAll(true);
+		for (int ISBN = 0; ISBN < 100; ISBN++) {
+			assertTrue(lock.getLock(ISBN).isWriteLocked());
+		}
+		all.release();
+		for (int ISBN = 0; ISBN < 100; ISBN++) {
+			assertFalse(lock.getLock(ISBN).isWriteLocked());
+		}
+
+		statistics = lock.getStatistics();
+		assertEquals(4, statistics.getAcquisitions());
+		assertEquals(0, statistics.getContendedAcquisitions());
+		assertEquals(0, statistics.getRetries());
+		assertTrue(statistics.toString().contains("acquisitions = 4"));
+	}
+
+	/**
+	 * Tests that an interrupted caller still gets all its locks, by backing
+	 * off instead of failing, and finds its interrupt status set afterwards
+	 */
+	@Test
+	public void testInterrupt() throws InterruptedException {
+		OrderedMultiLock lock = new OrderedMultiLock(16, WAITER_TRY_LOCK_NANOS,
+				1000, MAX_BACKOFF_NANOS);
+		int a = 1;
+		int b = findISBN(lock, a, false);
+
+		// Interrupted before it starts
+		Thread.currentThread().interrupt();
+		OrderedMultiLock.Acquisition acquisition = lock.lock(
+				Arrays.asList(a, b), true);
+		assertTrue(Thread.interrupted());
+		acquisition.release();
+
+		// Interrupted while it waits for its second stripe
+		Waiter waiter = new Waiter(lock, a, b);
+		waiter.thread.interrupt();
+		Thread.sleep(20);
+		assertNull(waiter.result.get());
+		acquisition = waiter.finish();
+		assertEquals(Boolean.TRUE, waiter.interrupted.get());
+		assertTrue(acquisition.getAttempts() > 1);
+		assertTrue(waiter.lower.isWriteLocked());
+		assertTrue(waiter.upper.isWriteLocked());
+		acquisition.release();
+		assertFalse(waiter.lower.isWriteLocked());
+		assertFalse(waiter.upper.isWriteLocked());
+	}
+}
@@ -3,6 +3,7 @@ package com.acertainbookstore.client.tests;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -16,8 +17,12 @@ import org.junit.Test;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.ConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.IngestBatchResult;
+import com.acertainbookstore.business.IngestReport;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
@@ -438,6 +443,170 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.size() == 0);
 	}
 
+	/**
+	 * Tests that a book is in demand after a sale miss and until copies of
+	 * it are added
+	 */
+	@Test
+	public void testGetBooksInDemand() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1,
+				"The Art of Computer Programming", "Donald Knuth", (float) 300,
+				NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+		assertTrue(storeManager.getBooksInDemand().isEmpty());
+
+		// Buying one copy too many of the default book is a sale miss
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInDemand = storeManager.getBooksInDemand();
+		assertEquals(1, booksInDemand.size());
+		assertEquals(TEST_ISBN.intValue(), booksInDemand.get(0).getISBN());
+		assertEquals(1, booksInDemand.get(0).getSaleMisses());
+
+		Set<BookCopy> bookCopiesSet = new HashSet<BookCopy>();
+		bookCopiesSet.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+		storeManager.addCopies(bookCopiesSet);
+		assertTrue(storeManager.getBooksInDemand().isEmpty());
+	}
+
+	/**
+	 * Tests that the histogram counts the ratings given in the store by
+	 * value, and that ratings a book was added with only count in its totals
+	 */
+	@Test
+	public void testGetRatingHistogram() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1,
+				"The Art of Computer Programming", "Donald Knuth", (float) 300,
+				NUM_COPIES, 0, 2, 7, false));
+		storeManager.addBooks(booksToAdd);
+		assertEquals(Arrays.asList(0L, 0L, 0L, 0L, 0L, 0L),
+				storeManager.getRatingHistogram(TEST_ISBN + 1));
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 5));
+		ratings.add(new BookRating(TEST_ISBN + 1, 1));
+		client.rateBooks(ratings);
+		ratings.clear();
+		ratings.add(new BookRating(TEST_ISBN, 0));
+		ratings.add(new BookRating(TEST_ISBN + 1, 1));
+		client.rateBooks(ratings);
+
+		assertEquals(Arrays.asList(1L, 0L, 0L, 0L, 0L, 1L),
+				storeManager.getRatingHistogram(TEST_ISBN));
+		assertEquals(Arrays.asList(0L, 2L, 0L, 0L, 0L, 0L),
+				storeManager.getRatingHistogram(TEST_ISBN + 1));
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN + 1);
+		StockBook book = storeManager.getBooksByISBN(isbns).get(0);
+		assertEquals(4, book.getTimesRated());
+		assertEquals(9, book.getTotalRating());
+
+		try {
+			storeManager.getRatingHistogram(TEST_ISBN + 2);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that streamed books are added in batches, and that a book
+	 * rejected by addBooks or repeating an ISBN of its batch is rejected
+	 * without the rest of its batch
+	 */
+	@Test
+	public void testAddBooksStreaming() throws BookStoreException {
+		List<StockBook> books = new ArrayList<StockBook>();
+		for (int i = 1; i <= 25; i++) {
+			books.add(new ImmutableStockBook(TEST_ISBN + i, "Volume " + i,
+					"Donald Knuth", (float) 100, NUM_COPIES, 0, 0, 0, false));
+		}
+		// The default book is already in the store, so addBooks rejects it
+		books.set(15, getDefaultBook());
+		// Another edition with the ISBN of a book of the last batch
+		books.add(new ImmutableStockBook(TEST_ISBN + 21, "Volume 21, 2nd ed.",
+				"Donald Knuth", (float) 120, NUM_COPIES, 0, 0, 0, false));
+
+		IngestReport report = storeManager.addBooksStreaming(books.iterator(),
+				10);
+		assertEquals(24, report.getBooksAdded());
+		assertEquals(2, report.getBooksRejected());
+		assertNull(report.getStreamError());
+		assertFalse(report.isComplete());
+		List<String> errors = new ArrayList<String>();
+		for (IngestBatchResult batch : report.getBatches()) {
+			if (!batch.isAdded()) {
+				assertEquals(1, batch.getNumBooks());
+				errors.add(batch.getError());
+			}
+		}
+		assertEquals(2, errors.size());
+		assertTrue(errors.get(0).contains(String.valueOf(TEST_ISBN)));
+		assertTrue(errors.get(1).contains(String.valueOf(TEST_ISBN + 21)));
+
+		List<StockBook> listBooks = storeManager.getBooks();
+		assertEquals(25, listBooks.size());
+		assertTrue(listBooks.contains(books.get(0)));
+		assertTrue(listBooks.contains(books.get(14)));
+		assertTrue(listBooks.contains(books.get(16)));
+		assertTrue(listBooks.contains(books.get(20)));
+		assertFalse(listBooks.contains(books.get(25)));
+	}
+
+	/**
+	 * Tests that paging through the catalog returns every book once, in ISBN
+	 * order, as the catalog was when the first page was read
+	 */
+	@Test
+	public void testGetBooksPaged() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		for (int i = 1; i <= 24; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Volume " + i,
+					"Donald Knuth", (float) 100, NUM_COPIES, 0, 0, 0, false));
+		}
+		storeManager.addBooks(booksToAdd);
+
+		BookPage page = storeManager.getBooks(null, 10);
+		assertEquals(10, page.getBooks().size());
+		assertFalse(page.isLastPage());
+
+		// Changes after the first page do not show in the later pages
+		Set<Integer> isbnsToRemove = new HashSet<Integer>();
+		isbnsToRemove.add(TEST_ISBN + 20);
+		storeManager.removeBooks(isbnsToRemove);
+
+		List<StockBook> books = new ArrayList<StockBook>(page.getBooks());
+		int pages = 1;
+		while (!page.isLastPage()) {
+			page = storeManager.getBooks(page.getNextCursor(), 10);
+			books.addAll(page.getBooks());
+			pages++;
+		}
+		assertEquals(3, pages);
+		assertEquals(25, books.size());
+		for (int i = 0; i < books.size(); i++) {
+			assertEquals(TEST_ISBN + i, books.get(i).getISBN());
+		}
+
+		assertEquals(24, storeManager.getBooks(null, 100).getBooks().size());
+		try {
+			storeManager.getBooks(null, 0);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
 	@AfterClass
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
@@ -0,0 +1,466 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.IngestReport;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.CursorExpiredException;
+import com.acertainbookstore.utils.ServerOverloadedException;
+import com.acertainbookstore.utils.XMLCodec;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
+
+/**
+ * Test class to test that the XMLCodec reads and writes the XML XStream
+ * reads and writes
+ *
+ */
+public class XMLCodecTest {
+
+	private static final XMLCodec codec = new XMLCodec();
+
+	// What XStream writes on Java 8 for a throwable without suppressed
+	// exceptions
+	private static final String JAVA8_NO_SUPPRESSED = "<suppressedExceptions class=\"java.util.Collections$UnmodifiableRandomAccessList\" resolves-to=\"java.util.Collections$UnmodifiableList\"><c class=\"list\"></c><list reference=\"../c\"></list></suppressedExceptions>";
+
+	// What XStream 1.4.8 writes on Java 8 for a BookStoreException with a
+	// CursorExpiredException caused by a NumberFormatException, and with a
+	// suppressed ServerOverloadedException: the empty list of suppressed
+	// exceptions the throwables share is written in full once, and referred
+	// to from then on
+	private static final String JAVA8_EXCEPTION = "<?xml version=\"1.0\" ?><com.acertainbookstore.utils.BookStoreResponse><exception><detailMessage>outer</detailMessage>"
+			+ "<cause class=\"com.acertainbookstore.utils.CursorExpiredException\"><detailMessage>inner</detailMessage>"
+			+ "<cause class=\"java.lang.NumberFormatException\"><detailMessage>For input string: \"x\"</detailMessage><stackTrace><trace>java.lang.Integer.parseInt(Integer.java:580)</trace></stackTrace>"
+			+ "<suppressedExceptions class=\"java.util.Collections$UnmodifiableRandomAccessList\" resolves-to=\"java.util.Collections$UnmodifiableList\"><c class=\"list\"></c><list reference=\"../c\"></list></suppressedExceptions></cause>"
+			+ "<stackTrace></stackTrace><suppressedExceptions class=\"java.util.Collections$UnmodifiableRandomAccessList\" reference=\"../cause/suppressedExceptions\"></suppressedExceptions></cause>"
+			+ "<stackTrace><trace>a.B.m(B.java:3)</trace></stackTrace><suppressedExceptions><com.acertainbookstore.utils.ServerOverloadedException><detailMessage>suppressed</detailMessage><stackTrace></stackTrace>"
+			+ "<suppressedExceptions class=\"java.util.Collections$UnmodifiableRandomAccessList\" reference=\"../../../cause/cause/suppressedExceptions\"></suppressedExceptions></com.acertainbookstore.utils.ServerOverloadedException></suppressedExceptions>"
+			+ "</exception></com.acertainbookstore.utils.BookStoreResponse>";
+
+	private static final boolean JAVA8 = System.getProperty(
+			"java.specification.version").startsWith("1.");
+
+	/**
+	 * Returns the requests the clients send and the responses the server
+	 * sends
+	 */
+	private static List<Object> getMessages() throws BookStoreException {
+		List<Object> messages = new ArrayList<Object>();
+
+		Set<StockBook> stockBooks = new HashSet<StockBook>();
+		stockBooks.add(new ImmutableStockBook(3044560, "Harry Potter and JUnit",
+				"JK Unit", 10.5f, 5, 0, 0, 0, false));
+		stockBooks.add(new ImmutableStockBook(3044561,
+				"Escaped <&> \"quotes\" 'and' ]]> \u00e9\u2603 \t", " & ", 1e-10f,
+				Integer.MAX_VALUE, Long.MAX_VALUE, 3, 12, true));
+		messages.add(stockBooks);
+		Set<StockBook> invalidBooks = new HashSet<StockBook>(stockBooks);
+		invalidBooks.add(new ImmutableStockBook(3044563, "", "", 1, 1, 0, 0,
+				0, false));
+		invalidBooks.add(new ImmutableStockBook(3044562, null, null,
+				Float.NaN, 0, 0, 0, 0, false));
+		messages.add(invalidBooks);
+
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(3044560, 2));
+		bookCopies.add(new BookCopy(-1, -3));
+		messages.add(bookCopies);
+		messages.add(new HashSet<Integer>(Arrays.asList(3044560, 3044561, -5)));
+		messages.add(Collections.singleton(new BookRating(3044560, 4)));
+		messages.add(new HashSet<BookEditorPick>(Arrays.asList(
+				new BookEditorPick(3044560, true), new BookEditorPick(3044561,
+						false))));
+		messages.add(new HashSet<Integer>());
+		messages.add("test");
+
+		// The responses of a bookstore holding the books
+		ConcurrentCertainBookStore store = new ConcurrentCertainBookStore();
+		store.addBooks(stockBooks);
+		messages.add(response(store.getBooks()));
+		messages.add(response(store.getBooks(new HashSet<Integer>(Arrays
+				.asList(3044560, 3044561)))));
+		messages.add(response(store.getEditorPicks(1)));
+		messages.add(response(Collections.singletonList(store.getBooks(null,
+				2))));
+		messages.add(response(Collections.singletonList(new BookPage(
+				new ArrayList<StockBook>(), null))));
+		messages.add(response(new ArrayList<Book>()));
+		messages.add(response(Collections.emptyList()));
+		messages.add(response(new LinkedList<Object>(Arrays.asList(1, null,
+				"two"))));
+		messages.add(new BookStoreResponse());
+
+		IngestReport report = new IngestReport();
+		report.addBatch(100, null);
+		report.addBatch(7, "Invalid <ISBN>");
+		report.setStreamError("Truncated stream");
+		messages.add(response(Collections.singletonList(report)));
+		messages.add(response(Collections.singletonList(new IngestReport())));
+
+		try {
+			store.getBooks(Collections.singleton(-1));
+			fail();
+		} catch (BookStoreException ex) {
+			messages.add(exceptionResponse(ex));
+		}
+		messages.add(exceptionResponse(new CursorExpiredException("expired")));
+		messages.add(exceptionResponse(new ServerOverloadedException(
+				"overloaded")));
+		messages.add(exceptionResponse(new BookStoreException("outer",
+				new BookStoreException("inner"))));
+		messages.add(exceptionResponse(new BookStoreException((String) null)));
+		BookStoreException suppressing = new BookStoreException("suppressing");
+		suppressing.addSuppressed(new CursorExpiredException("suppressed"));
+		messages.add(exceptionResponse(suppressing));
+		messages.add(exceptionResponse(chainedException()));
+		return messages;
+	}
+
+	/**
+	 * Returns an exception the way the server answers a malformed number,
+	 * wrapping the exception of convertStringToInt, which wraps a
+	 * NumberFormatException, and with suppressed exceptions with causes of
+	 * their own
+	 */
+	private static BookStoreException chainedException() {
+		BookStoreException chained = null;
+		try {
+			BookStoreUtility.convertStringToInt("x");
+			fail();
+		} catch (BookStoreException ex) {
+			chained = new BookStoreException(ex);
+		}
+		chained.addSuppressed(new BookStoreException("first",
+				new IllegalStateException("first cause")));
+		chained.addSuppressed(new BookStoreException("second"));
+		return chained;
+	}
+
+	private static BookStoreResponse response(List<?> list) {
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(list);
+		return response;
+	}
+
+	private static BookStoreResponse exceptionResponse(BookStoreException ex) {
+		BookStoreResponse response = new BookStoreResponse();
+		response.setException(ex);
+		return response;
+	}
+
+	/**
+	 * Returns a response with an exception of the fields, after its message
+	 */
+	private static String exceptionXML(String fields) {
+		return "<?xml version=\"1.0\" ?><com.acertainbookstore.utils.BookStoreResponse><exception><detailMessage>m</detailMessage>"
+				+ fields
+				+ "</exception></com.acertainbookstore.utils.BookStoreResponse>";
+	}
+
+	private static String encode(Object message) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.encode(message, out);
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private static Object decode(String xml) throws IOException {
+		return codec.decode(new ByteArrayInputStream(xml.getBytes("UTF-8")),
+				"UTF-8");
+	}
+
+	/**
+	 * Tests that the codec writes exactly what XStream writes
+	 */
+	@Test
+	public void testEncodeMatchesXStream() throws Exception {
+		for (Object message : getMessages()) {
+			assertEquals(BookStoreUtility.serializeObjectToXMLString(message),
+					encode(message));
+		}
+	}
+
+	/**
+	 * Tests that the codec reads the XML of XStream into the objects XStream
+	 * reads it into
+	 */
+	@Test
+	public void testDecodeMatchesXStream() throws Exception {
+		for (Object message : getMessages()) {
+			String xml = BookStoreUtility.serializeObjectToXMLString(message);
+			Object decoded = decode(xml);
+			Object expected = BookStoreUtility.deserializeXMLStringToObject(xml);
+			assertEquals(expected.getClass(), decoded.getClass());
+			assertEquals(xml, encode(decoded));
+			assertEquals(BookStoreUtility.serializeObjectToXMLString(expected),
+					BookStoreUtility.serializeObjectToXMLString(decoded));
+		}
+	}
+
+	/**
+	 * Tests the fields of the decoded books and exceptions
+	 */
+	@Test
+	public void testDecodedFields() throws Exception {
+		BookStoreResponse response = (BookStoreResponse) decode(encode(response(Collections
+				.singletonList(new ImmutableStockBook(7, "T\u00eftle", "A",
+						2.5f, 3, 4, 5, 6, true)))));
+		ImmutableStockBook book = (ImmutableStockBook) response.getList()
+				.get(0);
+		assertEquals(7, book.getISBN());
+		assertEquals("T\u00eftle", book.getTitle());
+		assertEquals("A", book.getAuthor());
+		assertEquals(2.5f, book.getPrice(), 0);
+		assertEquals(3, book.getNumCopies());
+		assertEquals(4, book.getSaleMisses());
+		assertEquals(5, book.getTimesRated());
+		assertEquals(6, book.getTotalRating());
+		assertTrue(book.isEditorPick());
+
+		BookStoreException cause = new BookStoreException("inner");
+		response = (BookStoreResponse) decode(encode(exceptionResponse(new CursorExpiredException(
+				"expired"))));
+		assertTrue(response.getException() instanceof CursorExpiredException);
+		assertEquals("expired", response.getException().getMessage());
+		response = (BookStoreResponse) decode(encode(exceptionResponse(new BookStoreException(
+				"outer", cause))));
+		assertEquals("inner", response.getException().getCause().getMessage());
+		StackTraceElement[] trace = response.getException().getCause()
+				.getStackTrace();
+		assertEquals(cause.getStackTrace().length, trace.length);
+		for (int i = 0; i < trace.length; i++) {
+			assertEquals(cause.getStackTrace()[i].toString(),
+					trace[i].toString());
+		}
+	}
+
+	/**
+	 * Tests that the exceptions XStream writes on Java 8, with references to
+	 * the empty list of suppressed exceptions, are read on any Java version,
+	 * and written back the same on Java 8
+	 */
+	@Test
+	public void testDecodeJava8Exception() throws Exception {
+		BookStoreResponse response = (BookStoreResponse) decode(JAVA8_EXCEPTION);
+		BookStoreException ex = response.getException();
+		assertEquals("outer", ex.getMessage());
+		assertEquals(1, ex.getStackTrace().length);
+		assertEquals(3, ex.getStackTrace()[0].getLineNumber());
+		assertEquals(1, ex.getSuppressed().length);
+		assertTrue(ex.getSuppressed()[0] instanceof ServerOverloadedException);
+		assertEquals("suppressed", ex.getSuppressed()[0].getMessage());
+		assertEquals(0, ex.getSuppressed()[0].getSuppressed().length);
+		assertTrue(ex.getCause() instanceof CursorExpiredException);
+		assertEquals("inner", ex.getCause().getMessage());
+		assertEquals(0, ex.getCause().getSuppressed().length);
+		Throwable cause = ex.getCause().getCause();
+		assertTrue(cause instanceof NumberFormatException);
+		assertEquals("For input string: \"x\"", cause.getMessage());
+		assertEquals(580, cause.getStackTrace()[0].getLineNumber());
+		assertEquals(0, cause.getSuppressed().length);
+		if (JAVA8) {
+			assertEquals(JAVA8_EXCEPTION, encode(response));
+		}
+	}
+
+	/**
+	 * Tests that an exception with causes and suppressed exceptions is
+	 * written as XStream writes it and read back with all of them
+	 */
+	@Test
+	public void testChainedExceptionRoundTrip() throws Exception {
+		BookStoreException chained = chainedException();
+		String xml = encode(exceptionResponse(chained));
+		assertEquals(BookStoreUtility
+				.serializeObjectToXMLString(exceptionResponse(chained)), xml);
+
+		BookStoreException ex = ((BookStoreResponse) decode(xml))
+				.getException();
+		assertEquals(chained.getMessage(), ex.getMessage());
+		assertEquals(BookStoreException.class, ex.getCause().getClass());
+		assertEquals(NumberFormatException.class, ex.getCause().getCause()
+				.getClass());
+		assertEquals(chained.getCause().getCause().getMessage(), ex
+				.getCause().getCause().getMessage());
+		assertNull(ex.getCause().getCause().getCause());
+		assertEquals(2, ex.getSuppressed().length);
+		assertEquals("first", ex.getSuppressed()[0].getMessage());
+		assertEquals(IllegalStateException.class, ex.getSuppressed()[0]
+				.getCause().getClass());
+		assertEquals("second", ex.getSuppressed()[1].getMessage());
+		assertEquals(xml, encode(decode(xml)));
+	}
+
+	/**
+	 * Tests that requests of clients that send ISO-8859-1 are read in their
+	 * charset
+	 */
+	@Test
+	public void testDecodeCharset() throws Exception {
+		String xml = BookStoreUtility.serializeObjectToXMLString(Collections
+				.singleton(new ImmutableStockBook(1, "Caf\u00e9", "A", 1, 1, 0,
+						0, 0, false)));
+		@SuppressWarnings("unchecked")
+		Set<StockBook> books = (Set<StockBook>) codec.decode(
+				new ByteArrayInputStream(xml.getBytes("ISO-8859-1")),
+				"ISO-8859-1");
+		assertEquals("Caf\u00e9", books.iterator().next().getTitle());
+	}
+
+	/**
+	 * Tests that malformed messages fail with an IOException
+	 */
+	@Test
+	public void testDecodeMalformed() throws Exception {
+		String set = BookStoreUtility.serializeObjectToXMLString(Collections
+				.singleton(new BookCopy(1, 1)));
+		String[] malformed = {
+				"",
+				set.substring(0, set.length() - 5),
+				set.replace("numCopies", "copies"),
+				set.replace("<numCopies>1<", "<numCopies>one<"),
+				"<?xml version=\"1.0\" ?><java.lang.Runtime></java.lang.Runtime>",
+				"<?xml version=\"1.0\" ?><list><string>a</string><string reference=\"../string\"></string></list>",
+				"<?xml version=\"1.0\" ?><!DOCTYPE list [<!ENTITY e SYSTEM \"file:///etc/passwd\">]><list><string>&e;</string></list>",
+				exceptionXML("<cause reference=\"../..\"></cause>"
+						+ JAVA8_NO_SUPPRESSED),
+				exceptionXML("<suppressedExceptions><com.acertainbookstore.utils.BookStoreException reference=\"../..\"></com.acertainbookstore.utils.BookStoreException></suppressedExceptions>"),
+				exceptionXML(JAVA8_NO_SUPPRESSED.replace("<c class=\"list\">",
+						"<c class=\"list\"><string>x</string>")),
+				exceptionXML(JAVA8_NO_SUPPRESSED.replace("../c", "../..")),
+				// References to the empty list before it was met, and to
+				// another element
+				exceptionXML("<suppressedExceptions class=\"java.util.Collections$UnmodifiableRandomAccessList\" reference=\"../cause/suppressedExceptions\"></suppressedExceptions>"),
+				JAVA8_EXCEPTION.replace("reference=\"../cause/suppressedExceptions\"",
+						"reference=\"../cause/stackTrace\""),
+				JAVA8_EXCEPTION.replace("../../../cause/cause/", "../../../cause/"),
+				exceptionXML("<suppressedExceptions class=\"linked-list\"></suppressedExceptions>") };
+		for (String xml : malformed) {
+			try {
+				decode(xml);
+				fail(xml);
+			} catch (IOException ex) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * Tests that the object streams of the streaming ingest are written and
+	 * read the way XStream writes and reads them
+	 */
+	@Test
+	public void testObjectStreamMatchesXStream() throws Exception {
+		List<StockBook> books = new ArrayList<StockBook>();
+		for (int i = 1; i <= 3; i++) {
+			books.add(new ImmutableStockBook(i, "Title <" + i + ">",
+					i == 2 ? null : "Author", i, i, 0, 0, 0, false));
+		}
+		for (int n = 0; n <= books.size(); n++) {
+			List<StockBook> sent = books.subList(0, n);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			ObjectOutputStream out = new XStream(new StaxDriver())
+					.createObjectOutputStream(new OutputStreamWriter(expected,
+							"UTF-8"), "objects");
+			for (StockBook book : sent) {
+				out.writeObject(book);
+			}
+			out.close();
+
+			ByteArrayOutputStream written = new ByteArrayOutputStream();
+			InputStream in = BookStoreUtility.serializeObjectsToXMLStream(sent
+					.iterator());
+			int b;
+			while ((b = in.read()) != -1) {
+				written.write(b);
+			}
+			assertEquals(expected.toString("UTF-8"), written.toString("UTF-8"));
+
+			Iterator<StockBook> read = BookStoreUtility
+					.deserializeXMLStreamToObjects(new ByteArrayInputStream(
+							expected.toByteArray()), StockBook.class);
+			for (StockBook book : sent) {
+				assertEquals(BookStoreUtility.serializeObjectToXMLString(book),
+						BookStoreUtility.serializeObjectToXMLString(read.next()));
+			}
+			assertFalse(read.hasNext());
+		}
+
+		Iterator<StockBook> read = BookStoreUtility.deserializeXMLStreamToObjects(
+				new ByteArrayInputStream("<?xml version=\"1.0\" ?><objects><string>a</string></objects>"
+						.getBytes("UTF-8")), StockBook.class);
+		try {
+			read.hasNext();
+			fail();
+		} catch (IllegalStateException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that threads sharing the codec get the same output
+	 */
+	@Test
+	public void testConcurrentUse() throws Exception {
+		final List<Object> messages = getMessages();
+		final List<String> expected = new ArrayList<String>();
+		for (Object message : messages) {
+			expected.add(BookStoreUtility.serializeObjectToXMLString(message));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 4; t++) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						for (int i = 0; i < 50; i++) {
+							for (int m = 0; m < messages.size(); m++) {
+								String xml = encode(messages.get(m));
+								if (!xml.equals(expected.get(m))
+										|| !encode(decode(xml)).equals(xml)) {
+									return false;
+								}
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * AsyncClientBenchmark sends getBooks requests to a running server with a
+ * fixed number of requests in flight, once from a single thread through the
+ * asynchronous API and once from one thread per request in flight through
+ * the synchronous API, and compares the throughput and the peak number of
+ * threads of the client.
+ *
+ * Usage: AsyncClientBenchmark [server] [requests in flight] [requests]
+ */
+public class AsyncClientBenchmark {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int NUM_BOOKS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		String server = args.length > 0 ? args[0] : "http://localhost:8081";
+		int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+		StockManagerHTTPProxy stockManager = new StockManagerHTTPProxy(server
+				+ "/stock");
+		BookStoreHTTPProxy bookStore = new BookStoreHTTPProxy(server);
+		try {
+			stockManager.removeAllBooks();
+			Set<StockBook> books = new HashSet<StockBook>();
+			for (int i = 0; i < NUM_BOOKS; i++) {
+				books.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+						"Author " + i, 10, 100, 0, 0, 0, false));
+			}
+			stockManager.addBooks(books);
+
+			// Warm up both sides, a short warm up favours the second run
+			runAsync(bookStore, inFlight, requests);
+			runSync(bookStore, inFlight, requests);
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			threads.resetPeakThreadCount();
+			double asyncOps = runAsync(bookStore, inFlight, requests);
+			int asyncThreads = threads.getPeakThreadCount();
+
+			threads.resetPeakThreadCount();
+			double syncOps = runSync(bookStore, inFlight, requests);
+			int syncThreads = threads.getPeakThreadCount();
+
+			System.out.printf("in flight=%d requests=%d%n", inFlight, requests);
+			System.out.printf("async: %.0f requests/s, peak threads %d%n",
+					asyncOps, asyncThreads);
+			System.out.printf("sync:  %.0f requests/s, peak threads %d%n",
+					syncOps, syncThreads);
+		} finally {
+			bookStore.stop();
+			stockManager.stop();
+		}
+	}
+
+	private static Set<Integer> isbns(long request) {
+		return Collections.singleton(FIRST_ISBN + (int) (request % NUM_BOOKS));
+	}
+
+	/**
+	 * Sends the requests from the calling thread, starting a new one whenever
+	 * one completes
+	 *
+	 * @return the throughput in requests per second
+	 */
+	private static double runAsync(BookStoreHTTPProxy bookStore,
+			int inFlight, int requests) throws InterruptedException {
+		final Semaphore permits = new Semaphore(inFlight);
+		final AtomicLong failures = new AtomicLong();
+		BiConsumer<List<Book>, Throwable> done = new BiConsumer<List<Book>, Throwable>() {
+			public void accept(List<Book> books, Throwable ex) {
+				if (ex != null) {
+					failures.incrementAndGet();
+				}
+				permits.release();
+			}
+		};
+
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			permits.acquire();
+			bookStore.getBooksAsync(isbns(i)).whenComplete(done);
+		}
+		permits.acquire(inFlight);
+		long elapsed = System.nanoTime() - start;
+
+		if (failures.get() != 0) {
+			throw new IllegalStateException(failures.get()
+					+ " requests failed");
+		}
+		return requests / (elapsed / 1e9);
+	}
+
+	/**
+	 * Sends the requests from one thread per request in flight
+	 *
+	 * @return the throughput in requests per second
+	 */
+	private static double runSync(final BookStoreHTTPProxy bookStore,
+			int inFlight, int requests) throws InterruptedException {
+		final AtomicLong next = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(inFlight);
+		final long total = requests;
+
+		long start = System.nanoTime();
+		for (int t = 0; t < inFlight; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						long request;
+						while ((request = next.getAndIncrement()) < total) {
+							try {
+								bookStore.getBooks(isbns(request));
+							} catch (BookStoreException ex) {
+								failures.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		if (failures.get() != 0) {
+			throw new IllegalStateException(failures.get()
+					+ " requests failed");
+		}
+		return requests / (elapsed / 1e9);
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+import com.acertainbookstore.utils.ConcurrentIntHashMap;
+
+/**
+ * CatalogFootprintBenchmark measures the heap taken by the ISBN index and
+ * the lock table of a catalog, in bytes per book. It fills a
+ * ConcurrentHashMap keyed by boxed ISBNs and a ConcurrentIntHashMap with the
+ * same shared books and locks, so only the cost of the maps themselves is
+ * counted.
+ *
+ * Usage: CatalogFootprintBenchmark [books]
+ */
+public class CatalogFootprintBenchmark {
+
+	// Large enough that no ISBN is a cached Integer
+	private static final int FIRST_ISBN = 1000000;
+
+	// Keeps the measured maps reachable while the heap is measured
+	private static Object[] retained;
+
+	public static void main(String[] args) {
+		int numBooks = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+		// Shared by both layouts so neither is charged for them
+		Object[] books = new Object[numBooks];
+		StampedLock[] locks = new StampedLock[numBooks];
+		for (int i = 0; i < numBooks; i++) {
+			books[i] = new Object();
+			locks[i] = new StampedLock();
+		}
+
+		long base = usedHeap();
+		ConcurrentMap<Integer, Object> boxedBooks = new ConcurrentHashMap<Integer, Object>();
+		ConcurrentMap<Integer, StampedLock> boxedLocks = new ConcurrentHashMap<Integer, StampedLock>();
+		for (int i = 0; i < numBooks; i++) {
+			boxedBooks.put(FIRST_ISBN + i, books[i]);
+			boxedLocks.put(FIRST_ISBN + i, locks[i]);
+		}
+		retained = new Object[] { books, locks, boxedBooks, boxedLocks };
+		boxedBooks = null;
+		boxedLocks = null;
+		long boxed = usedHeap() - base;
+		retained = null;
+
+		base = usedHeap();
+		ConcurrentIntHashMap<Object> intBooks = new ConcurrentIntHashMap<Object>();
+		ConcurrentIntHashMap<StampedLock> intLocks = new ConcurrentIntHashMap<StampedLock>();
+		for (int i = 0; i < numBooks; i++) {
+			intBooks.put(FIRST_ISBN + i, books[i]);
+			intLocks.put(FIRST_ISBN + i, locks[i]);
+		}
+		retained = new Object[] { books, locks, intBooks, intLocks };
+		intBooks = null;
+		intLocks = null;
+		long primitive = usedHeap() - base;
+		retained = null;
+
+		System.out.printf("books=%d%n", numBooks);
+		System.out.printf("ConcurrentHashMap<Integer, ...>: %.1f bytes/book%n",
+				boxed / (double) numBooks);
+		System.out.printf("ConcurrentIntHashMap:           %.1f bytes/book%n",
+				primitive / (double) numBooks);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.MasterLockCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * CatalogThroughputBenchmark compares the throughput of the bookstore engines
+ * in-process under a mixed workload of lookups, purchases and stock manager
+ * imports. Every thread runs the same mix for a fixed time:
+ *
+ * 90% getBooks of 1-3 random ISBNs, 8% buyBooks of one copy, 2% addBooks
+ * followed by removeBooks of a fresh ISBN.
+ *
+ * Usage: CatalogThroughputBenchmark [threads] [books] [seconds] [stripes...]
+ *
+ * Every stripe count given runs the concurrent engine once more with that
+ * many lock stripes, to compare contention against lock memory.
+ */
+public class CatalogThroughputBenchmark {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int COPIES = Integer.MAX_VALUE / 2;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+				.getRuntime().availableProcessors();
+		int numBooks = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		MasterLockCertainBookStore masterLockStore = new MasterLockCertainBookStore();
+		ConcurrentCertainBookStore concurrentStore = new ConcurrentCertainBookStore();
+
+		// Warm up both engines before measuring
+		run(masterLockStore, masterLockStore, threads, numBooks, 1);
+		run(concurrentStore, concurrentStore, threads, numBooks, 1);
+
+		double masterLock = run(masterLockStore, masterLockStore, threads,
+				numBooks, seconds);
+		double concurrent = run(concurrentStore, concurrentStore, threads,
+				numBooks, seconds);
+
+		System.out.printf("threads=%d books=%d%n", threads, numBooks);
+		System.out.printf("masterlock: %.0f ops/s%n", masterLock);
+		System.out.printf("concurrent, %d stripes: %.0f ops/s (%.2fx)%n",
+				concurrentStore.getLockStripeCount(), concurrent, concurrent
+						/ masterLock);
+		System.out.println("concurrent lock waits: "
+				+ concurrentStore.getLockStatistics());
+
+		for (int i = 3; i < args.length; i++) {
+			ConcurrentCertainBookStore stripedStore = new ConcurrentCertainBookStore(
+					Integer.parseInt(args[i]));
+			run(stripedStore, stripedStore, threads, numBooks, 1);
+			double striped = run(stripedStore, stripedStore, threads,
+					numBooks, seconds);
+			System.out.printf("concurrent, %d stripes: %.0f ops/s (%.2fx), %s%n",
+					stripedStore.getLockStripeCount(), striped, striped
+							/ masterLock, stripedStore.getLockStatistics());
+		}
+	}
+
+	/**
+	 * Loads numBooks books and runs the workload for the given time
+	 *
+	 * @return the throughput in operations per second
+	 */
+	public static double run(final BookStore client,
+			final StockManager stockManager, int threads, final int numBooks,
+			int seconds) throws Exception {
+		stockManager.removeAllBooks();
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int i = 0; i < numBooks; i++) {
+			books.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+					"Author " + i, 10, COPIES, 0, 0, 0, false));
+		}
+		stockManager.addBooks(books);
+
+		final AtomicLong operations = new AtomicLong();
+		final AtomicLong nextImportISBN = new AtomicLong(FIRST_ISBN
+				+ numBooks);
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long count = 0;
+					try {
+						while (System.nanoTime() < deadline) {
+							int op = random.nextInt(100);
+							if (op < 90) {
+								Set<Integer> isbns = new HashSet<Integer>();
+								int size = 1 + random.nextInt(3);
+								while (isbns.size() < size) {
+									isbns.add(FIRST_ISBN
+											+ random.nextInt(numBooks));
+								}
+								client.getBooks(isbns);
+							} else if (op < 98) {
+								Set<BookCopy> copies = new HashSet<BookCopy>();
+								copies.add(new BookCopy(FIRST_ISBN
+										+ random.nextInt(numBooks), 1));
+								client.buyBooks(copies);
+							} else {
+								int isbn = (int) nextImportISBN
+										.getAndIncrement();
+								Set<StockBook> newBooks = new HashSet<StockBook>();
+								newBooks.add(new ImmutableStockBook(isbn,
+										"Import", "Supplier", 5, 1, 0, 0, 0,
+										false));
+								stockManager.addBooks(newBooks);
+								Set<Integer> isbns = new HashSet<Integer>();
+								isbns.add(isbn);
+								stockManager.removeBooks(isbns);
+							}
+							count++;
+						}
+					} catch (BookStoreException ex) {
+						ex.printStackTrace();
+					} finally {
+						operations.addAndGet(count);
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+		return operations.get() / (double) seconds;
+	}
+}
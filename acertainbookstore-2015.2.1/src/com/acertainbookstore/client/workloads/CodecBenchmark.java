@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.utils.BookStoreCodec;
+import com.acertainbookstore.utils.BookStoreCodecs;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * CodecBenchmark compares the XML and the binary codec, first on their own,
+ * encoding and decoding a purchase and a catalog listing, then end to end
+ * against a running server, sending purchases and listing the catalog with
+ * proxies using each codec.
+ *
+ * Usage: CodecBenchmark [server] [catalog books] [requests]
+ */
+public class CodecBenchmark {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int COPIES = Integer.MAX_VALUE / 2;
+	private static final int CODEC_ROUNDS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		String server = args.length > 0 ? args[0] : "http://localhost:8081";
+		int catalogBooks = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+		List<StockBook> catalog = new ArrayList<StockBook>();
+		for (int i = 0; i < catalogBooks; i++) {
+			catalog.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+					"Author " + i, 10, COPIES, 0, 0, 0, false));
+		}
+		Set<BookCopy> purchase = new HashSet<BookCopy>();
+		for (int i = 0; i < 5; i++) {
+			purchase.add(new BookCopy(FIRST_ISBN + i, 1));
+		}
+		BookStoreResponse listing = new BookStoreResponse();
+		listing.setList(catalog);
+
+		BookStoreCodec[] codecs = { BookStoreCodecs.XML, BookStoreCodecs.BINARY };
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up
+			for (BookStoreCodec codec : codecs) {
+				String name = name(codec);
+				double[] buy = time(codec, purchase, CODEC_ROUNDS);
+				double[] list = time(codec, listing,
+						Math.max(1, CODEC_ROUNDS * 10 / catalogBooks));
+				if (round == 1) {
+					System.out.printf(
+							"%-6s purchase: %5.0f bytes, %7.1f us; listing of %d: %8.0f bytes, %8.1f us%n",
+							name, buy[0], buy[1], catalogBooks, list[0],
+							list[1]);
+				}
+			}
+		}
+
+		StockManagerHTTPProxy stockManager = new StockManagerHTTPProxy(server
+				+ "/stock");
+		BookStoreHTTPProxy bookStore = new BookStoreHTTPProxy(server);
+		try {
+			stockManager.removeAllBooks();
+			stockManager.addBooks(new HashSet<StockBook>(catalog));
+			for (int round = 0; round < 2; round++) {
+				for (BookStoreCodec codec : codecs) {
+					stockManager.setCodec(codec);
+					bookStore.setCodec(codec);
+					long start = System.nanoTime();
+					for (int i = 0; i < requests; i++) {
+						bookStore.buyBooks(purchase);
+					}
+					double buyMillis = (System.nanoTime() - start) / 1e6;
+					int listings = Math.max(1, requests * 10 / catalogBooks);
+					start = System.nanoTime();
+					for (int i = 0; i < listings; i++) {
+						stockManager.getBooks();
+					}
+					double listMillis = (System.nanoTime() - start) / 1e6;
+					if (round == 1) {
+						System.out.printf(
+								"%-6s end to end: %6.0f purchases/s, %6.1f listings/s%n",
+								name(codec), requests * 1000 / buyMillis,
+								listings * 1000 / listMillis);
+					}
+				}
+			}
+		} finally {
+			bookStore.stop();
+			stockManager.stop();
+		}
+	}
+
+	private static String name(BookStoreCodec codec) {
+		return codec == BookStoreCodecs.XML ? "xml" : "binary";
+	}
+
+	/**
+	 * Returns the size of the encoded message and the mean time to encode
+	 * and decode it, in microseconds
+	 */
+	private static double[] time(BookStoreCodec codec, Object message,
+			int rounds) throws Exception {
+		int size = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			codec.encode(message, out);
+			size = out.size();
+			codec.decode(new ByteArrayInputStream(out.toByteArray()), "UTF-8");
+		}
+		return new double[] { size,
+				(System.nanoTime() - start) / 1e3 / rounds };
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.OrderedMultiLock;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * HotTitleBenchmark measures purchases of one copy of a single bestseller by
+ * many threads, with the stock of the book in one counter and split into
+ * slices.
+ *
+ * Each configuration first runs for a fixed time on a stock that never runs
+ * out, and then sells out a limited stock. A sell out must sell every copy
+ * before the first sale miss, however the copies were spread over the
+ * slices.
+ *
+ * Usage: HotTitleBenchmark [threads] [seconds] [shards...]
+ */
+public class HotTitleBenchmark {
+
+	private static final int ISBN = 1;
+	private static final int COPIES = Integer.MAX_VALUE / 2;
+	private static final int SELL_OUT_COPIES = 1000000;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+				.getRuntime().availableProcessors() * 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int[] shardCounts = { 1, 4, 16 };
+		if (args.length > 2) {
+			shardCounts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				shardCounts[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int shards : shardCounts) {
+			ConcurrentCertainBookStore store = new ConcurrentCertainBookStore(
+					OrderedMultiLock.DEFAULT_STRIPES, false, shards);
+			run(store, threads, COPIES, 1);
+			double ops = run(store, threads, COPIES, seconds);
+			long start = System.nanoTime();
+			run(store, threads, SELL_OUT_COPIES, 0);
+			double sellOutMillis = (System.nanoTime() - start) / 1e6;
+			System.out.printf(
+					"threads=%d shards=%d: %.0f purchases/s, sold out %d copies in %.0f ms%n",
+					threads, shards, ops, SELL_OUT_COPIES, sellOutMillis);
+		}
+	}
+
+	/**
+	 * Stocks the book with the copies and buys one copy at a time from every
+	 * thread, for the given time or, if seconds is 0, until the book is sold
+	 * out
+	 *
+	 * @return the throughput in purchases per second
+	 */
+	public static double run(final ConcurrentCertainBookStore store,
+			int threads, int copies, int seconds) throws Exception {
+		store.removeAllBooks();
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(ISBN, "Bestseller", "Author", 10,
+				copies, 0, 0, 0, false));
+		store.addBooks(books);
+
+		final AtomicLong sold = new AtomicLong();
+		final boolean sellOut = seconds == 0;
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final Set<BookCopy> oneCopy = Collections.singleton(new BookCopy(ISBN,
+				1));
+
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					long count = 0;
+					try {
+						while (sellOut || System.nanoTime() < deadline) {
+							try {
+								store.buyBooks(oneCopy);
+							} catch (BookStoreException ex) {
+								break; // Sold out
+							}
+							count++;
+						}
+					} finally {
+						sold.addAndGet(count);
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		StockBook book = store.getBooks().get(0);
+		if (sold.get() + book.getNumCopies() != copies) {
+			throw new IllegalStateException("sold " + sold.get() + " of "
+					+ copies + " copies but " + book.getNumCopies()
+					+ " are left");
+		}
+		if (sellOut && book.getNumCopies() != 0) {
+			throw new IllegalStateException("sale miss with "
+					+ book.getNumCopies() + " copies left");
+		}
+		return sold.get() / (elapsed / 1e9);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.ServerOverloadedException;
+
+/**
+ * OverloadLoadTest overloads a running server: clients buy copies of a few
+ * hot titles while a stock manager keeps removing and adding back a large
+ * part of the catalog, which holds the write locks of every stripe for a
+ * while. It reports the latency of the admitted purchases and the number of
+ * purchases the server shed. Run it against a server started with and
+ * without -Dadmissioncontrol=true to compare.
+ *
+ * A client that is shed waits a little before its next purchase, as a
+ * client backing off would.
+ *
+ * Usage: OverloadLoadTest [server] [clients] [seconds] [catalog books]
+ */
+public class OverloadLoadTest {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int HOT_TITLES = 4;
+	private static final int COPIES = Integer.MAX_VALUE / 2;
+	private static final int CLIENTS_PER_PROXY = 100;
+	private static final long BACKOFF_MILLIS = 10;
+
+	public static void main(String[] args) throws Exception {
+		String server = args.length > 0 ? args[0] : "http://localhost:8081";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int catalogBooks = args.length > 3 ? Integer.parseInt(args[3])
+				: 50000;
+
+		final StockManagerHTTPProxy stockManager = new StockManagerHTTPProxy(
+				server + "/stock");
+		List<BookStoreHTTPProxy> proxies = new ArrayList<BookStoreHTTPProxy>();
+		try {
+			stockManager.removeAllBooks();
+			Set<StockBook> hotTitles = new HashSet<StockBook>();
+			for (int i = 0; i < HOT_TITLES; i++) {
+				hotTitles.add(new ImmutableStockBook(FIRST_ISBN + i, "Title "
+						+ i, "Author " + i, 10, COPIES, 0, 0, 0, false));
+			}
+			stockManager.addBooks(hotTitles);
+			final Set<StockBook> catalog = new HashSet<StockBook>();
+			final Set<Integer> catalogISBNs = new HashSet<Integer>();
+			for (int i = HOT_TITLES; i < HOT_TITLES + catalogBooks; i++) {
+				catalog.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+						"Author " + i, 10, 5, 0, 0, 0, false));
+				catalogISBNs.add(FIRST_ISBN + i);
+			}
+			stockManager.addBooks(catalog);
+
+			for (int i = 0; i < clients; i += CLIENTS_PER_PROXY) {
+				proxies.add(new BookStoreHTTPProxy(server));
+			}
+
+			final AtomicBoolean running = new AtomicBoolean(true);
+			final AtomicLong stalls = new AtomicLong();
+			Thread staller = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (running.get()) {
+							stockManager.removeBooks(catalogISBNs);
+							stockManager.addBooks(catalog);
+							stalls.incrementAndGet();
+						}
+					} catch (BookStoreException ex) {
+						ex.printStackTrace();
+					}
+				}
+			});
+
+			final long deadline = System.nanoTime() + seconds * 1000000000L;
+			final CountDownLatch done = new CountDownLatch(clients);
+			final long[][] latencies = new long[clients][];
+			final int[] counts = new int[clients];
+			final AtomicLong shed = new AtomicLong();
+			final AtomicLong failed = new AtomicLong();
+			staller.start();
+			long start = System.nanoTime();
+			for (int c = 0; c < clients; c++) {
+				final int client = c;
+				final BookStoreHTTPProxy proxy = proxies.get(c
+						/ CLIENTS_PER_PROXY);
+				final Set<BookCopy> oneCopy = Collections
+						.singleton(new BookCopy(FIRST_ISBN + c % HOT_TITLES, 1));
+				new Thread(new Runnable() {
+					public void run() {
+						long[] own = new long[1024];
+						int count = 0;
+						try {
+							while (System.nanoTime() < deadline) {
+								long requestStart = System.nanoTime();
+								try {
+									proxy.buyBooks(oneCopy);
+								} catch (ServerOverloadedException ex) {
+									shed.incrementAndGet();
+									Thread.sleep(BACKOFF_MILLIS);
+									continue;
+								} catch (BookStoreException ex) {
+									failed.incrementAndGet();
+									continue;
+								}
+								if (count == own.length) {
+									own = Arrays.copyOf(own, count * 2);
+								}
+								own[count++] = System.nanoTime() - requestStart;
+							}
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						} finally {
+							latencies[client] = own;
+							counts[client] = count;
+							done.countDown();
+						}
+					}
+				}).start();
+			}
+			done.await();
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			running.set(false);
+			staller.join();
+
+			int total = 0;
+			for (int count : counts) {
+				total += count;
+			}
+			long[] all = new long[total];
+			int next = 0;
+			for (int c = 0; c < clients; c++) {
+				System.arraycopy(latencies[c], 0, all, next, counts[c]);
+				next += counts[c];
+			}
+			Arrays.sort(all);
+
+			System.out.printf("clients=%d catalog=%d: %d stalls in %.0f s%n",
+					clients, catalogBooks, stalls.get(), elapsed);
+			System.out.printf(
+					"admitted %.0f purchases/s, p50 %.1f ms, p99 %.1f ms, max %.1f ms; shed %d, failed %d%n",
+					total / elapsed, percentile(all, 0.50) / 1e6,
+					percentile(all, 0.99) / 1e6,
+					total == 0 ? 0 : all[total - 1] / 1e6, shed.get(),
+					failed.get());
+		} finally {
+			for (BookStoreHTTPProxy proxy : proxies) {
+				proxy.stop();
+			}
+			stockManager.stop();
+		}
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1,
+				(int) (sorted.length * fraction))];
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.OrderedMultiLock;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * PurchaseCombiningBenchmark compares buyBooks with and without the purchase
+ * combiner when many threads buy the same few bestsellers. Every call buys
+ * one copy each of one or two random bestsellers, and once the run is over
+ * the stock left is checked against the copies sold.
+ *
+ * Usage: PurchaseCombiningBenchmark [seconds] [bestsellers] [threads...]
+ */
+public class PurchaseCombiningBenchmark {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int COPIES = Integer.MAX_VALUE / 2;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int bestsellers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int[] threadCounts = { 8, 32, 128 };
+		if (args.length > 2) {
+			threadCounts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				threadCounts[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int threads : threadCounts) {
+			ConcurrentCertainBookStore direct = new ConcurrentCertainBookStore(
+					OrderedMultiLock.DEFAULT_STRIPES, false);
+			ConcurrentCertainBookStore combined = new ConcurrentCertainBookStore(
+					OrderedMultiLock.DEFAULT_STRIPES, true);
+			run(direct, threads, bestsellers, 1);
+			run(combined, threads, bestsellers, 1);
+			double directOps = run(direct, threads, bestsellers, seconds);
+			double combinedOps = run(combined, threads, bestsellers, seconds);
+			System.out.printf(
+					"threads=%d direct: %.0f ops/s, combined: %.0f ops/s (%.2fx, %.1f purchases per batch)%n",
+					threads, directOps, combinedOps, combinedOps / directOps,
+					combined.getAveragePurchaseBatchSize());
+		}
+	}
+
+	/**
+	 * Stocks the bestsellers and runs the purchases for the given time
+	 *
+	 * @return the throughput in purchases per second
+	 */
+	public static double run(final ConcurrentCertainBookStore store,
+			int threads, final int bestsellers, int seconds) throws Exception {
+		store.removeAllBooks();
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int i = 0; i < bestsellers; i++) {
+			books.add(new ImmutableStockBook(FIRST_ISBN + i, "Bestseller " + i,
+					"Author " + i, 10, COPIES, 0, 0, 0, false));
+		}
+		store.addBooks(books);
+
+		final AtomicLong operations = new AtomicLong();
+		final AtomicLong copiesSold = new AtomicLong();
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long count = 0;
+					long sold = 0;
+					try {
+						while (System.nanoTime() < deadline) {
+							Set<BookCopy> copies = new HashSet<BookCopy>();
+							int size = bestsellers > 1 ? 1 + random.nextInt(2)
+									: 1;
+							while (copies.size() < size) {
+								copies.add(new BookCopy(FIRST_ISBN
+										+ random.nextInt(bestsellers), 1));
+							}
+							store.buyBooks(copies);
+							count++;
+							sold += size;
+						}
+					} catch (BookStoreException ex) {
+						ex.printStackTrace();
+					} finally {
+						operations.addAndGet(count);
+						copiesSold.addAndGet(sold);
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+
+		long copiesLeft = 0;
+		for (StockBook book : store.getBooks()) {
+			copiesLeft += book.getNumCopies();
+		}
+		if (copiesLeft + copiesSold.get() != (long) COPIES * bestsellers) {
+			throw new IllegalStateException("sold " + copiesSold.get()
+					+ " copies but " + copiesLeft + " are left");
+		}
+		return operations.get() / (double) seconds;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * ReadAllocationBenchmark measures the bytes allocated per getBooks and
+ * getBooksByISBN call of the local store, with the allocation counter of
+ * the calling thread. The requested ISBN sets are built before measuring,
+ * so only the work of the store is counted.
+ *
+ * Usage: ReadAllocationBenchmark [books] [ISBNs per request] [requests]
+ */
+public class ReadAllocationBenchmark {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int BATCH_SIZE = 1000;
+	private static final int REQUEST_SETS = 1024;
+
+	public static void main(String[] args) throws Exception {
+		int numBooks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int perRequest = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+		ConcurrentCertainBookStore store = new ConcurrentCertainBookStore();
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int i = 0; i < numBooks; i++) {
+			books.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+					"Author " + i, 10, 100, 0, 0, 0, false));
+			if (books.size() == BATCH_SIZE) {
+				store.addBooks(books);
+				books.clear();
+			}
+		}
+		store.addBooks(books);
+
+		Random random = new Random(42);
+		List<Set<Integer>> isbnSets = new ArrayList<Set<Integer>>(REQUEST_SETS);
+		for (int i = 0; i < REQUEST_SETS; i++) {
+			Set<Integer> isbns = new HashSet<Integer>();
+			while (isbns.size() < perRequest) {
+				isbns.add(FIRST_ISBN + random.nextInt(numBooks));
+			}
+			isbnSets.add(isbns);
+		}
+
+		// Warm up, so the views are cached and the code is compiled
+		measure(store, isbnSets, requests, true);
+		measure(store, isbnSets, requests, false);
+
+		System.out.printf("books=%d ISBNs per request=%d%n", numBooks,
+				perRequest);
+		System.out.printf("getBooks:       %.1f bytes/request%n",
+				measure(store, isbnSets, requests, false));
+		System.out.printf("getBooksByISBN: %.1f bytes/request%n",
+				measure(store, isbnSets, requests, true));
+	}
+
+	/**
+	 * Runs the requests and returns the bytes allocated per request
+	 */
+	private static double measure(ConcurrentCertainBookStore store,
+			List<Set<Integer>> isbnSets, int requests, boolean stockBooks)
+			throws BookStoreException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		long sink = 0;
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < requests; i++) {
+			Set<Integer> isbns = isbnSets.get(i % isbnSets.size());
+			sink += stockBooks ? store.getBooksByISBN(isbns).size() : store
+					.getBooks(isbns).size();
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		if (sink != (long) requests * isbnSets.get(0).size()) {
+			throw new IllegalStateException("missing books");
+		}
+		return allocated / (double) requests;
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * RequestThreadsLoadTest runs clients buying copies of a few hot titles on a
+ * running server, so the requests contend for the same locks, at increasing
+ * numbers of concurrent clients. For each number it reports the throughput,
+ * the median and 99th percentile latency and the failed requests. Run it
+ * once against a server started with -Drequestthreads=pooled and once with
+ * -Drequestthreads=virtual to compare the two modes. Virtual threads need a
+ * Java 21 server; an older one falls back to pooled threads, so check that
+ * it logs "Handling the requests on virtual threads" before comparing.
+ *
+ * Usage: RequestThreadsLoadTest [server] [seconds] [clients...]
+ */
+public class RequestThreadsLoadTest {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int HOT_TITLES = 4;
+	private static final int COPIES = Integer.MAX_VALUE / 2;
+	// Clients sharing one proxy, below the connection limit of its client
+	private static final int CLIENTS_PER_PROXY = 100;
+
+	public static void main(String[] args) throws Exception {
+		String server = args.length > 0 ? args[0] : "http://localhost:8081";
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int[] clientCounts = { 50, 200, 800 };
+		if (args.length > 2) {
+			clientCounts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				clientCounts[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		StockManagerHTTPProxy stockManager = new StockManagerHTTPProxy(server
+				+ "/stock");
+		try {
+			stockManager.removeAllBooks();
+			Set<StockBook> books = new HashSet<StockBook>();
+			for (int i = 0; i < HOT_TITLES; i++) {
+				books.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+						"Author " + i, 10, COPIES, 0, 0, 0, false));
+			}
+			stockManager.addBooks(books);
+		} finally {
+			stockManager.stop();
+		}
+
+		// Warm up
+		run(server, clientCounts[0], seconds);
+		for (int clients : clientCounts) {
+			AtomicLong failures = new AtomicLong();
+			long start = System.nanoTime();
+			long[] latencies = run(server, clients, seconds, failures);
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			Arrays.sort(latencies);
+			System.out.printf(
+					"clients=%d: %.0f requests/s, p50 %.1f ms, p99 %.1f ms, max %.1f ms, %d failed%n",
+					clients, latencies.length / elapsed,
+					percentile(latencies, 0.50) / 1e6,
+					percentile(latencies, 0.99) / 1e6,
+					latencies.length == 0 ? 0
+							: latencies[latencies.length - 1] / 1e6,
+					failures.get());
+		}
+	}
+
+	private static void run(String server, int clients, int seconds)
+			throws Exception {
+		run(server, clients, seconds, new AtomicLong());
+	}
+
+	/**
+	 * Runs the clients for the given time
+	 *
+	 * @return the latencies of the successful requests, in nanoseconds
+	 */
+	private static long[] run(String server, int clients, int seconds,
+			final AtomicLong failures) throws Exception {
+		List<BookStoreHTTPProxy> proxies = new ArrayList<BookStoreHTTPProxy>();
+		for (int i = 0; i < clients; i += CLIENTS_PER_PROXY) {
+			proxies.add(new BookStoreHTTPProxy(server));
+		}
+
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(clients);
+		final long[][] latencies = new long[clients][];
+		final int[] counts = new int[clients];
+		try {
+			for (int c = 0; c < clients; c++) {
+				final int client = c;
+				final BookStoreHTTPProxy proxy = proxies.get(c
+						/ CLIENTS_PER_PROXY);
+				final Set<BookCopy> oneCopy = Collections
+						.singleton(new BookCopy(FIRST_ISBN + c % HOT_TITLES, 1));
+				new Thread(new Runnable() {
+					public void run() {
+						long[] own = new long[1024];
+						int count = 0;
+						try {
+							while (System.nanoTime() < deadline) {
+								long start = System.nanoTime();
+								try {
+									proxy.buyBooks(oneCopy);
+								} catch (BookStoreException ex) {
+									failures.incrementAndGet();
+									continue;
+								}
+								if (count == own.length) {
+									own = Arrays.copyOf(own, count * 2);
+								}
+								own[count++] = System.nanoTime() - start;
+							}
+						} finally {
+							latencies[client] = own;
+							counts[client] = count;
+							done.countDown();
+						}
+					}
+				}).start();
+			}
+			done.await();
+		} finally {
+			for (BookStoreHTTPProxy proxy : proxies) {
+				proxy.stop();
+			}
+		}
+
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		long[] all = new long[total];
+		int next = 0;
+		for (int c = 0; c < clients; c++) {
+			System.arraycopy(latencies[c], 0, all, next, counts[c]);
+			next += counts[c];
+		}
+		return all;
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1,
+				(int) (sorted.length * fraction))];
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.ServerOverloadedException;
+
+/**
+ * ScanIsolationLoadTest measures the latency of purchases while stock
+ * managers list the whole catalog over and over. Run it against a server
+ * started with -Drequestthreads=pooled and with -Drequestthreads=bulkheads
+ * to see how much the scans slow down the checkout.
+ *
+ * Usage: ScanIsolationLoadTest [server] [buyers] [scanners] [seconds]
+ * [catalog books]
+ */
+public class ScanIsolationLoadTest {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int HOT_TITLES = 4;
+	private static final int COPIES = Integer.MAX_VALUE / 2;
+	private static final int CLIENTS_PER_PROXY = 100;
+	private static final long BACKOFF_MILLIS = 10;
+
+	public static void main(String[] args) throws Exception {
+		String server = args.length > 0 ? args[0] : "http://localhost:8081";
+		int buyers = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int scanners = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		int catalogBooks = args.length > 4 ? Integer.parseInt(args[4])
+				: 20000;
+
+		StockManagerHTTPProxy setup = new StockManagerHTTPProxy(server
+				+ "/stock");
+		try {
+			setup.removeAllBooks();
+			Set<StockBook> books = new HashSet<StockBook>();
+			for (int i = 0; i < HOT_TITLES + catalogBooks; i++) {
+				books.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+						"Author " + i, 10, i < HOT_TITLES ? COPIES : 5, 0, 0,
+						0, false));
+			}
+			setup.addBooks(books);
+		} finally {
+			setup.stop();
+		}
+
+		List<BookStoreHTTPProxy> bookStores = new ArrayList<BookStoreHTTPProxy>();
+		for (int i = 0; i < buyers; i += CLIENTS_PER_PROXY) {
+			bookStores.add(new BookStoreHTTPProxy(server));
+		}
+		List<StockManagerHTTPProxy> stockManagers = new ArrayList<StockManagerHTTPProxy>();
+		for (int i = 0; i < scanners; i += CLIENTS_PER_PROXY) {
+			stockManagers.add(new StockManagerHTTPProxy(server + "/stock"));
+		}
+
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(buyers + scanners);
+		final long[][] latencies = new long[buyers][];
+		final int[] counts = new int[buyers];
+		final AtomicLong scans = new AtomicLong();
+		final AtomicLong shedPurchases = new AtomicLong();
+		final AtomicLong shedScans = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		try {
+			for (int s = 0; s < scanners; s++) {
+				final StockManagerHTTPProxy stockManager = stockManagers.get(s
+						/ CLIENTS_PER_PROXY);
+				new Thread(new Runnable() {
+					public void run() {
+						try {
+							while (System.nanoTime() < deadline) {
+								try {
+									stockManager.getBooks();
+									scans.incrementAndGet();
+								} catch (ServerOverloadedException ex) {
+									shedScans.incrementAndGet();
+									Thread.sleep(BACKOFF_MILLIS);
+								} catch (BookStoreException ex) {
+									failed.incrementAndGet();
+								}
+							}
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						} finally {
+							done.countDown();
+						}
+					}
+				}).start();
+			}
+			for (int b = 0; b < buyers; b++) {
+				final int buyer = b;
+				final BookStoreHTTPProxy bookStore = bookStores.get(b
+						/ CLIENTS_PER_PROXY);
+				final Set<BookCopy> oneCopy = Collections
+						.singleton(new BookCopy(FIRST_ISBN + b % HOT_TITLES, 1));
+				new Thread(new Runnable() {
+					public void run() {
+						long[] own = new long[1024];
+						int count = 0;
+						try {
+							while (System.nanoTime() < deadline) {
+								long start = System.nanoTime();
+								try {
+									bookStore.buyBooks(oneCopy);
+								} catch (ServerOverloadedException ex) {
+									shedPurchases.incrementAndGet();
+									Thread.sleep(BACKOFF_MILLIS);
+									continue;
+								} catch (BookStoreException ex) {
+									failed.incrementAndGet();
+									continue;
+								}
+								if (count == own.length) {
+									own = Arrays.copyOf(own, count * 2);
+								}
+								own[count++] = System.nanoTime() - start;
+							}
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						} finally {
+							latencies[buyer] = own;
+							counts[buyer] = count;
+							done.countDown();
+						}
+					}
+				}).start();
+			}
+			done.await();
+		} finally {
+			for (BookStoreHTTPProxy bookStore : bookStores) {
+				bookStore.stop();
+			}
+			for (StockManagerHTTPProxy stockManager : stockManagers) {
+				stockManager.stop();
+			}
+		}
+
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		long[] all = new long[total];
+		int next = 0;
+		for (int b = 0; b < buyers; b++) {
+			System.arraycopy(latencies[b], 0, all, next, counts[b]);
+			next += counts[b];
+		}
+		Arrays.sort(all);
+
+		System.out.printf(
+				"buyers=%d scanners=%d catalog=%d: %.0f purchases/s, p50 %.1f ms, p99 %.1f ms; %.1f scans/s%n",
+				buyers, scanners, catalogBooks, total / (double) seconds,
+				percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6,
+				scans.get() / (double) seconds);
+		System.out.printf("shed purchases %d, shed scans %d, failed %d%n",
+				shedPurchases.get(), shedScans.get(), failed.get());
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1,
+				(int) (sorted.length * fraction))];
+	}
+}
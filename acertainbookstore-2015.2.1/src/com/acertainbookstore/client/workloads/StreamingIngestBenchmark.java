@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.acertainbookstore.business.BatchIngester;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.IngestReport;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+
+/**
+ * StreamingIngestBenchmark uploads a generated catalog to a running server
+ * with addBooksStreaming. The books are generated as the upload reads them,
+ * so the peak heap of the client shows what the upload itself holds in
+ * memory; run it with a small -Xmx to check that it stays flat.
+ *
+ * Usage: StreamingIngestBenchmark [server] [books] [batch size]
+ */
+public class StreamingIngestBenchmark {
+
+	private static final int FIRST_ISBN = 1;
+
+	public static void main(String[] args) throws Exception {
+		String server = args.length > 0 ? args[0]
+				: "http://localhost:8081/stock";
+		final int numBooks = args.length > 1 ? Integer.parseInt(args[1])
+				: 2000000;
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2])
+				: BatchIngester.DEFAULT_BATCH_SIZE;
+
+		StockManagerHTTPProxy stockManager = new StockManagerHTTPProxy(server);
+		try {
+			stockManager.removeAllBooks();
+			Iterator<StockBook> books = new Iterator<StockBook>() {
+				private int next = 0;
+
+				public boolean hasNext() {
+					return next < numBooks;
+				}
+
+				public StockBook next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					int i = next++;
+					return new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+							"Author " + i, 10, 5, 0, 0, 0, false);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+
+			long start = System.nanoTime();
+			IngestReport report = stockManager.addBooksStreaming(books,
+					batchSize);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf(
+					"books=%d batch size=%d: %d added, %d rejected in %d batches%s%n",
+					numBooks, batchSize, report.getBooksAdded(),
+					report.getBooksRejected(), report.getBatches().size(),
+					report.getStreamError() == null ? "" : ", stream error: "
+							+ report.getStreamError());
+			System.out.printf("%.1f s, %.0f books/s, client peak heap %.1f MB%n",
+					seconds, numBooks / seconds, peakHeapBytes() / 1e6);
+		} finally {
+			stockManager.stop();
+		}
+	}
+
+	private static long peakHeapBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * TopRatedBenchmark compares getTopRatedBooks, served from the top rated
+ * index, against sorting the whole catalog by average rating on every call.
+ * Every book is rated a few times before measuring.
+ *
+ * Usage: TopRatedBenchmark [books] [N] [queries]
+ */
+public class TopRatedBenchmark {
+
+	private static final int FIRST_ISBN = 1;
+	private static final int RATINGS_PER_BOOK = 3;
+	private static final int BATCH_SIZE = 1000;
+
+	private static final Comparator<StockBook> BY_AVERAGE_RATING = new Comparator<StockBook>() {
+		public int compare(StockBook a, StockBook b) {
+			int order = BookStoreUtility.compareProducts(b.getTotalRating(),
+					a.getTimesRated(), a.getTotalRating(), b.getTimesRated());
+			return order != 0 ? order : Integer.compare(a.getISBN(),
+					b.getISBN());
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int numBooks = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int topN = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int queries = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		ConcurrentCertainBookStore store = new ConcurrentCertainBookStore();
+		Random random = new Random(42);
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int i = 0; i < numBooks; i++) {
+			books.add(new ImmutableStockBook(FIRST_ISBN + i, "Title " + i,
+					"Author " + i, 10, 1, 0, 0, 0, false));
+			if (books.size() == BATCH_SIZE) {
+				store.addBooks(books);
+				books.clear();
+			}
+		}
+		store.addBooks(books);
+
+		long start = System.nanoTime();
+		for (int r = 0; r < RATINGS_PER_BOOK; r++) {
+			Set<BookRating> ratings = new HashSet<BookRating>();
+			for (int i = 0; i < numBooks; i++) {
+				ratings.add(new BookRating(FIRST_ISBN + i, random.nextInt(6)));
+				if (ratings.size() == BATCH_SIZE) {
+					store.rateBooks(ratings);
+					ratings.clear();
+				}
+			}
+			store.rateBooks(ratings);
+		}
+		long rateNanos = System.nanoTime() - start;
+
+		// Both must agree before either is timed
+		if (!sameISBNs(store.getTopRatedBooks(topN), sortCatalog(store, topN))) {
+			throw new IllegalStateException("index and sort disagree");
+		}
+
+		long indexNanos = time(store, topN, queries, true);
+		int sortQueries = Math.max(1, Math.min(queries, 20));
+		long sortNanos = time(store, topN, sortQueries, false);
+
+		System.out.printf("books=%d N=%d%n", numBooks, topN);
+		System.out.printf("rateBooks: %.0f ratings/s%n", numBooks
+				* (double) RATINGS_PER_BOOK / (rateNanos / 1e9));
+		System.out.printf("top rated index: %.1f us/query%n", indexNanos
+				/ (double) queries / 1e3);
+		System.out.printf("sort catalog:    %.1f us/query%n", sortNanos
+				/ (double) sortQueries / 1e3);
+	}
+
+	private static long time(ConcurrentCertainBookStore store, int topN,
+			int queries, boolean index) throws BookStoreException {
+		// Warm up before measuring
+		for (int i = 0; i < Math.min(queries, 5); i++) {
+			query(store, topN, index);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			query(store, topN, index);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static List<Book> query(ConcurrentCertainBookStore store,
+			int topN, boolean index) throws BookStoreException {
+		return index ? store.getTopRatedBooks(topN) : sortCatalog(store, topN);
+	}
+
+	/**
+	 * The top rated books found by sorting every rated book of the catalog
+	 */
+	private static List<Book> sortCatalog(ConcurrentCertainBookStore store,
+			int topN) {
+		List<StockBook> rated = new ArrayList<StockBook>();
+		for (StockBook book : store.getBooks()) {
+			if (book.getTimesRated() > 0) {
+				rated.add(book);
+			}
+		}
+		Collections.sort(rated, BY_AVERAGE_RATING);
+		List<Book> topRated = new ArrayList<Book>(topN);
+		for (StockBook book : rated.subList(0, Math.min(topN, rated.size()))) {
+			topRated.add(new ImmutableBook(book.getISBN(), book.getTitle(),
+					book.getAuthor(), book.getPrice()));
+		}
+		return topRated;
+	}
+
+	private static boolean sameISBNs(List<Book> a, List<Book> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (a.get(i).getISBN() != b.get(i).getISBN()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package com.acertainbookstore.client.workloads;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.XMLCodec;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
+
+/**
+ * XMLCodecBenchmark compares the ways of serializing the XML messages the
+ * clients and the server exchange, writing and reading a purchase and a
+ * catalog listing: with a new XStream for every message, as the bookstore
+ * used to, with the XStream the XML helpers share, and with the XMLCodec.
+ *
+ * XStream 1.4.8 only runs on Java 9 and later if the JVM opens the packages
+ * it reflects on: java.base/java.lang, java.lang.reflect, java.util,
+ * java.text and java.io, and java.desktop/java.awt.font, with --add-opens
+ * &lt;package&gt;=ALL-UNNAMED.
+ *
+ * Usage: XMLCodecBenchmark [catalog books] [rounds]
+ */
+public class XMLCodecBenchmark {
+
+	/**
+	 * A way of writing a message to XML and reading it back
+	 */
+	private interface Serializer {
+		String name();
+
+		void roundTrip(Object message) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int catalogBooks = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		List<StockBook> catalog = new ArrayList<StockBook>();
+		for (int i = 0; i < catalogBooks; i++) {
+			catalog.add(new ImmutableStockBook(i + 1, "Title " + i, "Author "
+					+ i, 10, 100, 0, 0, 0, false));
+		}
+		Set<BookCopy> purchase = new HashSet<BookCopy>();
+		for (int i = 0; i < 5; i++) {
+			purchase.add(new BookCopy(i + 1, 1));
+		}
+		BookStoreResponse listing = new BookStoreResponse();
+		listing.setList(catalog);
+
+		final XMLCodec codec = new XMLCodec();
+		Serializer[] serializers = { new Serializer() {
+			public String name() {
+				return "new XStream";
+			}
+
+			public void roundTrip(Object message) {
+				String xml = new XStream(new StaxDriver()).toXML(message);
+				new XStream(new StaxDriver()).fromXML(xml);
+			}
+		}, new Serializer() {
+			public String name() {
+				return "shared XStream";
+			}
+
+			public void roundTrip(Object message) {
+				String xml = BookStoreUtility.serializeObjectToXMLString(message);
+				BookStoreUtility.deserializeXMLStringToObject(xml);
+			}
+		}, new Serializer() {
+			public String name() {
+				return "XMLCodec";
+			}
+
+			public void roundTrip(Object message) throws Exception {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				codec.encode(message, out);
+				codec.decode(new ByteArrayInputStream(out.toByteArray()),
+						"UTF-8");
+			}
+		} };
+
+		int listingRounds = Math.max(1, rounds * 10 / catalogBooks);
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up
+			for (Serializer serializer : serializers) {
+				double buy = time(serializer, purchase, rounds);
+				double list = time(serializer, listing, listingRounds);
+				if (round == 1) {
+					System.out.printf(
+							"%-14s purchase: %8.1f us; listing of %d: %9.1f us%n",
+							serializer.name(), buy, catalogBooks, list);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the mean time to write and read the message, in microseconds
+	 */
+	private static double time(Serializer serializer, Object message,
+			int rounds) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			serializer.roundTrip(message);
+		}
+		return (System.nanoTime() - start) / 1e3 / rounds;
+	}
+}
@@ -0,0 +1,59 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+
+/**
+ * The asynchronous variant of BookStore. Every method returns at once, with
+ * a future that completes with the result of the operation, or fails with
+ * the BookStoreException the BookStore method would have thrown.
+ * 
+ */
+public interface AsyncBookStore {
+
+	/**
+	 * Buys the sets of books specified.
+	 * 
+	 * @param booksToBuy
+	 * @return
+	 */
+	public CompletableFuture<Void> buyBooksAsync(Set<BookCopy> booksToBuy);
+
+	/**
+	 * Applies the BookRatings in the set, i.e. rates each book with their
+	 * respective rating.
+	 * 
+	 * @param bookRating
+	 * @return
+	 */
+	public CompletableFuture<Void> rateBooksAsync(Set<BookRating> bookRating);
+
+	/**
+	 * Returns the list of books corresponding to the set of ISBNs.
+	 * 
+	 * @param ISBNList
+	 * @return
+	 */
+	public CompletableFuture<List<Book>> getBooksAsync(Set<Integer> ISBNList);
+
+	/**
+	 * Returns the list of the top rated numBooks books.
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	public CompletableFuture<List<Book>> getTopRatedBooksAsync(int numBooks);
+
+	/**
+	 * Returns a list of numBooks randomly selected editor picks.
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	public CompletableFuture<List<Book>> getEditorPicksAsync(int numBooks);
+}
@@ -0,0 +1,105 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * The asynchronous variant of StockManager. Every method returns at once,
+ * with a future that completes with the result of the operation, or fails
+ * with the BookStoreException the StockManager method would have thrown.
+ * 
+ * Streaming ingest has no asynchronous variant, since it reads the books
+ * from an iterator of the caller while the upload runs.
+ * 
+ */
+public interface AsyncStockManager {
+
+	/**
+	 * Adds the books in bookSet to the stock.
+	 * 
+	 * @param bookSet
+	 * @return
+	 */
+	public CompletableFuture<Void> addBooksAsync(Set<StockBook> bookSet);
+
+	/**
+	 * Add copies of the existing book to the bookstore.
+	 * 
+	 * @param bookCopiesSet
+	 * @return
+	 */
+	public CompletableFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet);
+
+	/**
+	 * Returns the list of books in the bookstore
+	 * 
+	 * @return
+	 */
+	public CompletableFuture<List<StockBook>> getBooksAsync();
+
+	/**
+	 * Returns a page of the books in the bookstore, see
+	 * StockManager.getBooks(String, int)
+	 * 
+	 * @param cursor
+	 * @param pageSize
+	 * @return
+	 */
+	public CompletableFuture<BookPage> getBooksAsync(String cursor,
+			int pageSize);
+
+	/**
+	 * Returns the books matching the set of ISBNs given.
+	 * 
+	 * @param isbns
+	 * @return
+	 */
+	public CompletableFuture<List<StockBook>> getBooksByISBNAsync(
+			Set<Integer> isbns);
+
+	/**
+	 * Returns the list of books which has sale miss
+	 * 
+	 * @return
+	 */
+	public CompletableFuture<List<StockBook>> getBooksInDemandAsync();
+
+	/**
+	 * Returns the number of ratings of each value from 0 to 5 given to the
+	 * book in this store, indexed by the rating.
+	 * 
+	 * @param ISBN
+	 * @return
+	 */
+	public CompletableFuture<List<Long>> getRatingHistogramAsync(int ISBN);
+
+	/**
+	 * Books are marked/unmarked as an editor pick
+	 * 
+	 * @param editorPicks
+	 * @return
+	 */
+	public CompletableFuture<Void> updateEditorPicksAsync(
+			Set<BookEditorPick> editorPicks);
+
+	/**
+	 * Clean up the bookstore - remove all the books and the associated data
+	 * 
+	 * @return
+	 */
+	public CompletableFuture<Void> removeAllBooksAsync();
+
+	/**
+	 * Clean up the bookstore selectively for the list of isbns provided
+	 * 
+	 * @param isbnSet
+	 * @return
+	 */
+	public CompletableFuture<Void> removeBooksAsync(Set<Integer> isbnSet);
+}
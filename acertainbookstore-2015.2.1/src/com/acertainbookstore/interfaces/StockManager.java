@@ -1,10 +1,13 @@
 package com.acertainbookstore.interfaces;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.IngestReport;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreException;
 
@@ -24,6 +27,20 @@ public interface StockManager {
 	 */
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException;
 
+	/**
+	 * Adds the books read from the iterator to the stock, in batches of up
+	 * to batchSize books. Each batch is added as soon as it is read, like a
+	 * call to addBooks, so the books never need to be held in memory all at
+	 * once. A rejected batch does not stop the batches after it.
+	 * 
+	 * @param books
+	 * @param batchSize
+	 * @return the outcome of every batch
+	 * @throws BookStoreException
+	 */
+	public IngestReport addBooksStreaming(Iterator<StockBook> books,
+			int batchSize) throws BookStoreException;
+
 	/**
 	 * Add copies of the existing book to the bookstore.
 	 * 
@@ -42,6 +59,22 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooks() throws BookStoreException;
 
+	/**
+	 * Returns a page of up to pageSize books of the bookstore, in ascending
+	 * ISBN order. The first page is read with a null cursor and every
+	 * following page with the cursor of the page before it. No locks are
+	 * held between pages.
+	 * 
+	 * @param cursor
+	 * @param pageSize
+	 * @return
+	 * @throws BookStoreException
+	 *             if the page size or cursor is invalid, or a
+	 *             CursorExpiredException if the iteration must start over
+	 */
+	public BookPage getBooks(String cursor, int pageSize)
+			throws BookStoreException;
+
 	/**
 	 * Returns the books matching the set of ISBNs given, is different to
 	 * getBooks in the BookStore interface because of the return type of the
@@ -62,6 +95,18 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooksInDemand() throws BookStoreException;
 
+	/**
+	 * Returns the number of ratings of each value from 0 to 5 given to the
+	 * book in this store, indexed by the rating. Ratings the book already had
+	 * when it was added are only counted in its total rating and number of
+	 * ratings, not here.
+	 * 
+	 * @param ISBN
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<Long> getRatingHistogram(int ISBN) throws BookStoreException;
+
 	/**
 	 * Books are marked/unmarked as an editor pick
 	 * 
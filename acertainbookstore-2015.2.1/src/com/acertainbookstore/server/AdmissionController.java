@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * AdmissionController limits the number of requests in flight for each
+ * message tag, so that a slow bookstore sheds the excess requests at once
+ * instead of letting them queue until the clients time out.
+ *
+ * The limit of each tag adapts to the latency of its requests, as in
+ * gradient based concurrency limits. A long term average of the latency is
+ * the baseline; while the latency of the requests stays close to it, the
+ * limit grows by about its square root, and when the latency rises above
+ * it, the limit shrinks in proportion. Each tag has a limit of its own,
+ * since a getBooks and a streaming ingest have nothing in common.
+ */
+public class AdmissionController {
+	public static final int DEFAULT_MAX_LIMIT = 1000;
+	public static final int INITIAL_LIMIT = 20;
+	private static final int MIN_LIMIT = 1;
+
+	private final Map<BookStoreMessageTag, Limit> limits = new EnumMap<BookStoreMessageTag, Limit>(
+			BookStoreMessageTag.class);
+
+	/**
+	 * Creates a controller with the given highest limit per tag
+	 *
+	 * @param maxLimit
+	 */
+	public AdmissionController(int maxLimit) {
+		if (maxLimit < MIN_LIMIT) {
+			throw new IllegalArgumentException("maxLimit = " + maxLimit);
+		}
+		for (BookStoreMessageTag tag : BookStoreMessageTag.values()) {
+			limits.put(tag, new Limit(Math.min(INITIAL_LIMIT, maxLimit),
+					maxLimit));
+		}
+	}
+
+	/**
+	 * Admits a request of the tag if fewer requests of the tag than its limit
+	 * are in flight
+	 *
+	 * @param tag
+	 * @param arrivalNanos
+	 *            the System.nanoTime at which the request arrived, so the
+	 *            latency includes the time it waited for a thread
+	 * @return the permit of the request, to be released when the request is
+	 *         done, or null if the request is rejected
+	 */
+	public Permit tryAcquire(BookStoreMessageTag tag, long arrivalNanos) {
+		Limit limit = limits.get(tag);
+		return limit.tryAcquire() ? new Permit(limit, arrivalNanos) : null;
+	}
+
+	/**
+	 * Returns the current limit of the tag.
+	 *
+	 * @param tag
+	 * @return
+	 */
+	public int getLimit(BookStoreMessageTag tag) {
+		return limits.get(tag).limit;
+	}
+
+	/**
+	 * The admission of a request, which measures its latency.
+	 */
+	public static final class Permit {
+		private final Limit limit;
+		private final long start;
+
+		private Permit(Limit limit, long start) {
+			this.limit = limit;
+			this.start = start;
+		}
+
+		/**
+		 * Marks the request as done and adapts the limit to its latency.
+		 */
+		public void release() {
+			limit.release(System.nanoTime() - start);
+		}
+
+		/**
+		 * Marks the request as done without it having run, so its latency
+		 * says nothing of the load.
+		 */
+		public void cancel() {
+			limit.cancel();
+		}
+	}
+
+	/**
+	 * The limit of one tag.
+	 */
+	private static final class Limit {
+		// Weight of a new limit against the current one
+		private static final double SMOOTHING = 0.2;
+		// Latency above the baseline tolerated before the limit shrinks
+		private static final double TOLERANCE = 1.5;
+		// Number of samples the baseline averages over
+		private static final int BASELINE_WINDOW = 600;
+
+		private final int maxLimit;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile int limit;
+		// Guarded by this
+		private double estimatedLimit;
+		private double baselineNanos;
+
+		Limit(int initialLimit, int maxLimit) {
+			this.maxLimit = maxLimit;
+			this.limit = initialLimit;
+			this.estimatedLimit = initialLimit;
+		}
+
+		boolean tryAcquire() {
+			while (true) {
+				int current = inFlight.get();
+				if (current >= limit) {
+					return false;
+				}
+				if (inFlight.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release(long latencyNanos) {
+			int wasInFlight = inFlight.getAndDecrement();
+			update(Math.max(latencyNanos, 1), wasInFlight);
+		}
+
+		void cancel() {
+			inFlight.decrementAndGet();
+		}
+
+		private synchronized void update(long latencyNanos, int wasInFlight) {
+			if (baselineNanos == 0) {
+				baselineNanos = latencyNanos;
+			} else {
+				baselineNanos += (latencyNanos - baselineNanos)
+						/ BASELINE_WINDOW;
+			}
+			// Let the baseline recover quickly once an overload is over
+			if (baselineNanos > 2 * latencyNanos) {
+				baselineNanos *= 0.95;
+			}
+			// A limit that is far from being used says nothing of the load
+			if (wasInFlight < estimatedLimit / 2) {
+				return;
+			}
+
+			double gradient = Math.max(0.5,
+					Math.min(1.0, TOLERANCE * baselineNanos / latencyNanos));
+			double newLimit = estimatedLimit * gradient
+					+ Math.sqrt(estimatedLimit);
+			estimatedLimit = estimatedLimit * (1 - SMOOTHING) + newLimit
+					* SMOOTHING;
+			estimatedLimit = Math.max(MIN_LIMIT,
+					Math.min(maxLimit, estimatedLimit));
+			limit = (int) estimatedLimit;
+		}
+	}
+}
@@ -5,8 +5,16 @@ package com.acertainbookstore.server;
 
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -16,13 +24,20 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BatchIngester;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.ConcurrentCertainBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCodec;
+import com.acertainbookstore.utils.BookStoreCodecs;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreResponse;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.ServerOverloadedException;
 
 /**
  * BookStoreHTTPMessageHandler implements the message handler class which is
@@ -32,116 +47,398 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * 
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
+	// The charset of the HTTP requests that do not name one
+	private static final String DEFAULT_REQUEST_CHARSET = "ISO-8859-1";
+	// The largest body of a request, in bytes, by default
+	public static final int DEFAULT_MAX_REQUEST_BYTES = 16 << 20;
+	// The time a request handled on an executor may take, by default
+	public static final int DEFAULT_REQUEST_TIMEOUT_MILLIS = 30000;
+
+	private BookStore myBookStore = null;
+	private StockManager myStockManager = null;
+	private Executor requestExecutor = null;
+	private AdmissionController admissionController = null;
+	private Bulkheads bulkheads = null;
+	private int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+	private int requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
 
-	private ConcurrentCertainBookStore myBookStore = null;
-	
 	public BookStoreHTTPMessageHandler(ConcurrentCertainBookStore bookStore) {
+		this(bookStore, bookStore);
+	}
 
+	/**
+	 * Creates a handler serving the client API from bookStore and the stock
+	 * manager API from stockManager, which is normally the same engine
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore,
+			StockManager stockManager) {
 		myBookStore = bookStore;
+		myStockManager = stockManager;
+	}
+
+	/**
+	 * Sets the executor the requests are handled on, instead of the thread of
+	 * the server that received them. The server thread reads the body of the
+	 * request and suspends the request until the executor has handled it, so
+	 * it is free to serve other connections meanwhile. Must be set before the
+	 * server starts.
+	 * 
+	 * @param requestExecutor
+	 *            the executor, or null to handle the requests on the server
+	 *            threads
+	 */
+	public void setRequestExecutor(Executor requestExecutor) {
+		this.requestExecutor = requestExecutor;
+	}
+
+	/**
+	 * Sets the bulkheads the requests are handled on, each kind of request
+	 * on its own executor. A request whose bulkhead is full gets a
+	 * ServerOverloadedException at once. Takes precedence over the request
+	 * executor. Must be set before the server starts.
+	 * 
+	 * @param bulkheads
+	 *            the bulkheads, or null to handle the requests on the
+	 *            request executor
+	 */
+	public void setBulkheads(Bulkheads bulkheads) {
+		this.bulkheads = bulkheads;
+	}
+
+	/**
+	 * Sets the admission controller that limits the requests in flight for
+	 * each message tag. The requests it rejects get a
+	 * ServerOverloadedException at once, without reaching the bookstore.
+	 * Must be set before the server starts.
+	 * 
+	 * @param admissionController
+	 *            the controller, or null to admit every request
+	 */
+	public void setAdmissionController(AdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+
+	/**
+	 * Sets the largest body of a request, in bytes. A larger request gets a
+	 * BookStoreException without being decoded further. The streaming
+	 * ingest, which never holds its body as a whole, has no limit. Must be
+	 * set before the server starts.
+	 * 
+	 * @param maxRequestBytes
+	 */
+	public void setMaxRequestBytes(int maxRequestBytes) {
+		this.maxRequestBytes = maxRequestBytes;
+	}
+
+	/**
+	 * Sets the time a request handled on the request executor or the
+	 * bulkheads may take, in milliseconds, including its time in the queue.
+	 * A request that is still queued when it runs out is answered with a
+	 * ServerOverloadedException. One that is being handled is answered at
+	 * once with a BookStoreException, since it may or may not take effect,
+	 * and its result is dropped when it is done. Both get the status 503.
+	 * The streaming ingest has no timeout. Must be set before the server
+	 * starts.
+	 * 
+	 * @param requestTimeoutMillis
+	 */
+	public void setRequestTimeoutMillis(int requestTimeoutMillis) {
+		this.requestTimeoutMillis = requestTimeoutMillis;
 	}
 
-	@SuppressWarnings("unchecked")
 	public void handle(String target, Request baseRequest,
-			HttpServletRequest request, HttpServletResponse response)
+			final HttpServletRequest request, final HttpServletResponse response)
 			throws IOException, ServletException {
-		BookStoreMessageTag messageTag;
-		String numBooksString = null;
-		int numBooks = -1;
-		String requestURI;
-		BookStoreResponse bookStoreResponse = null;
+		final BookStoreMessageTag messageTag = getMessageTag(request);
+		final AdmissionController.Permit permit;
+		if (admissionController != null && messageTag != null) {
+			// Jetty stamps the request in milliseconds when it starts parsing it
+			long queuedMillis = Math.max(0, System.currentTimeMillis()
+					- baseRequest.getTimeStamp());
+			permit = admissionController.tryAcquire(messageTag,
+					System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(queuedMillis));
+			if (permit == null) {
+				reject(messageTag, request, response);
+				baseRequest.setHandled(true);
+				return;
+			}
+		} else {
+			permit = null;
+		}
 
-		response.setContentType("text/html;charset=utf-8");
-		response.setStatus(HttpServletResponse.SC_OK);
-		requestURI = request.getRequestURI();
+		Executor executor = requestExecutor;
+		if (bulkheads != null && messageTag != null) {
+			executor = bulkheads.get(messageTag);
+		}
+		if (executor == null) {
+			try {
+				handleMessage(messageTag, request, response);
+			} finally {
+				if (permit != null) {
+					permit.release();
+				}
+			}
+			// Mark the request as handled so that the HTTP response can be sent
+			baseRequest.setHandled(true);
+			return;
+		}
+
+		// The response is sent when the context completes. A streaming
+		// ingest may take much longer than other requests, so it is the only
+		// one without a timeout, and the only one handled on the request
+		// itself. Any other may be answered by its timeout while it is
+		// handled, after which the server recycles the request, so it is
+		// handled on a copy.
+		boolean streaming = messageTag == BookStoreMessageTag.ADDBOOKSSTREAMING;
+		HttpServletRequest handledRequest = request;
+		if (!streaming) {
+			try {
+				handledRequest = new DetachedRequest(request, maxRequestBytes);
+			} catch (IOException ex) {
+				if (permit != null) {
+					permit.cancel();
+				}
+				throw ex;
+			}
+		}
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(streaming ? 0 : requestTimeoutMillis);
+		AsyncRequest asyncRequest = new AsyncRequest(messageTag,
+				handledRequest, response, streaming ? null
+						: new BufferedResponse(response), permit, asyncContext);
+		asyncContext.addListener(asyncRequest);
+		baseRequest.setHandled(true);
+		try {
+			executor.execute(asyncRequest);
+		} catch (RejectedExecutionException ex) {
+			asyncRequest.reject();
+		}
+	}
+
+	/**
+	 * Returns the message tag of the request URI, or null if it has none
+	 */
+	private static BookStoreMessageTag getMessageTag(HttpServletRequest request) {
+		String requestURI = request.getRequestURI();
 
 		// Need to do request multi-plexing
 		if (!BookStoreUtility.isEmpty(requestURI)
 				&& requestURI.toLowerCase().startsWith("/stock")) {
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI
+			return BookStoreUtility.convertURItoMessageTag(requestURI
 					.substring(6)); // the request is from store
 			// manager, more
 			// sophisticated security
 			// features could be added
 			// here
-		} else {
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI);
 		}
+		return BookStoreUtility.convertURItoMessageTag(requestURI);
+	}
+
+	/**
+	 * Answers a request the admission controller rejected with a
+	 * ServerOverloadedException, and the status telling HTTP clients to
+	 * retry later
+	 */
+	private static void reject(BookStoreMessageTag messageTag,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		bookStoreResponse.setException(new ServerOverloadedException(
+				BookStoreConstants.OVERLOADED + messageTag));
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		writeResponse(request, response, bookStoreResponse);
+	}
+
+	/**
+	 * Answers a request whose handling failed with an unexpected exception
+	 * with a BookStoreResponse carrying the exception, unless part of the
+	 * response was already sent
+	 */
+	private static void writeError(HttpServletRequest request,
+			HttpServletResponse response, Exception ex) {
+		if (response.isCommitted()) {
+			return;
+		}
+		response.resetBuffer();
+		response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		bookStoreResponse.setException(new BookStoreException(ex));
+		try {
+			writeResponse(request, response, bookStoreResponse);
+		} catch (IOException writeEx) {
+			; // The client is gone
+		}
+	}
+
+	/**
+	 * Decodes the set of the request with the codec of its content type, as
+	 * the body arrives, whether or not it has a Content-Length. A body larger
+	 * than the limit, or that is not a set of the codec, fails with a
+	 * BookStoreException after setting the status of the response.
+	 */
+	@SuppressWarnings("rawtypes")
+	private Set decodeRequest(HttpServletRequest request,
+			HttpServletResponse response) throws BookStoreException {
+		// A body announcing more than the limit is refused before it is read
+		if (request.getContentLength() > maxRequestBytes) {
+			response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			throw new BookStoreException(BookStoreConstants.REQUEST_TOO_LARGE
+					+ maxRequestBytes);
+		}
+		BookStoreCodec codec = BookStoreCodecs.forContentType(request
+				.getContentType());
+		// Clients that send no charset, as the first clients did, encode
+		// their XML in the default charset of HTTP
+		String charset = request.getCharacterEncoding();
+		LimitedInputStream body = null;
+		Object decoded;
+		try {
+			body = new LimitedInputStream(request.getInputStream(),
+					maxRequestBytes);
+			decoded = codec.decode(body, charset == null ? DEFAULT_REQUEST_CHARSET
+					: charset);
+		} catch (IOException ex) {
+			if (body != null && body.isLimitExceeded()) {
+				response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+				throw new BookStoreException(
+						BookStoreConstants.REQUEST_TOO_LARGE + maxRequestBytes);
+			}
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			throw new BookStoreException(BookStoreConstants.REQUEST_MALFORMED
+					+ ex.getMessage());
+		}
+		if (!(decoded instanceof Set)) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			throw new BookStoreException(BookStoreConstants.REQUEST_MALFORMED
+					+ "not a set");
+		}
+		return (Set) decoded;
+	}
+
+	/**
+	 * Writes the BookStoreResponse with the codec the request accepts
+	 */
+	private static void writeResponse(HttpServletRequest request,
+			HttpServletResponse response, BookStoreResponse bookStoreResponse)
+			throws IOException {
+		writeResponse(BookStoreCodecs.forAccept(request.getHeader("Accept")),
+				response, bookStoreResponse);
+	}
+
+	private static void writeResponse(BookStoreCodec codec,
+			HttpServletResponse response, BookStoreResponse bookStoreResponse)
+			throws IOException {
+		response.setContentType(codec.getContentType());
+		codec.encode(bookStoreResponse, response.getOutputStream());
+	}
+
+	/**
+	 * Decodes the message of the request, invokes the bookstore and writes
+	 * the BookStoreResponse to the response
+	 */
+	@SuppressWarnings("unchecked")
+	private void handleMessage(BookStoreMessageTag messageTag,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		String numBooksString = null;
+		int numBooks = -1;
+		BookStoreResponse bookStoreResponse = null;
+
+		response.setStatus(HttpServletResponse.SC_OK);
+
 		// the RequestURI before the switch
 		if (messageTag == null) {
 			System.out.println("Unknown message tag");
 		} else {
 			switch (messageTag) {
 			case REMOVEBOOKS:
-				String xml = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
-
-				Set<Integer> bookSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
-
 				bookStoreResponse = new BookStoreResponse();
 				try {
-					myBookStore.removeBooks(bookSet);
+					Set<Integer> bookSet = decodeRequest(request, response);
+					myStockManager.removeBooks(bookSet);
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				String listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case REMOVEALLBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
 				bookStoreResponse = new BookStoreResponse();
 				try {
-					myBookStore.removeAllBooks();
+					myStockManager.removeAllBooks();
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case ADDBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
-				Set<StockBook> newBooks = (Set<StockBook>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					Set<StockBook> newBooks = decodeRequest(request, response);
+					myStockManager.addBooks(newBooks);
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(request, response, bookStoreResponse);
+				break;
 
+			case ADDBOOKSSTREAMING:
+				// The books are parsed from the body as they arrive and added
+				// batch by batch, the body is never read as a whole
 				bookStoreResponse = new BookStoreResponse();
 				try {
-					myBookStore.addBooks(newBooks);
+					String batchSizeString = request
+							.getParameter(BookStoreConstants.BATCH_SIZE_PARAM);
+					int batchSize = batchSizeString == null ? BatchIngester.DEFAULT_BATCH_SIZE
+							: BookStoreUtility.convertStringToInt(batchSizeString);
+					Iterator<StockBook> bookStream = BookStoreUtility
+							.deserializeXMLStreamToObjects(
+									request.getInputStream(), StockBook.class);
+					bookStoreResponse.setList(Collections
+							.singletonList(myStockManager.addBooksStreaming(
+									bookStream, batchSize)));
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case ADDCOPIES:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
-				Set<BookCopy> listBookCopies = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
 				bookStoreResponse = new BookStoreResponse();
 				try {
-					myBookStore.addCopies(listBookCopies);
+					Set<BookCopy> listBookCopies = decodeRequest(request,
+							response);
+					myStockManager.addCopies(listBookCopies);
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case LISTBOOKS:
 				bookStoreResponse = new BookStoreResponse();
-				bookStoreResponse.setList(myBookStore.getBooks());
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				try {
+					bookStoreResponse.setList(myStockManager.getBooks());
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(request, response, bookStoreResponse);
+				break;
+
+			case LISTBOOKSPAGE:
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					String cursor = request
+							.getParameter(BookStoreConstants.CURSOR_PARAM);
+					int pageSize = BookStoreUtility.convertStringToInt(request
+							.getParameter(BookStoreConstants.PAGE_SIZE_PARAM));
+					bookStoreResponse.setList(Collections
+							.singletonList(myStockManager.getBooks(cursor,
+									pageSize)));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case UPDATEEDITORPICKS:
@@ -149,52 +446,38 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				bookStoreResponse = new BookStoreResponse();
 
 				try {
-					String xmlStringEditorPicksValues = BookStoreUtility
-							.extractPOSTDataFromRequest(request);
-
-					Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) BookStoreUtility
-							.deserializeXMLStringToObject(xmlStringEditorPicksValues);
+					Set<BookEditorPick> mapEditorPicksValues = decodeRequest(
+							request, response);
 
-					myBookStore.updateEditorPicks(mapEditorPicksValues);
+					myStockManager.updateEditorPicks(mapEditorPicksValues);
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case BUYBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(new String(xml));
-
 				// Make the purchase
 				bookStoreResponse = new BookStoreResponse();
 				try {
+					Set<BookCopy> bookCopiesToBuy = decodeRequest(request,
+							response);
 					myBookStore.buyBooks(bookCopiesToBuy);
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case GETBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				Set<Integer> isbnSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
-
 				bookStoreResponse = new BookStoreResponse();
 				try {
+					Set<Integer> isbnSet = decodeRequest(request, response);
 					bookStoreResponse.setList(myBookStore.getBooks(isbnSet));
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case EDITORPICKS:
@@ -211,35 +494,247 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
 
 			case GETSTOCKBOOKSBYISBN:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				isbnSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					Set<Integer> isbnSet = decodeRequest(request, response);
+					bookStoreResponse.setList(myStockManager
+							.getBooksByISBN(isbnSet));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(request, response, bookStoreResponse);
+				break;
+
+			case RATEBOOKS:
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					Set<BookRating> bookRatings = decodeRequest(request,
+							response);
+					myBookStore.rateBooks(bookRatings);
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(request, response, bookStoreResponse);
+				break;
 
+			case TOPRATEDBOOKS:
+				numBooksString = URLDecoder
+						.decode(request
+								.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+								"UTF-8");
 				bookStoreResponse = new BookStoreResponse();
 				try {
+					numBooks = BookStoreUtility
+							.convertStringToInt(numBooksString);
 					bookStoreResponse.setList(myBookStore
-							.getBooksByISBN(isbnSet));
+							.getTopRatedBooks(numBooks));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(request, response, bookStoreResponse);
+				break;
+
+			case BOOKSINDEMAND:
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					bookStoreResponse.setList(myStockManager
+							.getBooksInDemand());
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(request, response, bookStoreResponse);
+				break;
+
+			case RATINGHISTOGRAM:
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					int ISBN = BookStoreUtility.convertStringToInt(request
+							.getParameter(BookStoreConstants.BOOKISBN_PARAM));
+					bookStoreResponse.setList(myStockManager
+							.getRatingHistogram(ISBN));
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(request, response, bookStoreResponse);
 				break;
-				
+
 			default:
 				System.out.println("Unhandled message tag");
 				break;
 			}
 		}
-		// Mark the request as handled so that the HTTP response can be sent
-		baseRequest.setHandled(true);
+	}
+
+	/**
+	 * A suspended request handled on an executor. If the request times out
+	 * before the executor starts it, it is answered with a
+	 * ServerOverloadedException and never handled. If it times out while it
+	 * is handled, it is answered at once with a BookStoreException and the
+	 * handling goes on into a buffer that is dropped when it is done. A
+	 * request without a buffer, which has no timeout, is handled straight
+	 * into its response.
+	 */
+	private class AsyncRequest implements Runnable, AsyncListener {
+		private static final int QUEUED = 0;
+		private static final int RUNNING = 1;
+		// The result, the rejection or the timeout is being sent
+		private static final int ANSWERED = 2;
+
+		private final BookStoreMessageTag messageTag;
+		private final HttpServletRequest request;
+		private final HttpServletResponse response;
+		private final BufferedResponse buffer;
+		private final AdmissionController.Permit permit;
+		private final AsyncContext asyncContext;
+		// Guarded by this
+		private int state = QUEUED;
+		private boolean completed = false;
+
+		AsyncRequest(BookStoreMessageTag messageTag,
+				HttpServletRequest request, HttpServletResponse response,
+				BufferedResponse buffer, AdmissionController.Permit permit,
+				AsyncContext asyncContext) {
+			this.messageTag = messageTag;
+			this.request = request;
+			this.response = response;
+			this.buffer = buffer;
+			this.permit = permit;
+			this.asyncContext = asyncContext;
+		}
+
+		public void run() {
+			synchronized (this) {
+				if (state != QUEUED) {
+					return; // Timed out while queued
+				}
+				state = RUNNING;
+			}
+			HttpServletResponse handledResponse = buffer != null ? buffer
+					: response;
+			try {
+				handleMessage(messageTag, request, handledResponse);
+			} catch (Exception ex) {
+				writeError(request, handledResponse, ex);
+			} finally {
+				if (permit != null) {
+					permit.release();
+				}
+			}
+			synchronized (this) {
+				if (state != RUNNING) {
+					return; // Timed out while handled, drop the result
+				}
+				state = ANSWERED;
+			}
+			try {
+				if (buffer != null) {
+					buffer.writeTo(response);
+				}
+			} catch (IOException ex) {
+				; // The client is gone
+			} finally {
+				complete();
+			}
+		}
+
+		/**
+		 * Answers the request with a ServerOverloadedException instead of
+		 * handling it, if it was not started yet
+		 * 
+		 * @return true if the request was answered
+		 */
+		boolean reject() {
+			synchronized (this) {
+				if (state != QUEUED) {
+					return false;
+				}
+				state = ANSWERED;
+			}
+			if (permit != null) {
+				permit.cancel();
+			}
+			try {
+				BookStoreHTTPMessageHandler.reject(messageTag, request,
+						response);
+			} catch (IOException ex) {
+				; // The client is gone
+			} finally {
+				complete();
+			}
+			return true;
+		}
 
+		/**
+		 * Answers the request with a BookStoreException while it is
+		 * handled, if it is handled into a buffer and its result is not
+		 * being sent yet
+		 * 
+		 * @return true if the request was answered
+		 */
+		private boolean abandon() {
+			synchronized (this) {
+				if (state != RUNNING || buffer == null) {
+					return false;
+				}
+				state = ANSWERED;
+			}
+			BookStoreResponse bookStoreResponse = new BookStoreResponse();
+			bookStoreResponse.setException(new BookStoreException(
+					BookStoreConstants.TIMED_OUT + messageTag));
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			try {
+				writeResponse(request, response, bookStoreResponse);
+			} catch (IOException ex) {
+				; // The client is gone
+			} finally {
+				complete();
+			}
+			return true;
+		}
+
+		private void complete() {
+			try {
+				asyncContext.complete();
+			} finally {
+				synchronized (this) {
+					completed = true;
+					notifyAll();
+				}
+			}
+		}
+
+		public void onTimeout(AsyncEvent event) {
+			if (reject() || abandon()) {
+				return;
+			}
+			// The result is being sent. The context must complete before
+			// the timeout returns, or Jetty would dispatch the request again.
+			boolean interrupted = false;
+			synchronized (this) {
+				while (!completed) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void onComplete(AsyncEvent event) {
+		}
+
+		public void onError(AsyncEvent event) {
+		}
+
+		public void onStartAsync(AsyncEvent event) {
+		}
 	}
 }
@@ -1,13 +1,24 @@
 /**
- * 
+ *
  */
 package com.acertainbookstore.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import javax.management.JMException;
+
+import com.acertainbookstore.business.CatalogFileImporter;
 import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.MasterLockCertainBookStore;
+import com.acertainbookstore.business.OrderedMultiLock;
+import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 
 /**
- * Starts the bookstore HTTP server that the clients will communicate with.
+ * Starts the bookstore HTTP server that the clients will communicate with,
+ * with the settings of BookStoreServerConfig.
  */
 public class BookStoreHTTPServer {
 
@@ -15,21 +26,165 @@ public class BookStoreHTTPServer {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		ConcurrentCertainBookStore bookStore = new ConcurrentCertainBookStore();
-		int listen_on_port = 8081;
-		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(
-				bookStore);
-		String server_port_string = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
-		if(server_port_string != null) {
+		BookStoreServerConfig config;
+		try {
+			config = BookStoreServerConfig.load();
+		} catch (IOException ex) {
+			System.err.println("Cannot read server config: " + ex);
+			return;
+		}
+		BookStoreHTTPMessageHandler handler = createHandler(config);
+		if (handler == null) {
+			return;
+		}
+		String requestThreads = config
+				.getString(BookStoreConstants.PROPERTY_KEY_REQUEST_THREADS);
+		if (BookStoreConstants.REQUEST_THREADS_BULKHEADS
+				.equalsIgnoreCase(requestThreads)) {
+			Bulkheads bulkheads = new Bulkheads(config);
 			try {
-				listen_on_port = Integer.parseInt(server_port_string);
-			} catch(NumberFormatException ex) {
-				System.err.println(ex);
+				bulkheads.registerMBeans();
+			} catch (JMException ex) {
+				System.err.println("Cannot export the bulkhead statistics: "
+						+ ex);
 			}
+			handler.setBulkheads(bulkheads);
+		} else {
+			handler.setRequestExecutor(createRequestExecutor(requestThreads));
 		}
-		if (BookStoreHTTPServerUtility.createServer(listen_on_port, handler)) {
+		if (config.getBoolean(BookStoreConstants.PROPERTY_KEY_ADMISSION_CONTROL)) {
+			handler.setAdmissionController(new AdmissionController(config
+					.getInt(BookStoreConstants.PROPERTY_KEY_ADMISSION_MAX_LIMIT,
+							1, Integer.MAX_VALUE,
+							AdmissionController.DEFAULT_MAX_LIMIT)));
+		}
+		handler.setMaxRequestBytes(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_MAX_REQUEST_BYTES, 1,
+				Integer.MAX_VALUE,
+				BookStoreHTTPMessageHandler.DEFAULT_MAX_REQUEST_BYTES));
+		handler.setRequestTimeoutMillis(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_REQUEST_TIMEOUT, 1,
+				Integer.MAX_VALUE,
+				BookStoreHTTPMessageHandler.DEFAULT_REQUEST_TIMEOUT_MILLIS));
+		int listen_on_port = config.getInt(
+				BookStoreConstants.PROPERTY_KEY_SERVER_PORT, 1, 65535, 8081);
+		if (BookStoreHTTPServerUtility.createServer(config, listen_on_port,
+				handler)) {
 			;
 		}
 	}
 
+	/**
+	 * Creates the message handler on top of the bookstore engine named by the
+	 * engine property, the lock-striped ConcurrentCertainBookStore by default,
+	 * and loads the catalog file into the engine if one is set.
+	 * 
+	 * @return the handler, or null if the catalog file could not be loaded
+	 */
+	private static BookStoreHTTPMessageHandler createHandler(
+			BookStoreServerConfig config) {
+		String engine = config
+				.getString(BookStoreConstants.PROPERTY_KEY_STORE_ENGINE);
+		if (BookStoreConstants.STORE_ENGINE_MASTER_LOCK
+				.equalsIgnoreCase(engine)) {
+			MasterLockCertainBookStore bookStore = new MasterLockCertainBookStore();
+			if (!loadCatalog(config, bookStore)) {
+				return null;
+			}
+			return new BookStoreHTTPMessageHandler(bookStore, bookStore);
+		}
+		if (engine != null
+				&& !BookStoreConstants.STORE_ENGINE_CONCURRENT
+						.equalsIgnoreCase(engine)) {
+			System.err.println("Unknown engine " + engine + ", using "
+					+ BookStoreConstants.STORE_ENGINE_CONCURRENT);
+		}
+		boolean combinePurchases = config
+				.getBoolean(BookStoreConstants.PROPERTY_KEY_COMBINE_PURCHASES);
+		int lockStripes = config.getInt(
+				BookStoreConstants.PROPERTY_KEY_LOCK_STRIPES, 1,
+				OrderedMultiLock.MAX_STRIPES, OrderedMultiLock.DEFAULT_STRIPES);
+		int inventoryShards = config.getInt(
+				BookStoreConstants.PROPERTY_KEY_INVENTORY_SHARDS, 1,
+				ConcurrentCertainBookStore.MAX_INVENTORY_SHARDS, 1);
+		ConcurrentCertainBookStore bookStore = new ConcurrentCertainBookStore(
+				lockStripes, combinePurchases, inventoryShards);
+		if (!loadCatalog(config, bookStore)) {
+			return null;
+		}
+		return new BookStoreHTTPMessageHandler(bookStore);
+	}
+
+	/**
+	 * Creates the executor the requests are handled on for the value of the
+	 * requestthreads property. With virtual threads, a request blocked on the
+	 * locks of the engine does not hold one of the threads of the server.
+	 * Without virtual threads in the JVM, the requests are handled on the
+	 * bounded threads of the server, as in pooled mode. The mode chosen is
+	 * logged.
+	 * 
+	 * @return the executor, or null to handle the requests on the threads of
+	 *         the server
+	 */
+	private static Executor createRequestExecutor(String requestThreads) {
+		Executor executor = null;
+		if (requestThreads != null
+				&& BookStoreConstants.REQUEST_THREADS_VIRTUAL
+						.equalsIgnoreCase(requestThreads)) {
+			executor = BookStoreHTTPServerUtility
+					.newVirtualThreadPerTaskExecutor();
+			if (executor == null) {
+				System.err.println("This JVM has no virtual threads, using "
+						+ BookStoreConstants.REQUEST_THREADS_POOLED);
+			}
+		} else if (requestThreads != null
+				&& !BookStoreConstants.REQUEST_THREADS_POOLED
+						.equalsIgnoreCase(requestThreads)) {
+			System.err.println("Unknown request threads " + requestThreads
+					+ ", using " + BookStoreConstants.REQUEST_THREADS_POOLED);
+		}
+		System.out.println("Handling the requests on "
+				+ (executor != null ? BookStoreConstants.REQUEST_THREADS_VIRTUAL
+						: BookStoreConstants.REQUEST_THREADS_POOLED)
+				+ " threads");
+		return executor;
+	}
+
+	/**
+	 * Loads the catalog file named by the catalogfile property, if it is set,
+	 * into the stock of the engine
+	 * 
+	 * @return false if the file could not be read
+	 */
+	private static boolean loadCatalog(BookStoreServerConfig config,
+			StockManager stockManager) {
+		String fileName = config
+				.getString(BookStoreConstants.PROPERTY_KEY_CATALOG_FILE);
+		if (fileName == null) {
+			return true;
+		}
+		int threads = config.getInt(
+				BookStoreConstants.PROPERTY_KEY_CATALOG_IMPORT_THREADS, 1, 256,
+				Runtime.getRuntime().availableProcessors());
+
+		CatalogFileImporter.Result result;
+		try {
+			result = new CatalogFileImporter(stockManager).importFile(
+					new File(fileName), threads);
+		} catch (IOException ex) {
+			System.err.println("Cannot load catalog " + fileName + ": " + ex);
+			return false;
+		}
+		System.out.printf(
+				"Loaded catalog %s with %d threads: %d rows in %.1f s (%.0f rows/s), %d books added, %d rejected, %d malformed rows%n",
+				fileName, threads, result.getRows(),
+				result.getNanos() / 1e9, result.getRowsPerSecond(),
+				result.getBooksAdded(), result.getBooksRejected(),
+				result.getMalformedRows());
+		for (String error : result.getErrors()) {
+			System.err.println(error);
+		}
+		return true;
+	}
+
 }
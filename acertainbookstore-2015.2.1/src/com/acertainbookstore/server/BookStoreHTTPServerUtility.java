@@ -6,9 +6,15 @@ package com.acertainbookstore.server;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.acertainbookstore.utils.BookStoreConstants;
 
 /**
  * Utility methods to create Jetty server instances
@@ -34,6 +40,75 @@ public class BookStoreHTTPServerUtility {
 		return true;
 	}
 
+	/**
+	 * Creates a server on the port with the connector and thread pool
+	 * settings of the configuration, logs the effective settings and blocks
+	 * the calling thread. The settings that are not configured keep the
+	 * defaults of Jetty.
+	 */
+	public static boolean createServer(BookStoreServerConfig config, int port,
+			AbstractHandler handler) {
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setMaxThreads(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_MAX_THREADS, 1,
+				Integer.MAX_VALUE, threadPool.getMaxThreads()));
+		threadPool.setMinThreads(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_MIN_THREADS, 1,
+				threadPool.getMaxThreads(),
+				Math.min(threadPool.getMinThreads(),
+						threadPool.getMaxThreads())));
+		threadPool.setMaxIdleTimeMs(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_THREAD_IDLE_TIMEOUT, 0,
+				Integer.MAX_VALUE, threadPool.getMaxIdleTimeMs()));
+		threadPool.setMaxQueued(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_MAX_QUEUED, -1,
+				Integer.MAX_VALUE, threadPool.getMaxQueued()));
+
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setPort(port);
+		connector.setAcceptors(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_ACCEPTORS, 1, 256,
+				connector.getAcceptors()));
+		connector.setAcceptQueueSize(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_ACCEPT_QUEUE_SIZE, 0,
+				Integer.MAX_VALUE, connector.getAcceptQueueSize()));
+		connector.setMaxIdleTime(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_IDLE_TIMEOUT, 0,
+				Integer.MAX_VALUE, connector.getMaxIdleTime()));
+		connector.setLowResourcesConnections(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_LOW_RESOURCES_CONNECTIONS, 0,
+				Integer.MAX_VALUE, connector.getLowResourcesConnections()));
+		connector.setLowResourcesMaxIdleTime(config.getInt(
+				BookStoreConstants.PROPERTY_KEY_LOW_RESOURCES_IDLE_TIMEOUT, 0,
+				Integer.MAX_VALUE, connector.getLowResourcesMaxIdleTime()));
+
+		System.out.printf(
+				"Server settings: port=%d acceptors=%d acceptqueuesize=%d idletimeout=%d "
+						+ "lowresourcesconnections=%d lowresourcesidletimeout=%d "
+						+ "minthreads=%d maxthreads=%d threadidletimeout=%d maxqueued=%d%n",
+				connector.getPort(), connector.getAcceptors(),
+				connector.getAcceptQueueSize(), connector.getMaxIdleTime(),
+				connector.getLowResourcesConnections(),
+				connector.getLowResourcesMaxIdleTime(),
+				threadPool.getMinThreads(), threadPool.getMaxThreads(),
+				threadPool.getMaxIdleTimeMs(), threadPool.getMaxQueued());
+
+		Server server = new Server();
+		server.setThreadPool(threadPool);
+		server.addConnector(connector);
+		if (handler != null) {
+			server.setHandler(handler);
+		}
+
+		try {
+			server.start();
+			server.join();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+		return true;
+	}
+
 	/**
 	 * Creates a server on the InetAddress and blocks the calling thread
 	 */
@@ -68,4 +143,21 @@ public class BookStoreHTTPServerUtility {
 		return true;
 	}
 
+	/**
+	 * Returns an executor that starts a virtual thread for each task, or null
+	 * if the JVM has no virtual threads. The executor is looked up by
+	 * reflection, so the server still builds and runs on older JVMs.
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException ex) {
+			return null;
+		} catch (ReflectiveOperationException ex) {
+			// Virtual threads are a preview feature that is not enabled
+			return null;
+		}
+	}
+
 }
@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+
+/**
+ * BookStoreServerConfig holds the settings of the bookstore server: the
+ * engine, the catalog, the connector and the thread pool.
+ *
+ * The settings are read from the properties file named by the serverconfig
+ * system property, if it is set, and then from the system properties, which
+ * take precedence over the file. The keys are the PROPERTY_KEY_* constants
+ * of BookStoreConstants.
+ *
+ */
+public class BookStoreServerConfig {
+
+	private final Properties properties;
+
+	/**
+	 * Creates a configuration from the properties.
+	 *
+	 * @param properties
+	 */
+	public BookStoreServerConfig(Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Reads the configuration from the file named by the serverconfig system
+	 * property and from the system properties.
+	 *
+	 * @return the configuration
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static BookStoreServerConfig load() throws IOException {
+		Properties properties = new Properties();
+		String fileName = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_CONFIG);
+		if (fileName != null) {
+			InputStream in = new FileInputStream(fileName);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		properties.putAll(System.getProperties());
+		return new BookStoreServerConfig(properties);
+	}
+
+	/**
+	 * Returns the value of the setting, or null if it is not set.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public String getString(String key) {
+		String value = properties.getProperty(key);
+		return value == null ? null : value.trim();
+	}
+
+	/**
+	 * Returns whether the setting is true.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public boolean getBoolean(String key) {
+		return Boolean.parseBoolean(getString(key));
+	}
+
+	/**
+	 * Returns the value of the integer setting, or defaultValue if it is not
+	 * set or not between min and max
+	 *
+	 * @param key
+	 * @param min
+	 * @param max
+	 * @param defaultValue
+	 * @return
+	 */
+	public int getInt(String key, int min, int max, int defaultValue) {
+		String valueString = getString(key);
+		if (valueString != null) {
+			try {
+				int value = Integer.parseInt(valueString);
+				if (value >= min && value <= max) {
+					return value;
+				}
+				System.err.println(key + " must be between " + min + " and "
+						+ max);
+			} catch (NumberFormatException ex) {
+				System.err.println(ex);
+			}
+		}
+		return defaultValue;
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * BufferedResponse keeps the status, content type and body the message
+ * handler writes, instead of sending them, until they are copied to the
+ * response of the server. A request that may be answered before its
+ * handling ends, when it times out, is handled into such a buffer, which is
+ * dropped if the request was answered already.
+ *
+ * Only the methods the message handler calls are buffered, the others must
+ * not be called.
+ *
+ */
+class BufferedResponse extends HttpServletResponseWrapper {
+
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private final ServletOutputStream out = new ServletOutputStream() {
+		@Override
+		public void write(int b) {
+			body.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			body.write(b, off, len);
+		}
+	};
+	private int status = SC_OK;
+	private String contentType;
+
+	BufferedResponse(HttpServletResponse response) {
+		super(response);
+	}
+
+	/**
+	 * Sends the buffered status, content type and body in the response.
+	 *
+	 * @param response
+	 * @throws IOException
+	 *             if the client is gone
+	 */
+	void writeTo(HttpServletResponse response) throws IOException {
+		response.setStatus(status);
+		if (contentType != null) {
+			response.setContentType(contentType);
+		}
+		response.setContentLength(body.size());
+		body.writeTo(response.getOutputStream());
+	}
+
+	@Override
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public boolean isCommitted() {
+		return false;
+	}
+
+	@Override
+	public void resetBuffer() {
+		body.reset();
+	}
+
+	@Override
+	public void reset() {
+		body.reset();
+		status = SC_OK;
+		contentType = null;
+	}
+
+	@Override
+	public void flushBuffer() {
+	}
+}
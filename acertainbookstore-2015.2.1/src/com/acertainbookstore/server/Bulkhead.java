@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulkhead runs one kind of request on threads and a queue of its own, so
+ * a burst of another kind cannot take them. When the queue is full, execute
+ * throws RejectedExecutionException at once.
+ *
+ * The threads of all bulkheads share the ExecutionSlots that bound the
+ * requests running at once. A thread waits for a slot before it runs its
+ * request, and the wait counts as time in the queue.
+ */
+public class Bulkhead implements Executor, BulkheadMXBean {
+	// Weight of a new sample in the moving averages
+	private static final double SMOOTHING = 0.01;
+
+	private final ThreadPoolExecutor executor;
+	private final ExecutionSlots slots;
+	private final boolean precedence;
+	private final int queueCapacity;
+	private final AtomicLong rejected = new AtomicLong();
+	// Guarded by this
+	private double meanQueueNanos;
+	private double meanLatencyNanos;
+	private long maxLatencyNanos;
+
+	/**
+	 * Creates a bulkhead.
+	 *
+	 * @param name
+	 *            the prefix of the names of its threads
+	 * @param threads
+	 * @param queueCapacity
+	 * @param slots
+	 *            the slots shared by the bulkheads
+	 * @param precedence
+	 *            whether its requests may take the reserved slots, and are
+	 *            given a slot ahead of the other bulkheads
+	 */
+	Bulkhead(final String name, int threads, int queueCapacity,
+			ExecutionSlots slots, boolean precedence) {
+		this.queueCapacity = queueCapacity;
+		this.slots = slots;
+		this.precedence = precedence;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueCapacity), new ThreadFactory() {
+					private final AtomicInteger next = new AtomicInteger();
+
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, name + "-"
+								+ next.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public void execute(final Runnable command) {
+		final long queued = System.nanoTime();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					slots.acquire(precedence);
+					long started = System.nanoTime();
+					try {
+						command.run();
+					} finally {
+						slots.release();
+						record(started - queued, System.nanoTime() - queued);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			rejected.incrementAndGet();
+			throw ex;
+		}
+	}
+
+	private synchronized void record(long queueNanos, long latencyNanos) {
+		if (maxLatencyNanos == 0) {
+			// The first sample starts the averages
+			meanQueueNanos = queueNanos;
+			meanLatencyNanos = latencyNanos;
+		} else {
+			meanQueueNanos += (queueNanos - meanQueueNanos) * SMOOTHING;
+			meanLatencyNanos += (latencyNanos - meanLatencyNanos) * SMOOTHING;
+		}
+		maxLatencyNanos = Math.max(maxLatencyNanos, Math.max(latencyNanos, 1));
+	}
+
+	/**
+	 * Stops the threads once the queued requests are handled.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	public int getActiveThreads() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public long getCompletedRequests() {
+		return executor.getCompletedTaskCount();
+	}
+
+	public long getRejectedRequests() {
+		return rejected.get();
+	}
+
+	public synchronized double getMeanQueueMillis() {
+		return meanQueueNanos / 1e6;
+	}
+
+	public synchronized double getMeanLatencyMillis() {
+		return meanLatencyNanos / 1e6;
+	}
+
+	public synchronized double getMaxLatencyMillis() {
+		return maxLatencyNanos / 1e6;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+/**
+ * The statistics of a Bulkhead, exported through JMX as
+ * com.acertainbookstore:type=Bulkhead,name=&lt;kind&gt;.
+ */
+public interface BulkheadMXBean {
+
+	/**
+	 * Returns the number of threads of the bulkhead.
+	 *
+	 * @return
+	 */
+	public int getThreads();
+
+	/**
+	 * Returns the number of threads running a request.
+	 *
+	 * @return
+	 */
+	public int getActiveThreads();
+
+	/**
+	 * Returns the number of requests waiting for a thread.
+	 *
+	 * @return
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * Returns the number of requests the queue can hold.
+	 *
+	 * @return
+	 */
+	public int getQueueCapacity();
+
+	/**
+	 * Returns the number of requests handled since the server started.
+	 *
+	 * @return
+	 */
+	public long getCompletedRequests();
+
+	/**
+	 * Returns the number of requests rejected because the queue was full.
+	 *
+	 * @return
+	 */
+	public long getRejectedRequests();
+
+	/**
+	 * Returns the moving average of the time the requests waited in the
+	 * queue, in milliseconds.
+	 *
+	 * @return
+	 */
+	public double getMeanQueueMillis();
+
+	/**
+	 * Returns the moving average of the time from queueing a request to
+	 * having handled it, in milliseconds.
+	 *
+	 * @return
+	 */
+	public double getMeanLatencyMillis();
+
+	/**
+	 * Returns the longest time from queueing a request to having handled it,
+	 * in milliseconds.
+	 *
+	 * @return
+	 */
+	public double getMaxLatencyMillis();
+}
@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * Bulkheads sends each kind of request to a Bulkhead of its own, so that a
+ * few slow scans of the stock manager cannot hold the threads that serve
+ * the customers.
+ *
+ * The bulkheads share a bound on the requests they run at once, set with
+ * the bulkheadslots property, of which bulkheadpurchasesreserved slots are
+ * kept for purchases. Purchases are also given a free slot ahead of the
+ * requests of the other kinds, so under load the customers checking out
+ * take precedence over reads and scans, see ExecutionSlots.
+ *
+ * The number of threads and the queue capacity of each kind are set with
+ * the bulkhead&lt;kind&gt;threads and bulkhead&lt;kind&gt;queue properties,
+ * for instance bulkheadpurchasesthreads. The statistics of the bulkheads
+ * are registered as BulkheadMXBeans.
+ */
+public class Bulkheads {
+
+	/**
+	 * The kinds of requests, with the default size of their bulkheads.
+	 */
+	public enum Kind {
+		PURCHASES(32, 1000), CUSTOMER_READS(32, 1000), ADMIN(8, 100),
+		BULK_SCANS(4, 50);
+
+		private final int defaultThreads;
+		private final int defaultQueue;
+
+		private Kind(int defaultThreads, int defaultQueue) {
+			this.defaultThreads = defaultThreads;
+			this.defaultQueue = defaultQueue;
+		}
+
+		/**
+		 * Returns the kind of the requests of the tag.
+		 *
+		 * @param tag
+		 * @return
+		 */
+		public static Kind of(BookStoreMessageTag tag) {
+			switch (tag) {
+			case BUYBOOKS:
+				return PURCHASES;
+			case GETBOOKS:
+			case EDITORPICKS:
+			case TOPRATEDBOOKS:
+			case RATEBOOKS:
+				return CUSTOMER_READS;
+			case LISTBOOKS:
+			case LISTBOOKSPAGE:
+			case GETSTOCKBOOKSBYISBN:
+			case BOOKSINDEMAND:
+				return BULK_SCANS;
+			default:
+				return ADMIN;
+			}
+		}
+
+		/**
+		 * Returns the name of the kind in the names of the properties and of
+		 * the threads.
+		 *
+		 * @return
+		 */
+		public String propertyName() {
+			return name().toLowerCase().replace("_", "");
+		}
+	}
+
+	private final Map<Kind, Bulkhead> bulkheads = new EnumMap<Kind, Bulkhead>(
+			Kind.class);
+	private final ExecutionSlots slots;
+
+	/**
+	 * Creates the bulkheads with the sizes of the configuration.
+	 *
+	 * @param config
+	 */
+	public Bulkheads(BookStoreServerConfig config) {
+		int defaultSlots = Math.max(8, Runtime.getRuntime()
+				.availableProcessors() * 4);
+		int numSlots = config.getInt("bulkheadslots", 2, 10000, defaultSlots);
+		slots = new ExecutionSlots(numSlots, config.getInt(
+				"bulkheadpurchasesreserved", 0, numSlots - 1, numSlots / 4));
+		for (Kind kind : Kind.values()) {
+			String name = "bulkhead" + kind.propertyName();
+			int threads = config.getInt(name + "threads", 1, 10000,
+					kind.defaultThreads);
+			int queue = config.getInt(name + "queue", 1, Integer.MAX_VALUE,
+					kind.defaultQueue);
+			bulkheads.put(kind, new Bulkhead(name, threads, queue, slots,
+					kind == Kind.PURCHASES));
+		}
+	}
+
+	/**
+	 * Returns the bulkhead the requests of the tag run on.
+	 *
+	 * @param tag
+	 * @return
+	 */
+	public Bulkhead get(BookStoreMessageTag tag) {
+		return bulkheads.get(Kind.of(tag));
+	}
+
+	/**
+	 * Returns the bulkhead of the kind.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public Bulkhead get(Kind kind) {
+		return bulkheads.get(kind);
+	}
+
+	/**
+	 * Registers the statistics of every bulkhead with the platform MBean
+	 * server.
+	 *
+	 * @throws JMException
+	 *             if a bulkhead of the same name is already registered
+	 */
+	public void registerMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Map.Entry<Kind, Bulkhead> entry : bulkheads.entrySet()) {
+			server.registerMBean(entry.getValue(), new ObjectName(
+					"com.acertainbookstore:type=Bulkhead,name="
+							+ entry.getKey().propertyName()));
+		}
+	}
+}
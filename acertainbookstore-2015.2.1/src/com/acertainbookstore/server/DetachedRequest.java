@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * DetachedRequest holds a copy of what the message handler reads of a
+ * request: its body, its parameters and its headers. The server recycles a
+ * request once its response is complete, so a request that may be answered
+ * before it is handled, when it times out, is handled on such a copy.
+ *
+ * Only the methods the message handler calls are served from the copy, the
+ * others must not be called once the request is answered.
+ *
+ */
+class DetachedRequest extends HttpServletRequestWrapper {
+
+	private final byte[] body;
+	private final String contentType;
+	private final String characterEncoding;
+	private final int contentLength;
+	private final Map<String, String[]> parameters;
+	private final Map<String, String> headers;
+
+	/**
+	 * Copies the request, reading its body up to one byte past the limit,
+	 * so that a larger body still fails when it is decoded
+	 *
+	 * @param request
+	 * @param maxBodyBytes
+	 *            the largest body the handler accepts
+	 * @throws IOException
+	 *             if the body cannot be read
+	 */
+	DetachedRequest(HttpServletRequest request, int maxBodyBytes)
+			throws IOException {
+		super(request);
+		contentType = request.getContentType();
+		characterEncoding = request.getCharacterEncoding();
+		contentLength = request.getContentLength();
+		parameters = new HashMap<String, String[]>(request.getParameterMap());
+		headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		for (Enumeration<String> names = request.getHeaderNames(); names
+				.hasMoreElements();) {
+			String name = names.nextElement();
+			headers.put(name, request.getHeader(name));
+		}
+		body = contentLength > maxBodyBytes ? new byte[0] : readBody(
+				request.getInputStream(), maxBodyBytes + 1L);
+	}
+
+	private static byte[] readBody(InputStream in, long limit)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while (out.size() < limit
+				&& (n = in.read(buffer, 0,
+						(int) Math.min(buffer.length, limit - out.size()))) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public ServletInputStream getInputStream() {
+		final ByteArrayInputStream in = new ByteArrayInputStream(body);
+		return new ServletInputStream() {
+			@Override
+			public int read() {
+				return in.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				return in.read(b, off, len);
+			}
+		};
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getCharacterEncoding() {
+		return characterEncoding;
+	}
+
+	@Override
+	public int getContentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public String getParameter(String name) {
+		String[] values = parameters.get(name);
+		return values == null || values.length == 0 ? null : values[0];
+	}
+
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	@Override
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+/**
+ * ExecutionSlots bounds the number of requests the bulkheads run at once,
+ * and gives the requests with precedence a share of the slots of their own.
+ * A request without precedence only gets a slot while more than the
+ * reserved number are free and no request with precedence is waiting, so
+ * purchases are admitted ahead of the other kinds when the server is busy
+ * and never wait for a slot behind them.
+ */
+class ExecutionSlots {
+	private final int slots;
+	private final int reserved;
+	// Guarded by this
+	private int used = 0;
+	private int waitingWithPrecedence = 0;
+
+	/**
+	 * @param slots
+	 *            the number of requests that may run at once
+	 * @param reserved
+	 *            the number of slots only requests with precedence may take,
+	 *            less than slots
+	 */
+	ExecutionSlots(int slots, int reserved) {
+		if (reserved < 0 || reserved >= slots) {
+			throw new IllegalArgumentException("reserved = " + reserved
+					+ ", but it must be between 0 and " + (slots - 1));
+		}
+		this.slots = slots;
+		this.reserved = reserved;
+	}
+
+	/**
+	 * Waits for a slot. The wait is not cut short by an interrupt, since the
+	 * request must still be answered; the interrupt status is kept.
+	 *
+	 * @param precedence
+	 *            whether the request may take the reserved slots
+	 */
+	synchronized void acquire(boolean precedence) {
+		boolean interrupted = false;
+		if (precedence) {
+			waitingWithPrecedence++;
+		}
+		try {
+			while (precedence ? used >= slots : used >= slots - reserved
+					|| waitingWithPrecedence > 0) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			used++;
+		} finally {
+			if (precedence && --waitingWithPrecedence == 0) {
+				notifyAll();
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gives back a slot taken by acquire.
+	 */
+	synchronized void release() {
+		used--;
+		notifyAll();
+	}
+
+	int getSlots() {
+		return slots;
+	}
+
+	int getReserved() {
+		return reserved;
+	}
+}
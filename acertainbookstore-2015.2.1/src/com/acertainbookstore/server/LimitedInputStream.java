@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package com.acertainbookstore.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * LimitedInputStream reads at most a number of bytes from a stream, and
+ * fails with an IOException once the stream has more. It bounds the bodies
+ * the server decodes whether or not they have a Content-Length, since
+ * chunked bodies only announce their size as they arrive.
+ *
+ */
+class LimitedInputStream extends FilterInputStream {
+
+	private final long limit;
+	private long count = 0;
+	private boolean exceeded = false;
+
+	/**
+	 * @param in
+	 * @param limit
+	 *            the number of bytes that may be read
+	 */
+	LimitedInputStream(InputStream in, long limit) {
+		super(in);
+		this.limit = limit;
+	}
+
+	/**
+	 * Returns whether the stream failed because it has more bytes than the
+	 * limit
+	 *
+	 * @return
+	 */
+	boolean isLimitExceeded() {
+		return exceeded;
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkLimit();
+		int b = super.read();
+		if (b >= 0) {
+			count++;
+		}
+		checkLimit();
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkLimit();
+		// Read one byte past the limit, to tell a body of exactly the limit
+		// from a larger one
+		long left = limit + 1 - count;
+		int n = super.read(b, off, (int) Math.min(len, left));
+		if (n > 0) {
+			count += n;
+		}
+		checkLimit();
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkLimit();
+		long skipped = super.skip(Math.min(n, limit + 1 - count));
+		count += skipped;
+		checkLimit();
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	private void checkLimit() throws IOException {
+		if (count > limit) {
+			exceeded = true;
+			throw new IOException("The stream has more than " + limit
+					+ " bytes");
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package com.acertainbookstore.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.IngestBatchResult;
+import com.acertainbookstore.business.IngestReport;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * BinaryCodec encodes messages in a compact binary form, several times
+ * smaller and cheaper to encode than the XStream XML.
+ *
+ * A message is a version byte followed by a value. A value is a type tag
+ * byte followed by the fields of the type. Integers and longs are zigzag
+ * varints, so small ISBNs and counts take one or two bytes, floats are their
+ * four IEEE bytes and strings are their UTF-8 bytes prefixed by their length
+ * plus one, zero standing for null. Collections are their size followed by
+ * their elements.
+ *
+ * Exceptions keep their message, stack trace, cause and suppressed
+ * exceptions. The exceptions of the bookstore keep their class as well; any
+ * other throwable among the causes and suppressed exceptions is read back as
+ * a BookStoreException whose message starts with the name of its class, so
+ * that no class named by a message is ever loaded.
+ *
+ * A message is the whole body: bytes after the value are refused.
+ *
+ */
+public class BinaryCodec implements BookStoreCodec {
+	public static final String CONTENT_TYPE = "application/x-bookstore-binary";
+
+	// Version 1 kept only the class and message of exceptions
+	private static final int VERSION = 2;
+
+	// Bounds on the sizes read, so a corrupt message fails instead of
+	// allocating without limit
+	private static final int MAX_ELEMENTS = 1 << 24;
+	private static final int MAX_STRING_BYTES = 1 << 24;
+	private static final int MAX_THROWABLE_DEPTH = 64;
+
+	private static final int NULL = 0;
+	private static final int RESPONSE = 1;
+	private static final int BOOK = 2;
+	private static final int STOCK_BOOK = 3;
+	private static final int BOOK_COPY = 4;
+	private static final int BOOK_RATING = 5;
+	private static final int BOOK_EDITOR_PICK = 6;
+	private static final int LIST = 7;
+	private static final int SET = 8;
+	private static final int INTEGER = 9;
+	private static final int STRING = 10;
+	private static final int EXCEPTION = 11;
+	private static final int BOOK_PAGE = 12;
+	private static final int LONG = 13;
+	private static final int INGEST_REPORT = 14;
+
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	public void encode(Object object, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+				out));
+		data.writeByte(VERSION);
+		writeValue(data, object);
+		data.flush();
+	}
+
+	public Object decode(InputStream in, String charset) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		int version = data.read();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary message version "
+					+ version);
+		}
+		Object value = readValue(data);
+		if (data.read() != -1) {
+			throw new IOException("Trailing bytes after the binary message");
+		}
+		return value;
+	}
+
+	private static void writeValue(DataOutputStream out, Object value)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof BookStoreResponse) {
+			BookStoreResponse response = (BookStoreResponse) value;
+			out.writeByte(RESPONSE);
+			writeValue(out, response.getException());
+			writeValue(out, response.getList());
+		} else if (value instanceof StockBook) {
+			StockBook book = (StockBook) value;
+			out.writeByte(STOCK_BOOK);
+			writeBookFields(out, book);
+			writeVarInt(out, book.getNumCopies());
+			writeVarLong(out, book.getSaleMisses());
+			writeVarLong(out, book.getTimesRated());
+			writeVarLong(out, book.getTotalRating());
+			out.writeBoolean(book.isEditorPick());
+		} else if (value instanceof Book) {
+			out.writeByte(BOOK);
+			writeBookFields(out, (Book) value);
+		} else if (value instanceof BookCopy) {
+			BookCopy bookCopy = (BookCopy) value;
+			out.writeByte(BOOK_COPY);
+			writeVarInt(out, bookCopy.getISBN());
+			writeVarInt(out, bookCopy.getNumCopies());
+		} else if (value instanceof BookRating) {
+			BookRating bookRating = (BookRating) value;
+			out.writeByte(BOOK_RATING);
+			writeVarInt(out, bookRating.getISBN());
+			writeVarInt(out, bookRating.getRating());
+		} else if (value instanceof BookEditorPick) {
+			BookEditorPick editorPick = (BookEditorPick) value;
+			out.writeByte(BOOK_EDITOR_PICK);
+			writeVarInt(out, editorPick.getISBN());
+			out.writeBoolean(editorPick.isEditorPick());
+		} else if (value instanceof BookPage) {
+			BookPage page = (BookPage) value;
+			out.writeByte(BOOK_PAGE);
+			writeValue(out, page.getBooks());
+			writeString(out, page.getNextCursor());
+		} else if (value instanceof IngestReport) {
+			IngestReport report = (IngestReport) value;
+			out.writeByte(INGEST_REPORT);
+			// The totals and batch numbers follow from the batches
+			writeVarInt(out, report.getBatches().size());
+			for (IngestBatchResult batch : report.getBatches()) {
+				writeVarInt(out, batch.getNumBooks());
+				writeString(out, batch.getError());
+			}
+			writeString(out, report.getStreamError());
+		} else if (value instanceof List) {
+			out.writeByte(LIST);
+			writeElements(out, (List<?>) value);
+		} else if (value instanceof Set) {
+			out.writeByte(SET);
+			writeElements(out, (Set<?>) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			writeVarInt(out, (Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			writeVarLong(out, (Long) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof BookStoreException) {
+			out.writeByte(EXCEPTION);
+			writeThrowable(out, (Throwable) value, Collections
+					.newSetFromMap(new IdentityHashMap<Throwable, Boolean>()));
+		} else {
+			throw new IllegalArgumentException("Cannot encode "
+					+ value.getClass().getName());
+		}
+	}
+
+	/**
+	 * Writes the throwable, its stack trace, its cause and its suppressed
+	 * exceptions. A throwable already written, which only a cycle among the
+	 * causes and suppressed exceptions can lead back to, is written as null.
+	 */
+	private static void writeThrowable(DataOutputStream out,
+			Throwable throwable, Set<Throwable> written) throws IOException {
+		if (throwable == null || !written.add(throwable)) {
+			writeString(out, null);
+			return;
+		}
+		writeString(out, throwable.getClass().getName());
+		writeString(out, throwable.getMessage());
+		StackTraceElement[] stackTrace = throwable.getStackTrace();
+		writeVarInt(out, stackTrace.length);
+		for (StackTraceElement element : stackTrace) {
+			writeString(out, element.getClassName());
+			writeString(out, element.getMethodName());
+			writeString(out, element.getFileName());
+			writeVarInt(out, element.getLineNumber());
+		}
+		writeThrowable(out, throwable.getCause(), written);
+		Throwable[] suppressed = throwable.getSuppressed();
+		writeVarInt(out, suppressed.length);
+		for (Throwable exception : suppressed) {
+			writeThrowable(out, exception, written);
+		}
+	}
+
+	private static void writeBookFields(DataOutputStream out, Book book)
+			throws IOException {
+		writeVarInt(out, book.getISBN());
+		writeString(out, book.getTitle());
+		writeString(out, book.getAuthor());
+		out.writeInt(Float.floatToIntBits(book.getPrice()));
+	}
+
+	private static void writeElements(DataOutputStream out,
+			Collection<?> elements) throws IOException {
+		writeVarInt(out, elements.size());
+		for (Object element : elements) {
+			writeValue(out, element);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		if (string == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value)
+			throws IOException {
+		int zigzag = (value << 1) ^ (value >> 31);
+		while ((zigzag & ~0x7F) != 0) {
+			out.writeByte((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		out.writeByte(zigzag);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value)
+			throws IOException {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.writeByte((int) (zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		out.writeByte((int) zigzag);
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case RESPONSE:
+			BookStoreResponse response = new BookStoreResponse();
+			response.setException((BookStoreException) readValue(in,
+					BookStoreException.class));
+			response.setList((List<?>) readValue(in, List.class));
+			return response;
+		case BOOK:
+			return new ImmutableBook(readVarInt(in), readString(in),
+					readString(in), Float.intBitsToFloat(in.readInt()));
+		case STOCK_BOOK:
+			int isbn = readVarInt(in);
+			String title = readString(in);
+			String author = readString(in);
+			float price = Float.intBitsToFloat(in.readInt());
+			int numCopies = readVarInt(in);
+			long saleMisses = readVarLong(in);
+			long timesRated = readVarLong(in);
+			long totalRating = readVarLong(in);
+			return new ImmutableStockBook(isbn, title, author, price,
+					numCopies, saleMisses, timesRated, totalRating,
+					in.readBoolean());
+		case BOOK_COPY:
+			return new BookCopy(readVarInt(in), readVarInt(in));
+		case BOOK_RATING:
+			return new BookRating(readVarInt(in), readVarInt(in));
+		case BOOK_EDITOR_PICK:
+			return new BookEditorPick(readVarInt(in), in.readBoolean());
+		case BOOK_PAGE:
+			@SuppressWarnings("unchecked")
+			List<StockBook> books = (List<StockBook>) readValue(in, List.class);
+			return new BookPage(books, readString(in));
+		case INGEST_REPORT:
+			IngestReport report = new IngestReport();
+			int numBatches = readSize(in);
+			for (int i = 0; i < numBatches; i++) {
+				report.addBatch(readVarInt(in), readString(in));
+			}
+			report.setStreamError(readString(in));
+			return report;
+		case LIST:
+			int size = readSize(in);
+			List<Object> list = new ArrayList<Object>(Math.min(size, 1024));
+			for (int i = 0; i < size; i++) {
+				list.add(readValue(in));
+			}
+			return list;
+		case SET:
+			size = readSize(in);
+			Set<Object> set = new HashSet<Object>(Math.min(size, 1024));
+			for (int i = 0; i < size; i++) {
+				set.add(readValue(in));
+			}
+			return set;
+		case INTEGER:
+			return readVarInt(in);
+		case LONG:
+			return readVarLong(in);
+		case STRING:
+			return readString(in);
+		case EXCEPTION:
+			BookStoreException exception = (BookStoreException) readThrowable(
+					in, 0);
+			if (exception == null) {
+				throw new IOException("Missing exception");
+			}
+			return exception;
+		default:
+			throw new IOException("Unknown type tag " + tag);
+		}
+	}
+
+	private static Object readValue(DataInputStream in, Class<?> type)
+			throws IOException {
+		Object value = readValue(in);
+		if (value != null && !type.isInstance(value)) {
+			throw new IOException("Expected " + type.getSimpleName()
+					+ " but read " + value.getClass().getName());
+		}
+		return value;
+	}
+
+	/**
+	 * Reads a throwable written by writeThrowable, or null
+	 */
+	private static Throwable readThrowable(DataInputStream in, int depth)
+			throws IOException {
+		String className = readString(in);
+		if (className == null) {
+			return null;
+		} else if (depth > MAX_THROWABLE_DEPTH) {
+			throw new IOException("Exceptions nested too deep");
+		}
+		BookStoreException throwable = newException(className,
+				readString(in));
+		StackTraceElement[] stackTrace = new StackTraceElement[readSize(in)];
+		for (int i = 0; i < stackTrace.length; i++) {
+			String declaringClass = readString(in);
+			String methodName = readString(in);
+			String fileName = readString(in);
+			int lineNumber = readVarInt(in);
+			if (declaringClass == null || methodName == null) {
+				throw new IOException("Malformed stack trace");
+			}
+			stackTrace[i] = new StackTraceElement(declaringClass, methodName,
+					fileName, lineNumber);
+		}
+		throwable.setStackTrace(stackTrace);
+		Throwable cause = readThrowable(in, depth + 1);
+		if (cause != null) {
+			throwable.initCause(cause);
+		}
+		int numSuppressed = readSize(in);
+		for (int i = 0; i < numSuppressed; i++) {
+			Throwable suppressed = readThrowable(in, depth + 1);
+			if (suppressed != null) {
+				throwable.addSuppressed(suppressed);
+			}
+		}
+		return throwable;
+	}
+
+	/**
+	 * Recreates an exception of the server, as one of the exceptions of the
+	 * bookstore the clients tell apart, or as a BookStoreException naming
+	 * the class of any other throwable
+	 */
+	private static BookStoreException newException(String className,
+			String message) {
+		if (CursorExpiredException.class.getName().equals(className)) {
+			return new CursorExpiredException(message);
+		} else if (ServerOverloadedException.class.getName().equals(className)) {
+			return new ServerOverloadedException(message);
+		} else if (BookStoreException.class.getName().equals(className)) {
+			return new BookStoreException(message);
+		}
+		return new BookStoreException(message == null ? className : className
+				+ ": " + message);
+	}
+
+	private static int readSize(DataInputStream in) throws IOException {
+		int size = readVarInt(in);
+		if (size < 0 || size > MAX_ELEMENTS) {
+			throw new IOException("Invalid collection size " + size);
+		}
+		return size;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = readVarInt(in) - 1;
+		if (length == -1) {
+			return null;
+		} else if (length < -1 || length > MAX_STRING_BYTES) {
+			throw new IOException("Invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int zigzag = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long zigzag = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new IOException("Malformed varlong");
+	}
+}
@@ -0,0 +1,49 @@
+package com.acertainbookstore.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * BookStoreCodec encodes the requests and responses exchanged by the
+ * proxies and the message handler. A codec is chosen for each message by its
+ * content type, see BookStoreCodecs. Codecs are stateless and thread-safe.
+ * 
+ */
+public interface BookStoreCodec {
+
+	/**
+	 * Returns the content type of the messages of the codec, which the
+	 * codecs are looked up by. The media type must differ from those of the
+	 * other codecs.
+	 * 
+	 * @return
+	 */
+	public String getContentType();
+
+	/**
+	 * Encodes the object to the stream, without closing it.
+	 * 
+	 * @param object
+	 * @param out
+	 * @throws IOException
+	 *             if the stream fails
+	 * @throws IllegalArgumentException
+	 *             if the codec does not support the type of the object or of
+	 *             an object it holds
+	 */
+	public void encode(Object object, OutputStream out) throws IOException;
+
+	/**
+	 * Decodes an object from the stream.
+	 * 
+	 * @param in
+	 * @param charset
+	 *            the charset of the content type of the message, or null if
+	 *            it has none; codecs of text formats decode with it
+	 * @return
+	 * @throws IOException
+	 *             if the stream fails or holds a malformed message
+	 */
+	public Object decode(InputStream in, String charset) throws IOException;
+}
@@ -0,0 +1,115 @@
+package com.acertainbookstore.utils;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * BookStoreCodecs looks up the codec of a message by its content type.
+ *
+ * A client sends its request in the codec of its choice, with the content
+ * type of the codec, and asks for the response in a codec with the Accept
+ * header. Messages without a known content type, and clients that do not
+ * ask for a codec, get XML, so clients and servers that predate the codecs
+ * keep working with the others.
+ *
+ */
+public final class BookStoreCodecs {
+
+	public static final BookStoreCodec XML = new XMLCodec();
+	public static final BookStoreCodec BINARY = new BinaryCodec();
+
+	private static final CopyOnWriteArrayList<BookStoreCodec> codecs = new CopyOnWriteArrayList<BookStoreCodec>();
+
+	static {
+		register(XML);
+		register(BINARY);
+	}
+
+	private BookStoreCodecs() {
+		// Prevent instantiation
+	}
+
+	/**
+	 * Adds a codec, replacing the codec of the same media type if there is
+	 * one.
+	 *
+	 * @param codec
+	 */
+	public static synchronized void register(BookStoreCodec codec) {
+		String mediaType = mediaType(codec.getContentType());
+		for (BookStoreCodec registered : codecs) {
+			if (mediaType(registered.getContentType()).equals(mediaType)) {
+				codecs.remove(registered);
+			}
+		}
+		codecs.add(codec);
+	}
+
+	/**
+	 * Returns the codec of a message of the content type.
+	 *
+	 * @param contentType
+	 *            the content type of the message, or null if it has none
+	 * @return the codec of the media type of the content type, or the XML
+	 *         codec if there is none
+	 */
+	public static BookStoreCodec forContentType(String contentType) {
+		if (contentType != null) {
+			String mediaType = mediaType(contentType);
+			for (BookStoreCodec codec : codecs) {
+				if (mediaType(codec.getContentType()).equals(mediaType)) {
+					return codec;
+				}
+			}
+		}
+		return XML;
+	}
+
+	/**
+	 * Returns the codec a response should be sent in.
+	 *
+	 * @param accept
+	 *            the Accept header of the request, or null if it has none
+	 * @return the codec of the first media type of the header that has one,
+	 *         or the XML codec if there is none
+	 */
+	public static BookStoreCodec forAccept(String accept) {
+		if (accept != null) {
+			for (String contentType : accept.split(",")) {
+				BookStoreCodec codec = forContentType(contentType);
+				if (codec != XML || mediaType(contentType).equals(
+						mediaType(XML.getContentType()))) {
+					return codec;
+				}
+			}
+		}
+		return XML;
+	}
+
+	/**
+	 * Returns the charset parameter of the content type.
+	 *
+	 * @param contentType
+	 * @return the charset, or null if the content type is null or has none
+	 */
+	public static String charset(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		for (String parameter : contentType.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.toLowerCase(Locale.ROOT).startsWith("charset=")) {
+				return parameter.substring(8).replace("\"", "").trim();
+			}
+		}
+		return null;
+	}
+
+	private static String mediaType(String contentType) {
+		int semicolon = contentType.indexOf(';');
+		if (semicolon >= 0) {
+			contentType = contentType.substring(0, semicolon);
+		}
+		return contentType.trim().toLowerCase(Locale.ROOT);
+	}
+}
@@ -14,6 +14,9 @@ public final class BookStoreConstants {
 	public static final String BOOKISBN_PARAM = "ISBN";
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 	public static final String XMLSTRINGLEN_PARAM = "len";
+	public static final String BATCH_SIZE_PARAM = "batch_size";
+	public static final String CURSOR_PARAM = "cursor";
+	public static final String PAGE_SIZE_PARAM = "page_size";
 	
 	// Used as error code when converting numbers to integer
 	public static final int INVALID_PARAMS = -1;
@@ -29,8 +32,72 @@ public final class BookStoreConstants {
 	public static final String ISBN = "The ISBN: ";
 	public static final String NUM_COPIES = "The Number of copies: ";
 	public static final String RATING = "The rating: ";
+	public static final String BATCH_SIZE = "The batch size: ";
+	public static final String PAGE_SIZE = "The page size: ";
+	public static final String CURSOR = "The cursor: ";
+	// When a cursor refers to a catalog version that is no longer kept
+	public static final String EXPIRED = " has expired";
+	// When the server sheds a request because too many of its kind are in
+	// flight
+	public static final String OVERLOADED = "The server is overloaded, retry later: ";
+	// When a request times out while the server handles it
+	public static final String TIMED_OUT = "The request timed out and may or may not have taken effect: ";
 	public static final String NULL_INPUT = "null input parameters";
+	// When the body of a request is too large or cannot be decoded
+	public static final String REQUEST_TOO_LARGE = "The request is larger than the limit of the server, in bytes: ";
+	public static final String REQUEST_MALFORMED = "The request cannot be decoded: ";
 
 	public static final String PROPERTY_KEY_LOCAL_TEST = "localtest";
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
+	public static final String PROPERTY_KEY_STORE_ENGINE = "engine";
+	// Number of lock stripes of the concurrent engine, a power of two
+	public static final String PROPERTY_KEY_LOCK_STRIPES = "lockstripes";
+	// Set to true to apply concurrent purchases in combined batches
+	public static final String PROPERTY_KEY_COMBINE_PURCHASES = "combinepurchases";
+	// Number of slices the stock of each book is split into
+	public static final String PROPERTY_KEY_INVENTORY_SHARDS = "inventoryshards";
+	// Delimited catalog file loaded into the store before the server starts
+	public static final String PROPERTY_KEY_CATALOG_FILE = "catalogfile";
+	// Number of threads parsing the catalog file
+	public static final String PROPERTY_KEY_CATALOG_IMPORT_THREADS = "catalogimportthreads";
+	// Threads the requests are handled on, see REQUEST_THREADS_*
+	public static final String PROPERTY_KEY_REQUEST_THREADS = "requestthreads";
+	// Properties file of the server, overridden by the system properties
+	public static final String PROPERTY_KEY_SERVER_CONFIG = "serverconfig";
+	// Settings of the connector of the server; its acceptors are also its
+	// selectors
+	public static final String PROPERTY_KEY_ACCEPTORS = "acceptors";
+	public static final String PROPERTY_KEY_ACCEPT_QUEUE_SIZE = "acceptqueuesize";
+	// Milliseconds a kept alive connection may stay idle
+	public static final String PROPERTY_KEY_IDLE_TIMEOUT = "idletimeout";
+	// Open connections above which the low resources idle timeout applies
+	public static final String PROPERTY_KEY_LOW_RESOURCES_CONNECTIONS = "lowresourcesconnections";
+	public static final String PROPERTY_KEY_LOW_RESOURCES_IDLE_TIMEOUT = "lowresourcesidletimeout";
+	// Settings of the thread pool of the server
+	public static final String PROPERTY_KEY_MIN_THREADS = "minthreads";
+	public static final String PROPERTY_KEY_MAX_THREADS = "maxthreads";
+	// Milliseconds an idle thread above the minimum is kept
+	public static final String PROPERTY_KEY_THREAD_IDLE_TIMEOUT = "threadidletimeout";
+	// Jobs waiting for a thread before the connections are refused, -1 for
+	// no limit
+	public static final String PROPERTY_KEY_MAX_QUEUED = "maxqueued";
+	// Set to true to limit the requests in flight for each message tag
+	public static final String PROPERTY_KEY_ADMISSION_CONTROL = "admissioncontrol";
+	// Highest limit of requests in flight for a message tag
+	public static final String PROPERTY_KEY_ADMISSION_MAX_LIMIT = "admissionmaxlimit";
+	// Largest body of a request, in bytes, except for the streaming ingest
+	public static final String PROPERTY_KEY_MAX_REQUEST_BYTES = "maxrequestbytes";
+	// Milliseconds a request handled off the server threads may take, except
+	// for the streaming ingest
+	public static final String PROPERTY_KEY_REQUEST_TIMEOUT = "requesttimeout";
+
+	// Values of the engine property, selecting the bookstore implementation
+	public static final String STORE_ENGINE_CONCURRENT = "concurrent";
+	public static final String STORE_ENGINE_MASTER_LOCK = "masterlock";
+
+	// Values of the requestthreads property: the threads of the Jetty pool,
+	// a virtual thread per request, or a bounded pool per kind of request
+	public static final String REQUEST_THREADS_POOLED = "pooled";
+	public static final String REQUEST_THREADS_VIRTUAL = "virtual";
+	public static final String REQUEST_THREADS_BULKHEADS = "bulkheads";
 }
@@ -0,0 +1,125 @@
+package com.acertainbookstore.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import com.acertainbookstore.client.BookStoreClientConstants;
+
+/**
+ * A ContentExchange that completes a future from the callbacks of the HTTP
+ * client, instead of being waited for by the thread that sent it. The future
+ * holds the list of the BookStoreResponse, or fails with a
+ * BookStoreException.
+ * 
+ * The callbacks run on the threads of the HTTP client, and so do the
+ * dependent stages of the future that are not given an executor of their
+ * own.
+ * 
+ * The response is decoded with the codec of its content type, so the
+ * exchange works with servers that only answer in XML.
+ */
+public class BookStoreExchange extends ContentExchange {
+	private final CompletableFuture<List<?>> future = new CompletableFuture<List<?>>();
+	private final BookStoreCodec codec;
+
+	/**
+	 * Creates an exchange whose response is sent in XML
+	 */
+	public BookStoreExchange() {
+		this(BookStoreCodecs.XML);
+	}
+
+	/**
+	 * Creates an exchange that asks for the response in the codec and sends
+	 * its request content in it
+	 * 
+	 * @param codec
+	 */
+	public BookStoreExchange(BookStoreCodec codec) {
+		// Keep the response headers for the content type
+		super(true);
+		this.codec = codec;
+		if (codec != BookStoreCodecs.XML) {
+			setRequestHeader(HttpHeaders.ACCEPT, codec.getContentType());
+		}
+	}
+
+	/**
+	 * Sets the request content to the object encoded with the codec of the
+	 * exchange
+	 * 
+	 * @param content
+	 * @throws IOException
+	 *             if the codec cannot encode the object
+	 */
+	public void setRequestObject(Object content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			codec.encode(content, out);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(ex);
+		}
+		setRequestContentType(codec.getContentType());
+		setRequestContent(new ByteArrayBuffer(out.toByteArray()));
+	}
+
+	/**
+	 * Returns the future of the response.
+	 * 
+	 * @return
+	 */
+	public CompletableFuture<List<?>> getFuture() {
+		return future;
+	}
+
+	@Override
+	protected void onResponseComplete() throws IOException {
+		super.onResponseComplete();
+		try {
+			String contentType = getResponseFields().getStringField(
+					HttpHeaders.CONTENT_TYPE);
+			future.complete(BookStoreUtility.decodeResponse(
+					BookStoreCodecs.forContentType(contentType),
+					new ByteArrayInputStream(getResponseContentBytes()),
+					BookStoreCodecs.charset(contentType)));
+		} catch (BookStoreException ex) {
+			future.completeExceptionally(ex);
+		} catch (IOException ex) {
+			future.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
+					ex));
+		} catch (RuntimeException ex) {
+			future.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
+					ex));
+		}
+	}
+
+	@Override
+	protected void onConnectionFailed(Throwable x) {
+		super.onConnectionFailed(x);
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, x));
+	}
+
+	@Override
+	protected void onException(Throwable x) {
+		super.onException(x);
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION, x));
+	}
+
+	@Override
+	protected void onExpire() {
+		super.onExpire();
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT));
+	}
+}
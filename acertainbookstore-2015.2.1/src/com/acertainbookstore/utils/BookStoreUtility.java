@@ -4,15 +4,15 @@
 package com.acertainbookstore.utils;
 
 import java.io.IOException;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import javax.servlet.http.HttpServletRequest;
-
-import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.HttpExchange;
 
 import com.acertainbookstore.client.BookStoreClientConstants;
 import com.thoughtworks.xstream.XStream;
@@ -25,6 +25,14 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
  */
 public final class BookStoreUtility {
 
+	/**
+	 * Holds the XStream shared by the XML helpers, which is thread-safe once
+	 * configured and costly to create, so it is only created on first use
+	 */
+	private static final class XMLStreamHolder {
+		static final XStream XML_STREAM = new XStream(new StaxDriver());
+	}
+
 	public static boolean isInvalidISBN(int isbn) {
 		return (isbn < 1);
 	}
@@ -37,6 +45,39 @@ public final class BookStoreUtility {
 		return (copies < 1);
 	}
 
+	/**
+	 * Compares a * b with c * d exactly, on their 128-bit products, so that
+	 * products past the range of a long still compare correctly
+	 *
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @param d
+	 * @return a negative number, zero or a positive number as a * b is less
+	 *         than, equal to or greater than c * d
+	 */
+	public static int compareProducts(long a, long b, long c, long d) {
+		int order = Long.compare(multiplyHigh(a, b), multiplyHigh(c, d));
+		return order != 0 ? order : Long.compareUnsigned(a * b, c * d);
+	}
+
+	/**
+	 * Returns the upper 64 bits of the signed 128-bit product of x and y,
+	 * from the products of their 32-bit halves
+	 */
+	private static long multiplyHigh(long x, long y) {
+		long x1 = x >> 32;
+		long x2 = x & 0xFFFFFFFFL;
+		long y1 = y >> 32;
+		long y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = t & 0xFFFFFFFFL;
+		long z0 = t >> 32;
+		z1 += x2 * y1;
+		return x1 * y1 + z0 + (z1 >> 32);
+	}
+
 	/**
 	 * Checks if a string is empty or null
 	 * 
@@ -106,6 +147,15 @@ public final class BookStoreUtility {
 		return null;
 	}
 
+	/**
+	 * Returns the XStream shared by the XML helpers
+	 *
+	 * @return
+	 */
+	private static XStream getXMLStream() {
+		return XMLStreamHolder.XML_STREAM;
+	}
+
 	/**
 	 * Serializes an object to an xml string
 	 * 
@@ -113,10 +163,7 @@ public final class BookStoreUtility {
 	 * @return
 	 */
 	public static String serializeObjectToXMLString(Object object) {
-		String xmlString;
-		XStream xmlStream = new XStream(new StaxDriver());
-		xmlString = xmlStream.toXML(object);
-		return xmlString;
+		return getXMLStream().toXML(object);
 	}
 
 	/**
@@ -126,84 +173,127 @@ public final class BookStoreUtility {
 	 * @return
 	 */
 	public static Object deserializeXMLStringToObject(String xmlObject) {
-		Object dataObject = null;
-		XStream xmlStream = new XStream(new StaxDriver());
-		dataObject = xmlStream.fromXML(xmlObject);
-		return dataObject;
+		return getXMLStream().fromXML(xmlObject);
 	}
 
+	/**
+	 * Returns a stream of the objects serialized one by one as an XStream
+	 * object stream, which is produced as the stream is read, so that the
+	 * objects never have to be serialized all at once
+	 * 
+	 * @param objects
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream serializeObjectsToXMLStream(Iterator<?> objects)
+			throws IOException {
+		return new XMLObjectStreamSource(objects, "objects");
+	}
 
 	/**
-	 * Manages the sending of an exchange through the client, waits for the
-	 * response and unpacks the response
+	 * De-serializes an XStream object stream one object at a time, as the
+	 * iterator is advanced. The iterator throws an IllegalStateException if
+	 * the stream is malformed or holds an object that is not a T.
+	 * 
+	 * @param xmlStream
+	 * @param type
+	 * @return
+	 */
+	public static <T> Iterator<T> deserializeXMLStreamToObjects(
+			InputStream xmlStream, Class<T> type) {
+		return new XMLObjectStreamIterator<T>(xmlStream, type);
+	}
+
+	/**
+	 * Unpacks the BookStoreResponse in the content of a response encoded
+	 * with the codec
+	 * 
+	 * @param codec
+	 * @param responseContent
+	 * @param charset
+	 *            the charset of the content type of the response, or null
+	 * @return the list of the response
+	 * @throws BookStoreException
+	 *             the exception of the response, if it has one
+	 * @throws IOException
+	 *             if the content is not a BookStoreResponse of the codec
+	 */
+	public static List<?> decodeResponse(BookStoreCodec codec,
+			InputStream responseContent, String charset)
+			throws BookStoreException, IOException {
+		Object decoded = codec.decode(responseContent, charset);
+		if (!(decoded instanceof BookStoreResponse)) {
+			throw new IOException("The response is not a BookStoreResponse");
+		}
+		BookStoreException ex = ((BookStoreResponse) decoded).getException();
+		if (ex != null) {
+			throw ex;
+		}
+		return ((BookStoreResponse) decoded).getList();
+	}
+
+	/**
+	 * Sends the exchange through the client without waiting for the
+	 * response
 	 * 
 	 * @param client
 	 * @param exchange
-	 * @return A List<Book> for a get function, otherwise null
-	 * @throws BookStoreException
+	 * @return the future of the list of the response, see BookStoreExchange
 	 */
-	public static List<?> SendAndRecv(HttpClient client,
-			ContentExchange exchange) throws BookStoreException {
-		int exchangeState;
+	public static CompletableFuture<List<?>> sendAsync(HttpClient client,
+			BookStoreExchange exchange) {
 		try {
 			client.send(exchange);
 		} catch (IOException ex) {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex);
+			exchange.getFuture().completeExceptionally(
+					new BookStoreException(
+							BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING,
+							ex));
 		}
+		return exchange.getFuture();
+	}
 
+	/**
+	 * Waits for the future for up to the timeout of the client requests and
+	 * returns its value, or throws the BookStoreException it failed with
+	 * 
+	 * @param future
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public static <T> T await(CompletableFuture<T> future)
+			throws BookStoreException {
+		return await(future,
+				BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+	}
+
+	/**
+	 * Waits for the future for up to timeoutMillis and returns its value, or
+	 * throws the BookStoreException it failed with. A future still pending
+	 * after the timeout fails with a client request timeout, so a response
+	 * that never comes cannot block the caller for good.
+	 * 
+	 * @param future
+	 * @param timeoutMillis
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public static <T> T await(CompletableFuture<T> future, long timeoutMillis)
+			throws BookStoreException {
 		try {
-			exchangeState = exchange.waitForDone(); // block until the response
-													// is available
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
 			throw new BookStoreException(
 					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex);
-		}
-
-		if (exchangeState == HttpExchange.STATUS_COMPLETED) {
-			try {
-				BookStoreResponse bookStoreResponse = (BookStoreResponse) BookStoreUtility
-						.deserializeXMLStringToObject(exchange
-								.getResponseContent().trim());
-				BookStoreException ex = bookStoreResponse.getException();
-				if (ex != null) {
-					throw ex;
-				}
-				return bookStoreResponse.getList();
-				
-			} catch (UnsupportedEncodingException ex) {
-				throw new BookStoreException(
-						BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
-						ex);
-			}
-		} else if (exchangeState == HttpExchange.STATUS_EXCEPTED) {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION);
-		} else if (exchangeState == HttpExchange.STATUS_EXPIRED) {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT);
-		} else {
+		} catch (TimeoutException ex) {
 			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_UNKNOWN);
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+			throw new BookStoreException(ex.getCause());
 		}
 	}
-
-	/**
-	 * Returns the message of the request as a string
-	 * 
-	 * @param request
-	 * @return xml string
-	 * @throws IOException
-	 */
-	public static String extractPOSTDataFromRequest(HttpServletRequest request)
-			throws IOException {
-		Reader reader = request.getReader();
-		int len = request.getContentLength();
-
-		// Request must be read into a char[] first
-		char res[] = new char[len];
-		reader.read(res);
-		reader.close();
-		return new String(res);
-	}
 }
@@ -0,0 +1,366 @@
+package com.acertainbookstore.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ConcurrentIntHashMap is a concurrent hash map from primitive int keys to
+ * objects, meant for indexes over millions of ISBNs.
+ *
+ * Keys are never boxed and an entry costs no object of its own: each segment
+ * stores its keys and values in two parallel arrays and resolves collisions
+ * by linear probing. Lookups take no lock. Writers lock only the segment of
+ * the key, and a segment that fills up is rehashed into a new table that
+ * replaces the old one in a single volatile write.
+ *
+ * Removed entries keep their key with a null value until the next rehash,
+ * so probing readers never miss a key that moved. Null values are not
+ * allowed.
+ *
+ * @param <V>
+ *            the type of the values
+ */
+public class ConcurrentIntHashMap<V> {
+	// Marks a never used slot, key 0 itself is stored outside the tables
+	private static final int FREE = 0;
+	private static final int MIN_TABLE_SIZE = 16;
+	private static final int DEFAULT_SEGMENTS = 64;
+
+	private final Segment[] segments;
+	private final int segmentShift;
+
+	/**
+	 * Creates an empty map with room for a few entries per segment.
+	 */
+	public ConcurrentIntHashMap() {
+		this(DEFAULT_SEGMENTS * MIN_TABLE_SIZE / 2, DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * Creates an empty map that holds expectedSize entries without rehashing.
+	 *
+	 * @param expectedSize
+	 * @param concurrencyLevel
+	 *            the number of writers expected to update the map at once
+	 */
+	public ConcurrentIntHashMap(int expectedSize, int concurrencyLevel) {
+		int numSegments = Integer.highestOneBit(Math.max(1,
+				Math.min(concurrencyLevel, 1 << 16)) * 2 - 1);
+		segments = new Segment[numSegments];
+		segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+		int perSegment = (int) Math.min(1L << 30,
+				(long) expectedSize / numSegments + 1);
+		for (int i = 0; i < numSegments; i++) {
+			segments[i] = new Segment(tableSizeFor(perSegment));
+		}
+	}
+
+	/**
+	 * Returns the smallest power of two table size keeping size entries
+	 * below the maximum load
+	 */
+	private static int tableSizeFor(int size) {
+		long slots = Math.max(MIN_TABLE_SIZE, (long) size * 4 / 3 + 1);
+		return (int) Math.min(1 << 30, Long.highestOneBit(slots - 1) << 1);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Segment segmentFor(int hash) {
+		// The segment uses the high bits, the slot the low bits of the hash
+		return segments.length == 1 ? segments[0]
+				: segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * Returns the value of the key, or null if there is none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int hash = hash(key);
+		return (V) segmentFor(hash).get(key, hash);
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Maps the key to the value.
+	 *
+	 * @param key
+	 * @param value
+	 * @return the previous value of the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int hash = hash(key);
+		return (V) segmentFor(hash).put(key, hash, value, false);
+	}
+
+	/**
+	 * Maps the key to the value unless it already has one.
+	 *
+	 * @param key
+	 * @param value
+	 * @return the current value of the key, or null if value was added
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int hash = hash(key);
+		return (V) segmentFor(hash).put(key, hash, value, true);
+	}
+
+	/**
+	 * Removes the key.
+	 *
+	 * @param key
+	 * @return the removed value, or null if the key had none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int hash = hash(key);
+		return (V) segmentFor(hash).remove(key, hash);
+	}
+
+	/**
+	 * Returns the number of entries. It is exact only if no writer runs
+	 * concurrently.
+	 *
+	 * @return
+	 */
+	public int size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.count;
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Returns the keys in the map. Entries added or removed during the call
+	 * may or may not be included.
+	 *
+	 * @return
+	 */
+	public int[] keys() {
+		int[] keys = new int[size() + 16];
+		int n = 0;
+		for (Segment segment : segments) {
+			Table table = segment.table;
+			if (segment.zeroValue != null) {
+				keys = ensureCapacity(keys, n);
+				keys[n++] = 0;
+			}
+			for (int i = 0; i < table.length; i++) {
+				int key = table.keys.get(i);
+				if (key != FREE && table.values.get(i) != null) {
+					keys = ensureCapacity(keys, n);
+					keys[n++] = key;
+				}
+			}
+		}
+		return Arrays.copyOf(keys, n);
+	}
+
+	private static int[] ensureCapacity(int[] keys, int n) {
+		return n < keys.length ? keys : Arrays.copyOf(keys, keys.length * 2);
+	}
+
+	/**
+	 * Returns the values in the map, with the same guarantees as keys().
+	 *
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(size());
+		for (Segment segment : segments) {
+			Table table = segment.table;
+			if (segment.zeroValue != null) {
+				values.add((V) segment.zeroValue);
+			}
+			for (int i = 0; i < table.length; i++) {
+				Object value = table.values.get(i);
+				if (value != null) {
+					values.add((V) value);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * The open addressing table of a segment. A slot is free while its key is
+	 * FREE. Values are written before their key, so a reader that sees the
+	 * key also sees the value.
+	 */
+	private static final class Table {
+		final int length;
+		final int mask;
+		final AtomicIntegerArray keys;
+		final AtomicReferenceArray<Object> values;
+
+		Table(int length) {
+			this.length = length;
+			this.mask = length - 1;
+			this.keys = new AtomicIntegerArray(length);
+			this.values = new AtomicReferenceArray<Object>(length);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class Segment extends ReentrantLock {
+		volatile Table table;
+		// Key 0 is the FREE marker, so its value lives here
+		volatile Object zeroValue;
+		// Live entries, and slots with a key including removed entries
+		volatile int count;
+		int used;
+
+		Segment(int tableSize) {
+			table = new Table(tableSize);
+		}
+
+		Object get(int key, int hash) {
+			if (key == FREE) {
+				return zeroValue;
+			}
+			Table t = table;
+			for (int i = hash & t.mask;; i = (i + 1) & t.mask) {
+				int k = t.keys.get(i);
+				if (k == key) {
+					return t.values.get(i);
+				}
+				if (k == FREE) {
+					return null;
+				}
+			}
+		}
+
+		Object put(int key, int hash, Object value, boolean onlyIfAbsent) {
+			lock();
+			try {
+				if (key == FREE) {
+					Object old = zeroValue;
+					if (old == null || !onlyIfAbsent) {
+						zeroValue = value;
+					}
+					if (old == null) {
+						count++;
+					}
+					return old;
+				}
+				Table t = table;
+				int i = hash & t.mask;
+				for (;; i = (i + 1) & t.mask) {
+					int k = t.keys.get(i);
+					if (k == key) {
+						Object old = t.values.get(i);
+						if (old == null || !onlyIfAbsent) {
+							t.values.set(i, value);
+						}
+						if (old == null) {
+							count++;
+						}
+						return old;
+					}
+					if (k == FREE) {
+						break;
+					}
+				}
+				if ((used + 1) * 4L > t.length * 3L) {
+					t = rehash(count + 1);
+					for (i = hash & t.mask; t.keys.get(i) != FREE; i = (i + 1)
+							& t.mask) {
+					}
+				}
+				t.values.set(i, value);
+				t.keys.set(i, key);
+				used++;
+				count++;
+				return null;
+			} finally {
+				unlock();
+			}
+		}
+
+		Object remove(int key, int hash) {
+			lock();
+			try {
+				if (key == FREE) {
+					Object old = zeroValue;
+					if (old != null) {
+						zeroValue = null;
+						count--;
+					}
+					return old;
+				}
+				Table t = table;
+				for (int i = hash & t.mask;; i = (i + 1) & t.mask) {
+					int k = t.keys.get(i);
+					if (k == key) {
+						Object old = t.values.get(i);
+						if (old != null) {
+							t.values.set(i, null);
+							count--;
+						}
+						return old;
+					}
+					if (k == FREE) {
+						return null;
+					}
+				}
+			} finally {
+				unlock();
+			}
+		}
+
+		/**
+		 * Copies the live entries into a new table sized for size entries,
+		 * which drops the removed ones, and publishes it.
+		 */
+		private Table rehash(int size) {
+			Table old = table;
+			Table t = new Table(tableSizeFor(Math.max(size * 2, old.length / 4)));
+			int live = 0;
+			for (int j = 0; j < old.length; j++) {
+				int key = old.keys.get(j);
+				Object value = old.values.get(j);
+				if (key == FREE || value == null) {
+					continue;
+				}
+				int i = hash(key) & t.mask;
+				while (t.keys.get(i) != FREE) {
+					i = (i + 1) & t.mask;
+				}
+				t.values.lazySet(i, value);
+				t.keys.lazySet(i, key);
+				live++;
+			}
+			used = live;
+			table = t;
+			return t;
+		}
+	}
+}
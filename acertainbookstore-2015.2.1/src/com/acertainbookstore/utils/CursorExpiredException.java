@@ -0,0 +1,14 @@
+package com.acertainbookstore.utils;
+
+/**
+ * Exception to signal that a page cursor refers to a catalog version the
+ * store no longer keeps. The iteration has to start over from the first
+ * page.
+ */
+public class CursorExpiredException extends BookStoreException {
+	private static final long serialVersionUID = 1L;
+
+	public CursorExpiredException(String message) {
+		super(message);
+	}
+}
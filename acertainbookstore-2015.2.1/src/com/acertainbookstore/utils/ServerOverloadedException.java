@@ -0,0 +1,14 @@
+package com.acertainbookstore.utils;
+
+/**
+ * Exception to signal that the server rejected a request without running
+ * it, because too many requests of the same kind were in flight. The
+ * request had no effect and may be retried later.
+ */
+public class ServerOverloadedException extends BookStoreException {
+	private static final long serialVersionUID = 1L;
+
+	public ServerOverloadedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,990 @@
+package com.acertainbookstore.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookPage;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.IngestBatchResult;
+import com.acertainbookstore.business.IngestReport;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * XMLCodec reads and writes the XML of XStream with a StaxDriver, which the
+ * bookstore has always exchanged, for the types of the bookstore only. It
+ * walks the objects by hand over StAX instead of by reflection, so it needs
+ * no XStream and no class metadata per message.
+ *
+ * It writes what XStream writes, element for element, except that lists of
+ * other classes than those XStream has aliases for are written as plain
+ * lists and that objects met twice are written twice rather than as
+ * references. It reads what XStream writes for the types of the bookstore,
+ * except references, which the bookstore never sends. The one exception is
+ * the empty list of suppressed exceptions that all throwables share on
+ * Java 8: XStream writes it in full where it first meets it and refers back
+ * to it everywhere else, and the codec writes and reads those references
+ * within a throwable and its causes and suppressed exceptions. Throwables
+ * are written the way XStream writes them on the running Java version.
+ *
+ * The codec only holds its StAX factories, which are configured once and
+ * shared by all the threads.
+ */
+public class XMLCodec implements BookStoreCodec {
+	public static final String CONTENT_TYPE = "text/xml;charset=UTF-8";
+
+	private static final String RESPONSE = BookStoreResponse.class.getName();
+	private static final String BOOK = ImmutableBook.class.getName();
+	private static final String STOCK_BOOK = ImmutableStockBook.class
+			.getName();
+	private static final String BOOK_COPY = BookCopy.class.getName();
+	private static final String BOOK_RATING = BookRating.class.getName();
+	private static final String BOOK_EDITOR_PICK = BookEditorPick.class
+			.getName();
+	private static final String BOOK_PAGE = BookPage.class.getName();
+	private static final String INGEST_REPORT = IngestReport.class.getName();
+	private static final String INGEST_BATCH = IngestBatchResult.class
+			.getName();
+
+	// The classes of the JDK collections XStream writes with an alias
+	private static final Class<?> SINGLETON_LIST = Collections.singletonList(
+			null).getClass();
+	private static final Class<?> EMPTY_LIST = Collections.emptyList()
+			.getClass();
+	private static final Class<?> SINGLETON_SET = Collections.singleton(null)
+			.getClass();
+	private static final Class<?> EMPTY_SET = Collections.emptySet()
+			.getClass();
+
+	// A throwable without suppressed exceptions holds an empty list, which
+	// XStream writes with its alias, from Java 9 on. Up to Java 8 it holds an
+	// unmodifiable empty list instead, which XStream writes field by field.
+	private static final boolean UNMODIFIABLE_NO_SUPPRESSED = System
+			.getProperty("java.specification.version").startsWith("1.");
+	private static final String UNMODIFIABLE_LIST = "java.util.Collections$UnmodifiableRandomAccessList";
+	private static final String UNMODIFIABLE_LIST_REPLACEMENT = "java.util.Collections$UnmodifiableList";
+
+	// The format XStream parses the frames of stack traces with
+	private static final Pattern TRACE = Pattern
+			.compile("^(.+)\\.([^\\(]+)\\(([^:]*)(:(\\d+))?\\)$");
+
+	private final XMLInputFactory inputFactory;
+	private final XMLOutputFactory outputFactory;
+
+	public XMLCodec() {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		outputFactory = XMLOutputFactory.newInstance();
+	}
+
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	public void encode(Object object, OutputStream out) throws IOException {
+		try {
+			XMLStreamWriter writer = outputFactory
+					.createXMLStreamWriter(new OutputStreamWriter(out, "UTF-8"));
+			writer.writeStartDocument();
+			writeValue(writer, object);
+			writer.writeEndDocument();
+			writer.flush();
+		} catch (XMLStreamException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	public Object decode(InputStream in, String charset) throws IOException {
+		try {
+			XMLStreamReader reader = inputFactory
+					.createXMLStreamReader(new InputStreamReader(in,
+							charset == null ? "UTF-8" : charset));
+			try {
+				reader.nextTag();
+				Object object = readValue(reader, reader.getLocalName());
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+						throw new IOException("More than one root element");
+					}
+				}
+				return object;
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException ex) {
+			throw new IOException("Malformed XML message", ex);
+		} catch (IllegalArgumentException ex) {
+			// Malformed numbers
+			throw new IOException("Malformed XML message", ex);
+		}
+	}
+
+	/**
+	 * Starts an XStream object stream, whose objects are written one at a
+	 * time with writeObject as elements of the root element, and which is
+	 * ended with closeObjectStream
+	 *
+	 * @param out
+	 * @param rootName
+	 * @return
+	 * @throws IOException
+	 */
+	XMLStreamWriter createObjectStreamWriter(OutputStream out, String rootName)
+			throws IOException {
+		try {
+			XMLStreamWriter writer = outputFactory
+					.createXMLStreamWriter(new OutputStreamWriter(out, "UTF-8"));
+			writer.writeStartDocument();
+			writer.writeStartElement(rootName);
+			return writer;
+		} catch (XMLStreamException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Writes the next object of an object stream and flushes it
+	 *
+	 * @param writer
+	 * @param object
+	 * @throws IOException
+	 */
+	void writeObject(XMLStreamWriter writer, Object object) throws IOException {
+		try {
+			writeValue(writer, object);
+			writer.flush();
+		} catch (XMLStreamException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Ends an object stream and flushes it
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	void closeObjectStream(XMLStreamWriter writer) throws IOException {
+		try {
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.flush();
+			writer.close();
+		} catch (XMLStreamException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Starts reading an XStream object stream, whose objects are read one at
+	 * a time with readObject. The charset is the one of the XML declaration,
+	 * as with XStream.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	XMLStreamReader createObjectStreamReader(InputStream in)
+			throws IOException {
+		try {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+			reader.nextTag();
+			return reader;
+		} catch (XMLStreamException ex) {
+			throw new IOException("Malformed XML message", ex);
+		}
+	}
+
+	/**
+	 * Reads the next object of an object stream
+	 *
+	 * @param reader
+	 * @return
+	 * @throws EOFException
+	 *             if the stream has no more objects
+	 * @throws IOException
+	 *             if the stream is malformed
+	 */
+	Object readObject(XMLStreamReader reader) throws IOException {
+		try {
+			if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+				throw new EOFException();
+			}
+			return readValue(reader, reader.getLocalName());
+		} catch (XMLStreamException ex) {
+			throw new IOException("Malformed XML message", ex);
+		} catch (IllegalArgumentException ex) {
+			// Malformed numbers
+			throw new IOException("Malformed XML message", ex);
+		}
+	}
+
+	/**
+	 * Writes the value as an element named by the alias XStream gives its
+	 * class
+	 */
+	private static void writeValue(XMLStreamWriter writer, Object value)
+			throws XMLStreamException {
+		if (value == null) {
+			writer.writeStartElement("null");
+			writer.writeEndElement();
+		} else if (value instanceof BookStoreResponse) {
+			BookStoreResponse response = (BookStoreResponse) value;
+			writer.writeStartElement(RESPONSE);
+			if (response.getException() != null) {
+				writeThrowable(writer, "exception", response.getException(),
+						BookStoreException.class, new ElementPath());
+			}
+			writeCollectionField(writer, "list", response.getList());
+			writer.writeEndElement();
+		} else if (value instanceof StockBook) {
+			StockBook book = (StockBook) value;
+			writer.writeStartElement(STOCK_BOOK);
+			writeBookFields(writer, book);
+			writeField(writer, "totalRating", book.getTotalRating());
+			writeField(writer, "timesRated", book.getTimesRated());
+			writeField(writer, "numCopies", book.getNumCopies());
+			writeField(writer, "saleMisses", book.getSaleMisses());
+			writeField(writer, "editorPick", book.isEditorPick());
+			writer.writeEndElement();
+		} else if (value instanceof Book) {
+			writer.writeStartElement(BOOK);
+			writeBookFields(writer, (Book) value);
+			writer.writeEndElement();
+		} else if (value instanceof BookCopy) {
+			BookCopy bookCopy = (BookCopy) value;
+			writer.writeStartElement(BOOK_COPY);
+			writeField(writer, "ISBN", bookCopy.getISBN());
+			writeField(writer, "numCopies", bookCopy.getNumCopies());
+			writer.writeEndElement();
+		} else if (value instanceof BookRating) {
+			BookRating bookRating = (BookRating) value;
+			writer.writeStartElement(BOOK_RATING);
+			writeField(writer, "ISBN", bookRating.getISBN());
+			writeField(writer, "rating", bookRating.getRating());
+			writer.writeEndElement();
+		} else if (value instanceof BookEditorPick) {
+			BookEditorPick editorPick = (BookEditorPick) value;
+			writer.writeStartElement(BOOK_EDITOR_PICK);
+			writeField(writer, "ISBN", editorPick.getISBN());
+			writeField(writer, "editorPick", editorPick.isEditorPick());
+			writer.writeEndElement();
+		} else if (value instanceof BookPage) {
+			BookPage page = (BookPage) value;
+			writer.writeStartElement(BOOK_PAGE);
+			writeCollectionField(writer, "books", page.getBooks());
+			writeField(writer, "nextCursor", page.getNextCursor());
+			writer.writeEndElement();
+		} else if (value instanceof IngestReport) {
+			IngestReport report = (IngestReport) value;
+			writer.writeStartElement(INGEST_REPORT);
+			writeCollectionField(writer, "batches", report.getBatches());
+			writeField(writer, "booksAdded", report.getBooksAdded());
+			writeField(writer, "booksRejected", report.getBooksRejected());
+			writeField(writer, "streamError", report.getStreamError());
+			writer.writeEndElement();
+		} else if (value instanceof IngestBatchResult) {
+			IngestBatchResult batch = (IngestBatchResult) value;
+			writer.writeStartElement(INGEST_BATCH);
+			writeField(writer, "batch", batch.getBatch());
+			writeField(writer, "numBooks", batch.getNumBooks());
+			writeField(writer, "error", batch.getError());
+			writer.writeEndElement();
+		} else if (value instanceof Collection) {
+			writer.writeStartElement(collectionAlias((Collection<?>) value,
+					true));
+			writeElements(writer, (Collection<?>) value);
+			writer.writeEndElement();
+		} else if (value instanceof Throwable) {
+			writeThrowable(writer, value.getClass().getName(),
+					(Throwable) value, value.getClass(), new ElementPath());
+		} else {
+			String alias = primitiveAlias(value);
+			if (alias == null) {
+				throw new IllegalArgumentException("Cannot encode "
+						+ value.getClass().getName());
+			}
+			writeField(writer, alias, value);
+		}
+	}
+
+	private static void writeBookFields(XMLStreamWriter writer, Book book)
+			throws XMLStreamException {
+		writeField(writer, "ISBN", book.getISBN());
+		writeField(writer, "title", book.getTitle());
+		writeField(writer, "author", book.getAuthor());
+		writeField(writer, "price", book.getPrice());
+	}
+
+	/**
+	 * Writes a field holding a string or a boxed primitive, which XStream
+	 * leaves out when it is null
+	 */
+	private static void writeField(XMLStreamWriter writer, String name,
+			Object value) throws XMLStreamException {
+		if (value == null) {
+			return;
+		}
+		writer.writeStartElement(name);
+		writer.writeCharacters(value.toString());
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Writes a field holding a collection, with the class attribute XStream
+	 * adds when the collection is not of the default class of the field
+	 */
+	private static void writeCollectionField(XMLStreamWriter writer,
+			String name, Collection<?> collection) throws XMLStreamException {
+		if (collection == null) {
+			return;
+		}
+		writer.writeStartElement(name);
+		String alias = collectionAlias(collection, false);
+		if (alias != null) {
+			writer.writeAttribute("class", alias);
+		}
+		writeElements(writer, collection);
+		writer.writeEndElement();
+	}
+
+	private static void writeElements(XMLStreamWriter writer,
+			Collection<?> elements) throws XMLStreamException {
+		for (Object element : elements) {
+			writeValue(writer, element);
+		}
+	}
+
+	/**
+	 * Returns the XStream alias of the class of the collection, defaulting to
+	 * that of ArrayList or HashSet for the classes it has no alias for
+	 *
+	 * @param root
+	 *            if false, returns null for the default class of a field
+	 */
+	private static String collectionAlias(Collection<?> collection,
+			boolean root) {
+		Class<?> type = collection.getClass();
+		if (type == SINGLETON_LIST) {
+			return "singleton-list";
+		} else if (type == EMPTY_LIST) {
+			return "empty-list";
+		} else if (type == LinkedList.class) {
+			return "linked-list";
+		} else if (type == SINGLETON_SET) {
+			return "singleton-set";
+		} else if (type == EMPTY_SET) {
+			return "empty-set";
+		} else if (type == LinkedHashSet.class) {
+			return "linked-hash-set";
+		} else if (collection instanceof Set) {
+			return "set";
+		}
+		return root ? "list" : null;
+	}
+
+	private static String primitiveAlias(Object value) {
+		if (value instanceof String) {
+			return "string";
+		} else if (value instanceof Integer) {
+			return "int";
+		} else if (value instanceof Long) {
+			return "long";
+		} else if (value instanceof Float) {
+			return "float";
+		} else if (value instanceof Boolean) {
+			return "boolean";
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the fields of Throwable the way XStream does, with a class
+	 * attribute if the class of the throwable is not the declared one. The
+	 * path tracks the elements of the outermost throwable written.
+	 */
+	private static void writeThrowable(XMLStreamWriter writer, String name,
+			Throwable throwable, Class<?> declaredType, ElementPath path)
+			throws XMLStreamException {
+		writer.writeStartElement(name);
+		path.push(name);
+		if (throwable.getClass() != declaredType) {
+			writer.writeAttribute("class", throwable.getClass().getName());
+		}
+		writeField(writer, "detailMessage", throwable.getMessage());
+		if (throwable.getCause() != null) {
+			writeThrowable(writer, "cause", throwable.getCause(),
+					Throwable.class, path);
+		}
+		writer.writeStartElement("stackTrace");
+		for (StackTraceElement element : throwable.getStackTrace()) {
+			writeField(writer, "trace",
+					element.toString().replaceFirst(":\\?\\?\\?", ""));
+		}
+		writer.writeEndElement();
+		Throwable[] suppressed = throwable.getSuppressed();
+		writer.writeStartElement("suppressedExceptions");
+		path.push("suppressedExceptions");
+		if (suppressed.length == 0 && UNMODIFIABLE_NO_SUPPRESSED) {
+			if (path.noSuppressed == null) {
+				path.noSuppressed = path.current();
+				writeNoSuppressedFields(writer);
+			} else {
+				writer.writeAttribute("class", UNMODIFIABLE_LIST);
+				writer.writeAttribute("reference",
+						path.referenceTo(path.noSuppressed));
+			}
+		} else if (suppressed.length == 0) {
+			writer.writeAttribute("class", "empty-list");
+		}
+		for (Throwable exception : suppressed) {
+			writeThrowable(writer, exception.getClass().getName(), exception,
+					exception.getClass(), path);
+		}
+		path.pop();
+		writer.writeEndElement();
+		path.pop();
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Writes the unmodifiable empty list of suppressed exceptions of Java 8
+	 * the way XStream does: replaced by the class it serializes as, and with
+	 * the list it wraps held in two fields, the second a reference to the
+	 * first
+	 */
+	private static void writeNoSuppressedFields(XMLStreamWriter writer)
+			throws XMLStreamException {
+		writer.writeAttribute("class", UNMODIFIABLE_LIST);
+		writer.writeAttribute("resolves-to", UNMODIFIABLE_LIST_REPLACEMENT);
+		writer.writeStartElement("c");
+		writer.writeAttribute("class", "list");
+		writer.writeEndElement();
+		writer.writeStartElement("list");
+		writer.writeAttribute("reference", "../c");
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Reads the unmodifiable empty list of suppressed exceptions XStream
+	 * writes on Java 8, which the reader is at the start of, and fails on
+	 * any other content
+	 */
+	private static void readNoSuppressedFields(XMLStreamReader reader)
+			throws XMLStreamException, IOException {
+		if (!UNMODIFIABLE_LIST_REPLACEMENT.equals(reader.getAttributeValue(
+				null, "resolves-to"))
+				|| reader.nextTag() != XMLStreamConstants.START_ELEMENT
+				|| !reader.getLocalName().equals("c")
+				|| !"list".equals(reader.getAttributeValue(null, "class"))
+				|| reader.nextTag() != XMLStreamConstants.END_ELEMENT
+				|| reader.nextTag() != XMLStreamConstants.START_ELEMENT
+				|| !reader.getLocalName().equals("list")
+				|| !"../c".equals(reader.getAttributeValue(null, "reference"))
+				|| reader.nextTag() != XMLStreamConstants.END_ELEMENT
+				|| reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+			throw new IOException("Unexpected suppressed exceptions of class "
+					+ UNMODIFIABLE_LIST);
+		}
+	}
+
+	/**
+	 * Reads the unmodifiable empty list of suppressed exceptions of Java 8,
+	 * in full where the throwable first holds it and as a reference to that
+	 * place everywhere else
+	 */
+	private static void readNoSuppressed(XMLStreamReader reader,
+			ElementPath path) throws XMLStreamException, IOException {
+		String reference = reader.getAttributeValue(null, "reference");
+		if (reference == null) {
+			readNoSuppressedFields(reader);
+			if (path.noSuppressed == null) {
+				path.noSuppressed = path.current();
+			}
+		} else if (path.noSuppressed == null
+				|| !reference.equals(path.referenceTo(path.noSuppressed))
+				|| reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+			throw new IOException("Unexpected suppressed exceptions reference "
+					+ reference);
+		}
+	}
+
+	/**
+	 * Reads the value of the element the reader is at the start of, whose
+	 * class has the alias, and leaves the reader at its end
+	 */
+	private static Object readValue(XMLStreamReader reader, String alias)
+			throws XMLStreamException, IOException {
+		if (reader.getAttributeValue(null, "reference") != null) {
+			throw new IOException("References are not supported");
+		}
+		if (alias.equals("null")) {
+			reader.getElementText();
+			return null;
+		} else if (alias.equals("string")) {
+			return reader.getElementText();
+		} else if (alias.equals("int")) {
+			return Integer.valueOf(reader.getElementText().trim());
+		} else if (alias.equals("long")) {
+			return Long.valueOf(reader.getElementText().trim());
+		} else if (alias.equals("float")) {
+			return Float.valueOf(reader.getElementText().trim());
+		} else if (alias.equals("boolean")) {
+			return Boolean.valueOf(reader.getElementText().trim());
+		} else if (alias.equals(RESPONSE)) {
+			return readResponse(reader);
+		} else if (alias.equals(BOOK) || alias.equals(STOCK_BOOK)) {
+			return readBook(reader, alias.equals(STOCK_BOOK));
+		} else if (alias.equals(BOOK_COPY) || alias.equals(BOOK_RATING)
+				|| alias.equals(BOOK_EDITOR_PICK)) {
+			return readIsbnPair(reader, alias);
+		} else if (alias.equals(BOOK_PAGE)) {
+			return readPage(reader);
+		} else if (alias.equals(INGEST_REPORT)) {
+			return readIngestReport(reader);
+		} else if (alias.equals(INGEST_BATCH)) {
+			throw new IOException("Ingest batches are read with their report");
+		}
+		if (isCollection(alias)) {
+			List<Object> elements = new ArrayList<Object>();
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				elements.add(readValue(reader, reader.getLocalName()));
+			}
+			return newCollection(alias, elements);
+		}
+		if (isBookStoreException(alias)) {
+			return readThrowable(reader, alias, new ElementPath());
+		}
+		throw new IOException("Unknown element " + alias);
+	}
+
+	/**
+	 * Reads the value of a field whose declared class has the alias, unless
+	 * the field names another class
+	 */
+	private static Object readField(XMLStreamReader reader, String alias)
+			throws XMLStreamException, IOException {
+		String type = reader.getAttributeValue(null, "class");
+		return readValue(reader, type == null ? alias : type);
+	}
+
+	private static boolean isCollection(String alias) {
+		return alias.equals("list") || alias.equals("linked-list")
+				|| alias.equals("singleton-list") || alias.equals("empty-list")
+				|| alias.equals("set") || alias.equals("linked-hash-set")
+				|| alias.equals("singleton-set") || alias.equals("empty-set");
+	}
+
+	/**
+	 * Returns a collection of the elements of the class XStream reads the
+	 * alias as
+	 */
+	private static Collection<?> newCollection(String alias,
+			List<Object> elements) throws IOException {
+		if (alias.equals("list")) {
+			return elements;
+		} else if (alias.equals("linked-list")) {
+			return new LinkedList<Object>(elements);
+		} else if (alias.equals("linked-hash-set")) {
+			return new LinkedHashSet<Object>(elements);
+		} else if (alias.equals("set")) {
+			return new HashSet<Object>(elements);
+		} else if (alias.startsWith("empty-")) {
+			if (!elements.isEmpty()) {
+				throw new IOException("Elements in " + alias);
+			}
+			return alias.equals("empty-list") ? Collections.emptyList()
+					: Collections.emptySet();
+		} else if (elements.size() != 1) {
+			throw new IOException(elements.size() + " elements in " + alias);
+		}
+		return alias.equals("singleton-list") ? Collections
+				.singletonList(elements.get(0)) : Collections
+				.singleton(elements.get(0));
+	}
+
+	private static BookStoreResponse readResponse(XMLStreamReader reader)
+			throws XMLStreamException, IOException {
+		BookStoreResponse response = new BookStoreResponse();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String field = reader.getLocalName();
+			if (field.equals("exception")) {
+				Object exception = readField(reader,
+						BookStoreException.class.getName());
+				if (!(exception instanceof BookStoreException)) {
+					throw new IOException("Unexpected exception " + exception);
+				}
+				response.setException((BookStoreException) exception);
+			} else if (field.equals("list")) {
+				response.setList((List<?>) readList(reader));
+			} else {
+				throw unknownField(RESPONSE, field);
+			}
+		}
+		return response;
+	}
+
+	private static List<?> readList(XMLStreamReader reader)
+			throws XMLStreamException, IOException {
+		Object list = readField(reader, "list");
+		if (!(list instanceof List)) {
+			throw new IOException("Expected a list but read " + list);
+		}
+		return (List<?>) list;
+	}
+
+	private static Book readBook(XMLStreamReader reader, boolean stockBook)
+			throws XMLStreamException, IOException {
+		String alias = stockBook ? STOCK_BOOK : BOOK;
+		int isbn = 0;
+		String title = null;
+		String author = null;
+		float price = 0;
+		int numCopies = 0;
+		long saleMisses = 0;
+		long timesRated = 0;
+		long totalRating = 0;
+		boolean editorPick = false;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String field = reader.getLocalName();
+			if (field.equals("ISBN")) {
+				isbn = Integer.parseInt(reader.getElementText().trim());
+			} else if (field.equals("title")) {
+				title = reader.getElementText();
+			} else if (field.equals("author")) {
+				author = reader.getElementText();
+			} else if (field.equals("price")) {
+				price = Float.parseFloat(reader.getElementText().trim());
+			} else if (stockBook && field.equals("numCopies")) {
+				numCopies = Integer.parseInt(reader.getElementText().trim());
+			} else if (stockBook && field.equals("saleMisses")) {
+				saleMisses = Long.parseLong(reader.getElementText().trim());
+			} else if (stockBook && field.equals("timesRated")) {
+				timesRated = Long.parseLong(reader.getElementText().trim());
+			} else if (stockBook && field.equals("totalRating")) {
+				totalRating = Long.parseLong(reader.getElementText().trim());
+			} else if (stockBook && field.equals("editorPick")) {
+				editorPick = Boolean.parseBoolean(reader.getElementText()
+						.trim());
+			} else {
+				throw unknownField(alias, field);
+			}
+		}
+		if (stockBook) {
+			return new ImmutableStockBook(isbn, title, author, price,
+					numCopies, saleMisses, timesRated, totalRating, editorPick);
+		}
+		return new ImmutableBook(isbn, title, author, price);
+	}
+
+	/**
+	 * Reads a BookCopy, BookRating or BookEditorPick, whose first field is
+	 * the ISBN
+	 */
+	private static Object readIsbnPair(XMLStreamReader reader, String alias)
+			throws XMLStreamException, IOException {
+		int isbn = 0;
+		String value = null;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String field = reader.getLocalName();
+			if (field.equals("ISBN")) {
+				isbn = Integer.parseInt(reader.getElementText().trim());
+			} else if ((alias.equals(BOOK_COPY) && field.equals("numCopies"))
+					|| (alias.equals(BOOK_RATING) && field.equals("rating"))
+					|| (alias.equals(BOOK_EDITOR_PICK) && field
+							.equals("editorPick"))) {
+				value = reader.getElementText().trim();
+			} else {
+				throw unknownField(alias, field);
+			}
+		}
+		if (alias.equals(BOOK_COPY)) {
+			return new BookCopy(isbn, value == null ? 0 : Integer
+					.parseInt(value));
+		} else if (alias.equals(BOOK_RATING)) {
+			return new BookRating(isbn, value == null ? 0 : Integer
+					.parseInt(value));
+		}
+		return new BookEditorPick(isbn, Boolean.parseBoolean(value));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BookPage readPage(XMLStreamReader reader)
+			throws XMLStreamException, IOException {
+		List<StockBook> books = null;
+		String nextCursor = null;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String field = reader.getLocalName();
+			if (field.equals("books")) {
+				books = (List<StockBook>) readList(reader);
+			} else if (field.equals("nextCursor")) {
+				nextCursor = reader.getElementText();
+			} else {
+				throw unknownField(BOOK_PAGE, field);
+			}
+		}
+		return new BookPage(books, nextCursor);
+	}
+
+	/**
+	 * Reads an ingest report by adding its batches again, which recomputes
+	 * its totals
+	 */
+	private static IngestReport readIngestReport(XMLStreamReader reader)
+			throws XMLStreamException, IOException {
+		IngestReport report = new IngestReport();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String field = reader.getLocalName();
+			if (field.equals("batches")) {
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (!reader.getLocalName().equals(INGEST_BATCH)) {
+						throw new IOException("Unexpected batch "
+								+ reader.getLocalName());
+					}
+					readIngestBatch(reader, report);
+				}
+			} else if (field.equals("booksAdded")
+					|| field.equals("booksRejected")) {
+				reader.getElementText();
+			} else if (field.equals("streamError")) {
+				report.setStreamError(reader.getElementText());
+			} else {
+				throw unknownField(INGEST_REPORT, field);
+			}
+		}
+		return report;
+	}
+
+	private static void readIngestBatch(XMLStreamReader reader,
+			IngestReport report) throws XMLStreamException, IOException {
+		int numBooks = 0;
+		String error = null;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String field = reader.getLocalName();
+			if (field.equals("batch")) {
+				reader.getElementText();
+			} else if (field.equals("numBooks")) {
+				numBooks = Integer.parseInt(reader.getElementText().trim());
+			} else if (field.equals("error")) {
+				error = reader.getElementText();
+			} else {
+				throw unknownField(INGEST_BATCH, field);
+			}
+		}
+		report.addBatch(numBooks, error);
+	}
+
+	private static boolean isBookStoreException(String className) {
+		return className.equals(BookStoreException.class.getName())
+				|| className.equals(CursorExpiredException.class.getName())
+				|| className.equals(ServerOverloadedException.class.getName());
+	}
+
+	/**
+	 * Reads the fields of Throwable XStream writes and creates the throwable
+	 * of the class. The path tracks the elements of the outermost throwable
+	 * read.
+	 */
+	private static Throwable readThrowable(XMLStreamReader reader,
+			String className, ElementPath path) throws XMLStreamException,
+			IOException {
+		if (reader.getAttributeValue(null, "reference") != null) {
+			throw new IOException("References are not supported");
+		}
+		path.push(reader.getLocalName());
+		String message = null;
+		Throwable cause = null;
+		List<StackTraceElement> stackTrace = new ArrayList<StackTraceElement>();
+		List<Throwable> suppressed = new ArrayList<Throwable>();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String field = reader.getLocalName();
+			if (field.equals("detailMessage")) {
+				message = reader.getElementText();
+			} else if (field.equals("cause")) {
+				String causeClass = reader.getAttributeValue(null, "class");
+				cause = readThrowable(reader, causeClass == null ? Throwable.class
+						.getName() : causeClass, path);
+			} else if (field.equals("stackTrace")) {
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					stackTrace.add(parseTrace(reader.getElementText()));
+				}
+			} else if (field.equals("suppressedExceptions")) {
+				String listClass = reader.getAttributeValue(null, "class");
+				path.push(field);
+				if (UNMODIFIABLE_LIST.equals(listClass)) {
+					readNoSuppressed(reader, path);
+				} else if (listClass == null || listClass.equals("empty-list")) {
+					while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+						suppressed.add(readThrowable(reader,
+								reader.getLocalName(), path));
+					}
+				} else {
+					throw new IOException(
+							"Unexpected suppressed exceptions of class "
+									+ listClass);
+				}
+				path.pop();
+			} else {
+				throw unknownField(className, field);
+			}
+		}
+		path.pop();
+		Throwable throwable = newThrowable(className, message);
+		if (cause != null) {
+			throwable.initCause(cause);
+		}
+		throwable.setStackTrace(stackTrace
+				.toArray(new StackTraceElement[stackTrace.size()]));
+		for (Throwable exception : suppressed) {
+			throwable.addSuppressed(exception);
+		}
+		return throwable;
+	}
+
+	/**
+	 * Creates the throwable of the class with the message. Classes other
+	 * than the exceptions of the bookstore are only instantiated if they are
+	 * throwables with a constructor taking the message.
+	 */
+	private static Throwable newThrowable(String className, String message) {
+		if (className.equals(BookStoreException.class.getName())) {
+			return new BookStoreException(message);
+		} else if (className.equals(CursorExpiredException.class.getName())) {
+			return new CursorExpiredException(message);
+		} else if (className.equals(ServerOverloadedException.class.getName())) {
+			return new ServerOverloadedException(message);
+		}
+		try {
+			Class<?> type = Class.forName(className, false,
+					XMLCodec.class.getClassLoader());
+			if (Throwable.class.isAssignableFrom(type)) {
+				Constructor<?> constructor = type.getConstructor(String.class);
+				return (Throwable) constructor.newInstance(message);
+			}
+		} catch (ReflectiveOperationException ex) {
+			// Fall through to a stand-in
+		} catch (LinkageError ex) {
+			// Fall through to a stand-in
+		}
+		return new Exception(className + ": " + message);
+	}
+
+	private static StackTraceElement parseTrace(String trace)
+			throws IOException {
+		Matcher matcher = TRACE.matcher(trace);
+		if (!matcher.matches()) {
+			throw new IOException("Malformed stack trace element " + trace);
+		}
+		String file = matcher.group(3);
+		int line;
+		if (file.equals("Unknown Source")) {
+			file = null;
+			line = -1;
+		} else if (file.equals("Native Method")) {
+			file = null;
+			line = -2;
+		} else {
+			line = matcher.group(5) == null ? -1 : Integer.parseInt(matcher
+					.group(5));
+		}
+		return new StackTraceElement(matcher.group(1), matcher.group(2), file,
+				line);
+	}
+
+	private static IOException unknownField(String className, String field) {
+		return new IOException("Unknown field " + field + " of " + className);
+	}
+
+	/**
+	 * The path from the outermost throwable to the current element, made of
+	 * the names XStream uses in its relative references: the element name,
+	 * followed by its index among the siblings of the same name from the
+	 * second one on. Only the elements a reference can lead through are
+	 * pushed.
+	 */
+	private static final class ElementPath {
+		private final List<String> names = new ArrayList<String>();
+		// The number of children of each name of the elements on the path,
+		// and of its parent
+		private final List<Map<String, Integer>> children = new ArrayList<Map<String, Integer>>();
+		// Where the empty list of suppressed exceptions of Java 8 was first
+		// met, or null
+		List<String> noSuppressed;
+
+		ElementPath() {
+			children.add(new HashMap<String, Integer>());
+		}
+
+		void push(String name) {
+			Map<String, Integer> siblings = children.get(children.size() - 1);
+			Integer count = siblings.get(name);
+			int index = count == null ? 1 : count + 1;
+			siblings.put(name, index);
+			names.add(index == 1 ? name : name + "[" + index + "]");
+			children.add(new HashMap<String, Integer>());
+		}
+
+		void pop() {
+			names.remove(names.size() - 1);
+			children.remove(children.size() - 1);
+		}
+
+		List<String> current() {
+			return new ArrayList<String>(names);
+		}
+
+		/**
+		 * Returns the reference XStream writes at the current element to the
+		 * element at the target path
+		 */
+		String referenceTo(List<String> target) {
+			int common = 0;
+			while (common < names.size() && common < target.size()
+					&& names.get(common).equals(target.get(common))) {
+				common++;
+			}
+			StringBuilder reference = new StringBuilder();
+			for (int i = common; i < names.size(); i++) {
+				reference.append(reference.length() == 0 ? ".." : "/..");
+			}
+			for (int i = common; i < target.size(); i++) {
+				if (reference.length() > 0) {
+					reference.append('/');
+				}
+				reference.append(target.get(i));
+			}
+			return reference.toString();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.acertainbookstore.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLStreamReader;
+
+
+/**
+ * Iterates over the objects of an XStream object stream as they are parsed
+ * from the input, so the objects already returned can be dropped by the
+ * caller. Malformed input and objects of the wrong type fail the iteration
+ * with an IllegalStateException.
+ * 
+ * @param <T>
+ */
+final class XMLObjectStreamIterator<T> implements Iterator<T> {
+	private static final XMLCodec codec = new XMLCodec();
+
+	private final Class<T> type;
+	private XMLStreamReader in;
+	private final InputStream source;
+	private T next;
+	private boolean done;
+
+	XMLObjectStreamIterator(InputStream source, Class<T> type) {
+		this.source = source;
+		this.type = type;
+	}
+
+	public boolean hasNext() {
+		if (next != null) {
+			return true;
+		}
+		if (done) {
+			return false;
+		}
+		try {
+			if (in == null) {
+				in = codec.createObjectStreamReader(source);
+			}
+			Object object = codec.readObject(in);
+			if (!type.isInstance(object)) {
+				throw new IllegalStateException("Expected a "
+						+ type.getSimpleName() + " but got " + object);
+			}
+			next = type.cast(object);
+			return true;
+		} catch (EOFException ex) {
+			done = true;
+			return false;
+		} catch (IOException ex) {
+			done = true;
+			throw new IllegalStateException(ex.getMessage(), ex);
+		}
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T object = next;
+		next = null;
+		return object;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,76 @@
+package com.acertainbookstore.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.xml.stream.XMLStreamWriter;
+
+
+/**
+ * An InputStream of the XStream object stream of the objects of an
+ * iterator. The objects are serialized only when the reader asks for more
+ * bytes, so only the XML of the current object is ever held in memory.
+ */
+final class XMLObjectStreamSource extends InputStream {
+	private static final XMLCodec codec = new XMLCodec();
+
+	private final Iterator<?> objects;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private final XMLStreamWriter out;
+	private byte[] bytes = new byte[0];
+	private int position;
+	private boolean closed;
+
+	XMLObjectStreamSource(Iterator<?> objects, String rootName)
+			throws IOException {
+		this.objects = objects;
+		this.out = codec.createObjectStreamWriter(buffer, rootName);
+	}
+
+	/**
+	 * Serializes the next object, or the end of the stream, into bytes.
+	 * 
+	 * @return false if the stream is over
+	 */
+	private boolean fill() throws IOException {
+		while (position == bytes.length) {
+			if (closed) {
+				return false;
+			}
+			if (objects.hasNext()) {
+				codec.writeObject(out, objects.next());
+			} else {
+				codec.closeObjectStream(out);
+				closed = true;
+			}
+			bytes = buffer.toByteArray();
+			buffer.reset();
+			position = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return bytes[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, bytes.length - position);
+		System.arraycopy(bytes, position, b, off, n);
+		position += n;
+		return n;
+	}
+}